@@ -0,0 +1,26 @@
+package nl.mpi.imdidiff.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line (all by default; accepts
+ * the regular JMH options) with the GC profiler enabled, so that the
+ * allocation rate gets reported next to the throughput
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        final CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(commandLineOptions)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
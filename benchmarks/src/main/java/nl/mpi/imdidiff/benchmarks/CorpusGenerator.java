@@ -0,0 +1,423 @@
+package nl.mpi.imdidiff.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates a pair of parallel IMDI hierarchies (<code>imdi-original</code>
+ * and <code>imdi-out</code>) of configurable size, depth and file size for
+ * testing at scale. Every directory gets a corpus document that links to its
+ * children; the leaf directories hold the sessions. A configurable share of the
+ * converted files gets mutations that the normalising differ treats as
+ * similar, another share gets mutations that each result in exactly one
+ * difference. The expected totals are written to
+ * {@value #EXPECTED_PROPERTIES} in the output directory (see
+ * {@link ScaleHarness}).
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class CorpusGenerator {
+
+    public static final String ORIGINAL_DIRECTORY = "imdi-original";
+    public static final String CONVERTED_DIRECTORY = "imdi-out";
+    public static final String EXPECTED_PROPERTIES = "expected.properties";
+
+    public static final String PROPERTY_FILES = "files";
+    public static final String PROPERTY_DIFF_FILES = "filesWithDifferences";
+    public static final String PROPERTY_DIFFERENCES = "differences";
+
+    private static final String NAMESPACE = "http://www.mpi.nl/IMDI/Schema/IMDI";
+    /**
+     * Approximate size of a session without actors and resources, and of a
+     * single actor and resource
+     */
+    private static final int SESSION_BASE_SIZE = 900;
+    private static final int ACTOR_SIZE = 120;
+    private static final int RESOURCE_SIZE = 135;
+
+    /**
+     * Mutations that are not relevant with respect to the conversion
+     */
+    enum Similar {
+
+        /**
+         * '@format=imdi' postfix on the archive handle
+         */
+        HANDLE_POSTFIX,
+        /**
+         * Reversed order of the keys (sessions only)
+         */
+        KEY_ORDER,
+        /**
+         * Rotated order of the keys that share a name (sessions only)
+         */
+        KEYWORD_ORDER,
+        /**
+         * Rotated order of the info links, descriptions without text
+         * (sessions only)
+         */
+        INFO_LINK_ORDER,
+        /**
+         * Reversed order of the descriptions
+         */
+        DESCRIPTION_ORDER,
+        /**
+         * Different Originator and Version attributes
+         */
+        HEADER_ATTRIBUTES,
+        /**
+         * Different indentation, comments and attribute order
+         */
+        FORMATTING
+    }
+
+    /**
+     * Mutations that each result in a single difference
+     */
+    enum Different {
+
+        TITLE,
+        /**
+         * Different date (sessions only)
+         */
+        DATE,
+        /**
+         * Different name of the first actor (sessions only)
+         */
+        ACTOR_NAME,
+        /**
+         * Different format of the first media file (sessions only)
+         */
+        MEDIA_FORMAT
+    }
+
+    private static final Set<Similar> CORPUS_SIMILAR = EnumSet.of(Similar.HANDLE_POSTFIX, Similar.DESCRIPTION_ORDER, Similar.HEADER_ATTRIBUTES, Similar.FORMATTING);
+    private static final Set<Different> CORPUS_DIFFERENT = EnumSet.of(Different.TITLE);
+
+    private final Path originalRoot;
+    private final Path convertedRoot;
+    private final int sessions;
+    private final int depth;
+    private final int fanout;
+    private final int actors;
+    private final int resources;
+    private final double similarRate;
+    private final double differentRate;
+    private final Random random;
+
+    private int sessionCount = 0;
+    private int corpusCount = 0;
+    private int similarFileCount = 0;
+    private int diffFileCount = 0;
+    private int diffCount = 0;
+
+    /**
+     *
+     * @param output directory to generate the hierarchies in
+     * @param sessions number of session files
+     * @param depth number of directory levels below the root
+     * @param fanout number of subdirectories per directory
+     * @param fileSize approximate size of the session files in bytes
+     * @param similarRate share of the files to apply similar mutations to
+     * @param differentRate share of the files to apply differences to
+     * @param seed seed for the random generator
+     */
+    public CorpusGenerator(Path output, int sessions, int depth, int fanout, int fileSize, double similarRate, double differentRate, long seed) {
+        this.originalRoot = output.resolve(ORIGINAL_DIRECTORY);
+        this.convertedRoot = output.resolve(CONVERTED_DIRECTORY);
+        this.sessions = sessions;
+        this.depth = depth;
+        this.fanout = fanout;
+        // divide the space beyond the base size over actors and resources
+        final int itemSpace = Math.max(0, fileSize - SESSION_BASE_SIZE);
+        this.actors = Math.max(1, itemSpace / 2 / ACTOR_SIZE);
+        this.resources = Math.max(1, itemSpace / 2 / RESOURCE_SIZE);
+        this.similarRate = similarRate;
+        this.differentRate = differentRate;
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        int sessions = 1000;
+        int depth = 2;
+        int fanout = 10;
+        int fileSize = 4096;
+        double similarRate = 0.5;
+        double differentRate = 0.1;
+        long seed = 1;
+        try {
+            while (!arguments.isEmpty() && arguments.get(0).startsWith("--")) {
+                final String option = arguments.remove(0);
+                final String value = arguments.remove(0);
+                switch (option) {
+                    case "--files":
+                        sessions = Integer.parseInt(value);
+                        break;
+                    case "--depth":
+                        depth = Integer.parseInt(value);
+                        break;
+                    case "--fanout":
+                        fanout = Integer.parseInt(value);
+                        break;
+                    case "--file-size":
+                        fileSize = Integer.parseInt(value);
+                        break;
+                    case "--similar-rate":
+                        similarRate = Double.parseDouble(value);
+                        break;
+                    case "--different-rate":
+                        differentRate = Double.parseDouble(value);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    default:
+                        printUsageAndExit();
+                }
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+            printUsageAndExit();
+        }
+        if (arguments.size() != 1) {
+            printUsageAndExit();
+        }
+
+        final Path output = Paths.get(arguments.get(0));
+        final CorpusGenerator generator = new CorpusGenerator(output, sessions, depth, fanout, fileSize, similarRate, differentRate, seed);
+        final long start = System.currentTimeMillis();
+        generator.generate();
+        generator.writeExpected(output.resolve(EXPECTED_PROPERTIES));
+        System.out.println(String.format("Generated %d sessions and %d corpora in %s (%d ms); expecting %d differences in %d files",
+                generator.sessionCount, generator.corpusCount, output, System.currentTimeMillis() - start, generator.diffCount, generator.diffFileCount));
+    }
+
+    private static void printUsageAndExit() {
+        System.err.println("Usage: CorpusGenerator [--files N] [--depth D] [--fanout F] [--file-size BYTES] [--similar-rate R] [--different-rate R] [--seed S] output-dir");
+        System.exit(1);
+    }
+
+    /**
+     * Generates both hierarchies
+     *
+     * @throws IOException if writing fails
+     */
+    public void generate() throws IOException {
+        final int leaves = (int) Math.pow(fanout, depth);
+        generateDirectory(Paths.get(""), 0, 0, leaves);
+    }
+
+    /**
+     * Generates a directory with a corpus and either subdirectories or
+     * sessions
+     *
+     * @param relativePath path of the directory relative to the roots
+     * @param level level of the directory
+     * @param firstLeaf index of the first leaf directory under this directory
+     * @param leafCount number of leaf directories under this directory
+     */
+    private void generateDirectory(Path relativePath, int level, int firstLeaf, int leafCount) throws IOException {
+        Files.createDirectories(originalRoot.resolve(relativePath.toString()));
+        Files.createDirectories(convertedRoot.resolve(relativePath.toString()));
+
+        final List<String> links = new ArrayList<>();
+        if (level == depth) {
+            // distribute sessions evenly over the leaf directories
+            final int leaves = (int) Math.pow(fanout, depth);
+            final int first = (int) ((long) sessions * firstLeaf / leaves);
+            final int last = (int) ((long) sessions * (firstLeaf + 1) / leaves);
+            for (int i = first; i < last; i++) {
+                final String name = "session" + i + ".imdi";
+                generateSession(relativePath.resolve(name), i);
+                links.add(name);
+            }
+        } else {
+            final int childLeaves = leafCount / fanout;
+            for (int i = 0; i < fanout; i++) {
+                final String name = "d" + i;
+                generateDirectory(relativePath.resolve(name), level + 1, firstLeaf + i * childLeaves, childLeaves);
+                links.add(name + "/corpus.imdi");
+            }
+        }
+        generateCorpus(relativePath.resolve("corpus.imdi"), corpusCount, links);
+    }
+
+    private void generateSession(Path relativePath, int number) throws IOException {
+        final Set<Similar> similar = pickSimilar(EnumSet.allOf(Similar.class));
+        final Set<Different> different = pickDifferent(EnumSet.allOf(Different.class));
+        write(originalRoot, relativePath, createSession(number, EnumSet.noneOf(Similar.class), EnumSet.noneOf(Different.class)));
+        write(convertedRoot, relativePath, createSession(number, similar, different));
+        sessionCount++;
+    }
+
+    private void generateCorpus(Path relativePath, int number, List<String> links) throws IOException {
+        final Set<Similar> similar = pickSimilar(CORPUS_SIMILAR);
+        final Set<Different> different = pickDifferent(CORPUS_DIFFERENT);
+        write(originalRoot, relativePath, createCorpus(number, links, EnumSet.noneOf(Similar.class), EnumSet.noneOf(Different.class)));
+        write(convertedRoot, relativePath, createCorpus(number, links, similar, different));
+        corpusCount++;
+    }
+
+    private Set<Similar> pickSimilar(Set<Similar> candidates) {
+        final Set<Similar> picked = EnumSet.noneOf(Similar.class);
+        if (random.nextDouble() < similarRate) {
+            similarFileCount++;
+            picked.addAll(pickSubset(new ArrayList<>(candidates)));
+        }
+        return picked;
+    }
+
+    private Set<Different> pickDifferent(Set<Different> candidates) {
+        final Set<Different> picked = EnumSet.noneOf(Different.class);
+        if (random.nextDouble() < differentRate) {
+            picked.addAll(pickSubset(new ArrayList<>(candidates)));
+            diffFileCount++;
+            diffCount += picked.size();
+        }
+        return picked;
+    }
+
+    /**
+     * @return random non-empty subset of the candidates
+     */
+    private <T> List<T> pickSubset(List<T> candidates) {
+        Collections.shuffle(candidates, random);
+        return candidates.subList(0, 1 + random.nextInt(candidates.size()));
+    }
+
+    private String createSession(int number, Set<Similar> similar, Set<Different> different) {
+        final boolean formatted = !similar.contains(Similar.FORMATTING);
+        final String indent = formatted ? "\n    " : "\n\t";
+        final StringBuilder builder = new StringBuilder();
+        appendHeader(builder, "SESSION", number, similar);
+        if (!formatted) {
+            builder.append("<!-- converted from CMDI -->");
+        }
+        builder.append(indent).append("<Session>")
+                .append(indent).append("<Name>session").append(number).append("</Name>")
+                .append(indent).append("<Title>Session ").append(number).append(different.contains(Different.TITLE) ? " (modified)" : "").append("</Title>")
+                .append(indent).append("<Date>").append(different.contains(Different.DATE) ? "2002" : "2001").append("-01-").append(10 + number % 19).append("</Date>");
+        appendDescriptions(builder, indent, number, similar);
+        appendInfoLinks(builder, indent, number, similar);
+        builder.append(indent).append("<MDGroup>")
+                .append(indent).append("<Location><Continent>Europe</Continent><Country>Netherlands</Country></Location>")
+                .append(indent).append("<Project><Name>P").append(number % 7).append("</Name><Title>Project</Title></Project>")
+                .append(indent).append("<Keys>");
+        final int keys = 5;
+        for (int i = 0; i < keys; i++) {
+            final int key = similar.contains(Similar.KEY_ORDER) ? keys - 1 - i : i;
+            builder.append("<Key Name=\"key").append(key).append("\">value").append(number + key).append("</Key>");
+        }
+        final String[] keywords = {"alpha", "beta", "gamma"};
+        for (int i = 0; i < keywords.length; i++) {
+            final int keyword = similar.contains(Similar.KEYWORD_ORDER) ? (i + 1) % keywords.length : i;
+            builder.append("<Key Name=\"Keyword\">").append(keywords[keyword]).append("</Key>");
+        }
+        builder.append("</Keys>")
+                .append(indent).append("<Content><Genre>Discourse</Genre></Content>")
+                .append(indent).append("<Actors>");
+        for (int i = 0; i < actors; i++) {
+            builder.append(indent).append("<Actor><Role>Speaker</Role><Name>")
+                    .append(i == 0 && different.contains(Different.ACTOR_NAME) ? "X" : "A").append(i)
+                    .append("</Name><FullName>Actor number ").append(i).append(" of session ").append(number)
+                    .append("</FullName><Sex>").append(i % 2 == 0 ? "Male" : "Female").append("</Sex></Actor>");
+        }
+        builder.append(indent).append("</Actors>")
+                .append(indent).append("</MDGroup>")
+                .append(indent).append("<Resources>");
+        for (int i = 0; i < resources; i++) {
+            builder.append(indent).append("<MediaFile><ResourceLink>media/s").append(number).append("-").append(i).append(".wav</ResourceLink>")
+                    .append("<Type>audio</Type><Format>").append(i == 0 && different.contains(Different.MEDIA_FORMAT) ? "audio/mpeg" : "audio/x-wav")
+                    .append("</Format><Size>").append(1024 + i).append("</Size></MediaFile>");
+        }
+        builder.append(indent).append("</Resources>")
+                .append(indent).append("</Session>\n</METATRANSCRIPT>\n");
+        return builder.toString();
+    }
+
+    private String createCorpus(int number, List<String> links, Set<Similar> similar, Set<Different> different) {
+        final boolean formatted = !similar.contains(Similar.FORMATTING);
+        final String indent = formatted ? "\n    " : "\n\t";
+        final StringBuilder builder = new StringBuilder();
+        appendHeader(builder, "CORPUS", 1000000 + number, similar);
+        builder.append(indent).append("<Corpus>")
+                .append(indent).append("<Name>corpus").append(number).append("</Name>")
+                .append(indent).append("<Title>Corpus ").append(number).append(different.contains(Different.TITLE) ? " (modified)" : "").append("</Title>");
+        appendDescriptions(builder, indent, number, similar);
+        for (String link : links) {
+            builder.append(indent).append("<CorpusLink Name=\"").append(link).append("\">").append(link).append("</CorpusLink>");
+        }
+        builder.append(indent).append("</Corpus>\n</METATRANSCRIPT>\n");
+        return builder.toString();
+    }
+
+    private static void appendHeader(StringBuilder builder, String type, int number, Set<Similar> similar) {
+        final String handle = "hdl:1839/00-0000-0000-" + number + (similar.contains(Similar.HANDLE_POSTFIX) ? "@format=imdi" : "");
+        final String originator = similar.contains(Similar.HEADER_ATTRIBUTES) ? "Metadata Translator" : "Arbil";
+        final String version = similar.contains(Similar.HEADER_ATTRIBUTES) ? "1" : "0";
+        builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        if (similar.contains(Similar.FORMATTING)) {
+            builder.append("<METATRANSCRIPT Version=\"").append(version).append("\" Originator=\"").append(originator)
+                    .append("\" ArchiveHandle=\"").append(handle).append("\" Type=\"").append(type).append("\" xmlns=\"").append(NAMESPACE).append("\">");
+        } else {
+            builder.append("<METATRANSCRIPT xmlns=\"").append(NAMESPACE).append("\" Type=\"").append(type)
+                    .append("\" ArchiveHandle=\"").append(handle).append("\" Originator=\"").append(originator)
+                    .append("\" Version=\"").append(version).append("\">");
+        }
+    }
+
+    private static void appendDescriptions(StringBuilder builder, String indent, int number, Set<Similar> similar) {
+        final String english = "<Description LanguageId=\"ISO639-3:eng\">Description of " + number + "</Description>";
+        final String dutch = "<Description LanguageId=\"ISO639-3:nld\">Beschrijving van " + number + "</Description>";
+        if (similar.contains(Similar.DESCRIPTION_ORDER)) {
+            builder.append(indent).append(english).append(indent).append(dutch);
+        } else {
+            builder.append(indent).append(dutch).append(indent).append(english);
+        }
+    }
+
+    private static void appendInfoLinks(StringBuilder builder, String indent, int number, Set<Similar> similar) {
+        // the last one has no archive handle, so that it can only be told apart by its link
+        final String[] infoLinks = {
+            "<Description Link=\"http://example.org/info/" + number + "-a.html\" ArchiveHandle=\"hdl:1839/00-0000-0001-" + number + "\"/>",
+            "<Description Link=\"http://example.org/info/" + number + "-b.html\" ArchiveHandle=\"hdl:1839/00-0000-0002-" + number + "\"/>",
+            "<Description Link=\"http://example.org/info/" + number + "-c.html\"/>"
+        };
+        for (int i = 0; i < infoLinks.length; i++) {
+            final int infoLink = similar.contains(Similar.INFO_LINK_ORDER) ? (i + 1) % infoLinks.length : i;
+            builder.append(indent).append(infoLinks[infoLink]);
+        }
+    }
+
+    private static void write(Path root, Path relativePath, String content) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(root.resolve(relativePath.toString()), StandardCharsets.UTF_8)) {
+            writer.write(content);
+        }
+    }
+
+    private void writeExpected(Path file) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty(PROPERTY_FILES, Integer.toString(sessionCount + corpusCount));
+        properties.setProperty(PROPERTY_DIFF_FILES, Integer.toString(diffFileCount));
+        properties.setProperty(PROPERTY_DIFFERENCES, Integer.toString(diffCount));
+        properties.setProperty("sessions", Integer.toString(sessionCount));
+        properties.setProperty("corpora", Integer.toString(corpusCount));
+        properties.setProperty("filesWithSimilarities", Integer.toString(similarFileCount));
+        try (OutputStream stream = Files.newOutputStream(file)) {
+            properties.store(stream, "Generated by " + getClass().getSimpleName());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package nl.mpi.imdidiff.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.TransformerException;
+import nl.mpi.imdidiff.IgnoreRules;
+import nl.mpi.imdidiff.ImdiDifference;
+import nl.mpi.imdidiff.NormalisingImdiDiffer;
+import nl.mpi.imdidiff.StreamingImdiDiffer;
+import nl.mpi.imdidiff.XMLUnitImdiDiffer;
+import nl.mpi.imdidiff.util.LookupDocumentResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Throughput of the differs and of the normalisation transformation alone, for
+ * documents of various shapes and sizes (see {@link ImdiDocuments}). Lookup
+ * tables for the normalisation are read as configured through the
+ * {@value LookupDocumentResolver#LOOKUP_DIRECTORY_PROPERTY} system property or
+ * from the classpath.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DifferBenchmark {
+
+    @Param({"SESSION_SMALL", "SESSION_TYPICAL", "SESSION_LARGE", "CORPUS_SMALL", "CORPUS_TYPICAL", "CORPUS_LARGE"})
+    public ImdiDocuments.Shape shape;
+
+    private Path directory;
+    private Path original;
+    private Path converted;
+    private NormalisingImdiDiffer normalisingDiffer;
+    private XMLUnitImdiDiffer xmlUnitDiffer;
+    private XMLUnitImdiDiffer fullWalkDiffer;
+    private StreamingImdiDiffer streamingDiffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("imdidiff-benchmark");
+        final Path[] pair = ImdiDocuments.writePair(shape, directory);
+        original = pair[0];
+        converted = pair[1];
+
+        normalisingDiffer = new NormalisingImdiDiffer(IgnoreRules.empty(), LookupDocumentResolver.getDefault());
+        normalisingDiffer.initialise();
+        xmlUnitDiffer = new XMLUnitImdiDiffer();
+        xmlUnitDiffer.initialise();
+        fullWalkDiffer = new XMLUnitImdiDiffer();
+        fullWalkDiffer.setSubtreeHashing(false);
+        fullWalkDiffer.initialise();
+        streamingDiffer = new StreamingImdiDiffer();
+        streamingDiffer.initialise();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(original);
+        Files.deleteIfExists(converted);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public List<ImdiDifference> normalisingCompare() throws IOException, SAXException, TransformerException {
+        return normalisingDiffer.compare(original, converted);
+    }
+
+    @Benchmark
+    public List<ImdiDifference> xmlUnitCompare() throws IOException, SAXException {
+        return xmlUnitDiffer.compare(original, converted);
+    }
+
+    @Benchmark
+    public List<ImdiDifference> fullWalkCompare() throws IOException, SAXException {
+        return fullWalkDiffer.compare(original, converted);
+    }
+
+    @Benchmark
+    public List<ImdiDifference> streamingCompare() throws IOException, SAXException {
+        return streamingDiffer.compare(original, converted);
+    }
+
+    @Benchmark
+    public Document normalise() throws IOException, TransformerException {
+        return normalisingDiffer.normalise(original);
+    }
+}
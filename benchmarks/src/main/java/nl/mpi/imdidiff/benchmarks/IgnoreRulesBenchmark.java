@@ -0,0 +1,121 @@
+package nl.mpi.imdidiff.benchmarks;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import nl.mpi.imdidiff.IgnoreRules;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of matching node paths against the exclude list (the successor
+ * of <code>ImdiDiffRunner.matchesIgnorePath</code>), per tested node path
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IgnoreRulesBenchmark {
+
+    private static final String[] NODE_PATHS = {
+        "/METATRANSCRIPT[1]/@ArchiveHandle",
+        "/METATRANSCRIPT[1]/Session[1]/Title[1]/text()[1]",
+        "/METATRANSCRIPT[1]/Session[1]/MDGroup[1]/Keys[1]/Key[3]/@Name",
+        "/METATRANSCRIPT[1]/Session[1]/MDGroup[1]/Keys[1]/Key[17]/text()[1]",
+        "/METATRANSCRIPT[1]/Session[1]/MDGroup[1]/Actors[1]/Actor[2]/Age[1]/text()[1]",
+        "/METATRANSCRIPT[1]/Session[1]/Resources[1]/MediaFile[12]/ResourceLink[1]/@ArchiveHandle",
+        "/METATRANSCRIPT[1]/Corpus[1]/CorpusLink[250]/text()[1]",
+        "/METATRANSCRIPT[1]/Corpus[1]/CorpusLink[4]/@Name"
+    };
+
+    /**
+     * Number of files in the exclude list
+     */
+    @Param({"10", "10000"})
+    public int files;
+
+    /**
+     * Number of rules for each file
+     */
+    @Param({"1", "20"})
+    public int rulesPerFile;
+
+    private IgnoreRules rules;
+    private Path file;
+
+    @Setup
+    public void setUp() {
+        final List<String> lines = new ArrayList<>(files * rulesPerFile);
+        for (int f = 0; f < files; f++) {
+            final String path = getFilePath(f);
+            for (int r = 0; r < rulesPerFile; r++) {
+                switch (r % 4) {
+                    case 0:
+                        lines.add(path + " ID3:/METATRANSCRIPT\\[1\\]/Session\\[1\\]/MDGroup\\[1\\]/Keys\\[1\\]/Key\\[" + r + "\\]/@Name");
+                        break;
+                    case 1:
+                        lines.add(path + " ID14:.*/Actor\\[\\d+\\]/Age\\[1\\]/text\\(\\)\\[1\\]");
+                        break;
+                    case 2:
+                        lines.add(path + " .*/CorpusLink\\[" + r + "\\]/.*");
+                        break;
+                    default:
+                        lines.add(path + " ID22:*");
+                }
+            }
+        }
+        rules = IgnoreRules.parse(lines);
+        file = FileSystems.getDefault().getPath(getFilePath(files / 2));
+    }
+
+    private static String getFilePath(int number) {
+        return "/data/imdi/corpus" + (number % 100) + "/session" + number + ".imdi";
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public int matches() {
+        int count = 0;
+        for (String nodePath : NODE_PATHS) {
+            if (rules.matches(file, nodePath, "ID3") || rules.matches(file, nodePath, "ID14")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public int matchesWithFileRules() {
+        // as used by the differ: rules for the file get looked up once per comparison
+        final IgnoreRules.FileRules fileRules = rules.forFile(file);
+        int count = 0;
+        for (String nodePath : NODE_PATHS) {
+            if (fileRules.matches(nodePath, "ID3") || fileRules.matches(nodePath, "ID14")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public boolean skipsFile() {
+        return rules.skipsFile(file);
+    }
+}
@@ -0,0 +1,146 @@
+package nl.mpi.imdidiff.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generates synthetic IMDI documents for the benchmarks: an original and a
+ * 'converted' version with the artefacts that IMDI-CMDI-IMDI conversion
+ * typically introduces (handle postfixes, absolute resource links, reordered
+ * keys and corpus links) plus a few real differences.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public final class ImdiDocuments {
+
+    /**
+     * Document shapes, named as used in the benchmark parameters
+     */
+    public enum Shape {
+
+        SESSION_SMALL(true, 1, 1, 1),
+        SESSION_TYPICAL(true, 6, 12, 4),
+        SESSION_LARGE(true, 250, 400, 600),
+        CORPUS_SMALL(false, 5, 0, 0),
+        CORPUS_TYPICAL(false, 100, 0, 0),
+        CORPUS_LARGE(false, 5000, 0, 0);
+
+        private final boolean session;
+        /**
+         * Number of actors for sessions, number of corpus links for corpora
+         */
+        private final int items;
+        private final int keys;
+        private final int resources;
+
+        private Shape(boolean session, int items, int keys, int resources) {
+            this.session = session;
+            this.items = items;
+            this.keys = keys;
+            this.resources = resources;
+        }
+    }
+
+    private static final String NAMESPACE = "http://www.mpi.nl/IMDI/Schema/IMDI";
+
+    private ImdiDocuments() {
+    }
+
+    /**
+     * Writes an original and a converted document of the given shape
+     *
+     * @param shape shape of the documents
+     * @param directory directory to write to
+     * @return original (index 0) and converted (index 1) file
+     * @throws IOException if the files cannot be written
+     */
+    public static Path[] writePair(Shape shape, Path directory) throws IOException {
+        final Path original = directory.resolve(shape.name().toLowerCase() + "-original.imdi");
+        final Path converted = directory.resolve(shape.name().toLowerCase() + "-converted.imdi");
+        Files.write(original, create(shape, false).getBytes(StandardCharsets.UTF_8));
+        Files.write(converted, create(shape, true).getBytes(StandardCharsets.UTF_8));
+        return new Path[]{original, converted};
+    }
+
+    /**
+     *
+     * @param shape shape of the document
+     * @param converted whether to generate the converted version
+     * @return document content
+     */
+    public static String create(Shape shape, boolean converted) {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<METATRANSCRIPT xmlns=\"").append(NAMESPACE).append("\" Type=\"")
+                .append(shape.session ? "SESSION" : "CORPUS")
+                .append("\" ArchiveHandle=\"").append(handle(0, converted))
+                .append("\" Originator=\"benchmark\" Version=\"0\">\n");
+        if (shape.session) {
+            appendSession(builder, shape, converted);
+        } else {
+            appendCorpus(builder, shape, converted);
+        }
+        return builder.append("</METATRANSCRIPT>\n").toString();
+    }
+
+    private static void appendSession(StringBuilder builder, Shape shape, boolean converted) {
+        builder.append("  <Session>\n")
+                .append("    <Name>session</Name>\n")
+                .append("    <Title>").append(converted ? "Converted session" : "Session").append("</Title>\n")
+                .append("    <Date>2001-01-01</Date>\n")
+                .append("    <Description LanguageId=\"ISO639-3:eng\">Description of the session</Description>\n")
+                .append("    <Description LanguageId=\"ISO639-3:nld\">Beschrijving van de sessie</Description>\n")
+                .append("    <MDGroup>\n")
+                .append("      <Location><Continent>Europe</Continent><Country>Netherlands</Country><Region/><Address/></Location>\n")
+                .append("      <Project><Name>P</Name><Title>Project</Title><Id/><Contact/></Project>\n")
+                .append("      <Keys>");
+        for (int i = 0; i < shape.keys; i++) {
+            // conversion reverses key order
+            final int key = converted ? shape.keys - 1 - i : i;
+            builder.append("<Key Name=\"key").append(key).append("\">value").append(key).append("</Key>");
+        }
+        builder.append("</Keys>\n")
+                .append("      <Content><Genre>Discourse</Genre><Languages/></Content>\n")
+                .append("      <Actors>\n");
+        for (int i = 0; i < shape.items; i++) {
+            builder.append("        <Actor><Role>Speaker</Role><Name>A").append(i)
+                    .append("</Name><FullName>Actor ").append(i)
+                    .append("</FullName><Age>").append(20 + i % 50).append(converted && i % 97 == 1 ? ";0.0" : "")
+                    .append("</Age><Sex>").append(i % 2 == 0 ? "Male" : "Female").append("</Sex>")
+                    .append("<Description LanguageId=\"ISO639-3:eng\">Actor description ").append(i).append("</Description>")
+                    .append("</Actor>\n");
+        }
+        builder.append("      </Actors>\n")
+                .append("    </MDGroup>\n")
+                .append("    <Resources>\n");
+        for (int i = 0; i < shape.resources; i++) {
+            builder.append("      <MediaFile><ResourceLink ArchiveHandle=\"").append(handle(1000 + i, converted)).append("\">")
+                    .append(converted ? "http://archive.example.org/media/" : "../media/").append("file").append(i).append(".wav")
+                    .append("</ResourceLink><Type>audio</Type><Format>audio/x-wav</Format><Size>").append(i * 1024)
+                    .append("</Size></MediaFile>\n");
+        }
+        builder.append("    </Resources>\n")
+                .append("  </Session>\n");
+    }
+
+    private static void appendCorpus(StringBuilder builder, Shape shape, boolean converted) {
+        builder.append("  <Corpus>\n")
+                .append("    <Name>corpus</Name>\n")
+                .append("    <Title>").append(converted ? "Converted corpus" : "Corpus").append("</Title>\n")
+                .append("    <Description LanguageId=\"ISO639-3:eng\">Description of the corpus</Description>\n");
+        for (int i = 0; i < shape.items; i++) {
+            // conversion rotates the order of the links
+            final int link = converted ? (i + shape.items / 2) % shape.items : i;
+            builder.append("    <CorpusLink Name=\"session").append(link)
+                    .append("\" ArchiveHandle=\"").append(handle(10000 + link, converted)).append("\">")
+                    .append("sessions/session").append(link).append(".imdi</CorpusLink>\n");
+        }
+        builder.append("  </Corpus>\n");
+    }
+
+    private static String handle(int number, boolean converted) {
+        return "hdl:1839/00-0000-0000-0000-" + number + (converted ? "@format=imdi" : "");
+    }
+}
@@ -0,0 +1,110 @@
+package nl.mpi.imdidiff.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import nl.mpi.imdidiff.DiffTotals;
+import nl.mpi.imdidiff.ImdiDiffRunner;
+
+/**
+ * Runs {@link ImdiDiffRunner} over hierarchies generated by
+ * {@link CorpusGenerator} and reports throughput, peak heap usage and whether
+ * the totals match the injected differences. Exits with status 1 if they do
+ * not.
+ *
+ * <p>
+ * Usage: <code>ScaleHarness generated-dir [runner options]</code>, where the
+ * runner options (e.g. <code>--threads 8</code>) are passed on to
+ * {@link ImdiDiffRunner}. Logging of individual differences is turned off
+ * unless <code>org.slf4j.simpleLogger.defaultLogLevel</code> is set.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class ScaleHarness {
+
+    private static final String LOG_LEVEL_PROPERTY = "org.slf4j.simpleLogger.defaultLogLevel";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ScaleHarness generated-dir [runner options]");
+            System.exit(1);
+        }
+        if (System.getProperty(LOG_LEVEL_PROPERTY) == null) {
+            // must happen before the first logger gets created
+            System.setProperty(LOG_LEVEL_PROPERTY, "error");
+        }
+
+        final Path directory = Paths.get(args[0]);
+        final Properties expected = new Properties();
+        try (InputStream stream = Files.newInputStream(directory.resolve(CorpusGenerator.EXPECTED_PROPERTIES))) {
+            expected.load(stream);
+        }
+
+        final List<String> runnerArguments = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+        runnerArguments.add(directory.resolve(CorpusGenerator.ORIGINAL_DIRECTORY).toString());
+        runnerArguments.add(directory.resolve(CorpusGenerator.CONVERTED_DIRECTORY).toString());
+
+        final List<MemoryPoolMXBean> heapPools = getHeapPools();
+        for (MemoryPoolMXBean pool : heapPools) {
+            pool.resetPeakUsage();
+        }
+        final long gcTimeBefore = getGarbageCollectionTime();
+        final long start = System.nanoTime();
+
+        final DiffTotals totals = ImdiDiffRunner.run(runnerArguments.toArray(new String[runnerArguments.size()]));
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final long gcTime = getGarbageCollectionTime() - gcTimeBefore;
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        System.out.println(String.format("Compared %d files in %.1f s: %.1f files/s", totals.getFileCount(), seconds, totals.getFileCount() / seconds));
+        System.out.println(String.format("Peak heap usage: %d MB (max %d MB), GC time: %d ms",
+                peakHeap >> 20, Runtime.getRuntime().maxMemory() >> 20, gcTime));
+
+        boolean matches = true;
+        matches &= check("Files", expected, CorpusGenerator.PROPERTY_FILES, totals.getFileCount());
+        matches &= check("Files with differences", expected, CorpusGenerator.PROPERTY_DIFF_FILES, totals.getDiffFileCount());
+        matches &= check("Differences", expected, CorpusGenerator.PROPERTY_DIFFERENCES, totals.getDiffCount());
+        if (!matches) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean check(String label, Properties expected, String property, int found) {
+        final int expectedValue = Integer.parseInt(expected.getProperty(property));
+        final boolean matches = expectedValue == found;
+        System.out.println(String.format("%s: expected %d, found %d%s", label, expectedValue, found, matches ? "" : " MISMATCH"));
+        return matches;
+    }
+
+    private static List<MemoryPoolMXBean> getHeapPools() {
+        final List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private static long getGarbageCollectionTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+}
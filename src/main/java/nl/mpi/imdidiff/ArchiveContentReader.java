@@ -0,0 +1,48 @@
+package nl.mpi.imdidiff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Content reader for files that have been read from a tar archive. The walk
+ * puts the content of both files of a pair before handing the pair over for
+ * comparison and releases it once the comparison is done, so only the pairs
+ * that are being compared or waiting to be compared are held in memory.
+ * Instances are thread safe.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+class ArchiveContentReader extends ContentReader {
+
+    private final ConcurrentMap<Path, byte[]> contents = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param file path of the file (archive path followed by the entry name)
+     * @param content content of the entry
+     */
+    public void put(Path file, byte[] content) {
+        contents.put(file, content);
+    }
+
+    /**
+     *
+     * @param file file that is not going to be read (again)
+     */
+    public void release(Path file) {
+        contents.remove(file);
+    }
+
+    @Override
+    public ByteBuffer read(Path file) throws IOException {
+        final byte[] content = contents.get(file);
+        if (content == null) {
+            throw new NoSuchFileException(file.toString(), null, "not read from archive");
+        }
+        return ByteBuffer.wrap(content);
+    }
+}
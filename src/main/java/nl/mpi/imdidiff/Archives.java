@@ -0,0 +1,94 @@
+package nl.mpi.imdidiff;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Support for hierarchies that are stored in archives rather than in a
+ * directory. Zip archives get mounted as a file system, so that they can be
+ * walked like a directory; tar archives (optionally gzip compressed) can only
+ * be read sequentially (see {@link TarArchiveReader}).
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+final class Archives {
+
+    private static final String ZIP_EXTENSION = ".zip";
+    private static final String[] TAR_EXTENSIONS = {".tar", ".tar.gz", ".tgz"};
+    private static final String JAR_SCHEME = "jar";
+    private static final String ENTRY_SEPARATOR = "!/";
+
+    private Archives() {
+    }
+
+    /**
+     *
+     * @param file an existing file
+     * @return whether the file is a zip archive (by its extension)
+     */
+    public static boolean isZip(Path file) {
+        return Files.isRegularFile(file) && ImdiDiffVisitor.hasExtension(file, ZIP_EXTENSION);
+    }
+
+    /**
+     *
+     * @param file an existing file
+     * @return whether the file is a tar archive, possibly gzip compressed (by
+     * its extension)
+     */
+    public static boolean isTar(Path file) {
+        if (Files.isRegularFile(file)) {
+            for (String extension : TAR_EXTENSIONS) {
+                if (ImdiDiffVisitor.hasExtension(file, extension)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Mounts a zip archive read-only; close the returned file system when
+     * done
+     *
+     * @param file zip archive
+     * @return file system of the content of the archive
+     * @throws IOException if the archive cannot be opened
+     */
+    public static FileSystem openZip(Path file) throws IOException {
+        return FileSystems.newFileSystem(file, (ClassLoader) null);
+    }
+
+    /**
+     * Gives the path of a file in a zip archive as a path on the default file
+     * system, consisting of the path of the archive followed by the path of
+     * the entry (e.g. <code>/data/corpus.zip/c1/session.imdi</code>), as used
+     * in exclude lists
+     *
+     * @param path any path
+     * @return the path on the default file system, or the path itself if it
+     * is not in an archive
+     */
+    public static Path toDefaultPath(Path path) {
+        if (path.getFileSystem() == FileSystems.getDefault()) {
+            return path;
+        }
+        final Path absolutePath = path.toAbsolutePath();
+        final URI uri = absolutePath.toUri();
+        if (JAR_SCHEME.equals(uri.getScheme())) {
+            // the location of the archive is still encoded
+            final String location = uri.getRawSchemeSpecificPart();
+            final int separator = location.indexOf(ENTRY_SEPARATOR);
+            if (separator > 0) {
+                final Path archive = Paths.get(URI.create(location.substring(0, separator)));
+                return archive.resolve(RunManifest.toKey(absolutePath.getRoot().relativize(absolutePath)));
+            }
+        }
+        return path;
+    }
+}
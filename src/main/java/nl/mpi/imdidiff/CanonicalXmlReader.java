@@ -0,0 +1,353 @@
+package nl.mpi.imdidiff;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.custommonkey.xmlunit.XMLConstants;
+import org.w3c.dom.Node;
+
+/**
+ * Reads an XML document as a stream of nodes, in the form in which
+ * {@link XMLUnitComparator} prepares documents for comparison: comments are
+ * left out, text that consists of whitespace only is removed, remaining
+ * adjacent text (including CDATA sections) is merged and attributes are
+ * ordered by name, as in a DOM attribute map. Only the document element and
+ * its descendants are read.
+ *
+ * <p>
+ * The reader only moves forward; the caller reads the children of the current
+ * element with {@link #nextChild(java.lang.String) } and either reads or
+ * {@link #skipElement() skips} the content of each child element before
+ * asking for the next child.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+final class CanonicalXmlReader implements Closeable {
+
+    private static final Comparator<Attribute> ATTRIBUTE_ORDER = new Comparator<Attribute>() {
+
+        @Override
+        public int compare(Attribute o1, Attribute o2) {
+            return o1.qName.compareTo(o2.qName);
+        }
+    };
+
+    private final Reader input;
+    private final XMLStreamReader reader;
+    /**
+     * Whether the current event of the reader has yet to be processed
+     */
+    private boolean pending = false;
+    private final StringBuilder text = new StringBuilder();
+    private final StringBuilder segment = new StringBuilder();
+
+    /**
+     *
+     * @param inputFactory factory for the underlying stream reader, should be
+     * coalescing and namespace aware
+     * @param input reader of the document, gets closed with this reader
+     * @throws IOException if the input cannot be closed after a failure
+     * @throws XMLStreamException if the stream reader cannot be created
+     */
+    public CanonicalXmlReader(XMLInputFactory inputFactory, Reader input) throws IOException, XMLStreamException {
+        this.input = input;
+        try {
+            this.reader = inputFactory.createXMLStreamReader(input);
+        } catch (XMLStreamException ex) {
+            input.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Moves to the document element
+     *
+     * @return the document element, of which the content is to be read next
+     * @throws XMLStreamException if the document cannot be parsed
+     */
+    public XmlNode readRoot() throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                return readElement();
+            }
+        }
+        throw new XMLStreamException("Document has no root element");
+    }
+
+    /**
+     * Reads the next child of the current element
+     *
+     * @param parentName name of the current element
+     * @return the next child node; null if the current element has ended, in
+     * which case its parent becomes the current element. If the node is an
+     * element, it becomes the current element.
+     * @throws XMLStreamException if the document cannot be parsed
+     */
+    public XmlNode nextChild(String parentName) throws XMLStreamException {
+        text.setLength(0);
+        segment.setLength(0);
+        while (true) {
+            final int event = pending ? reader.getEventType() : reader.next();
+            pending = false;
+            switch (event) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    segment.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    // text on either side of a comment gets merged
+                    flushSegment();
+                    break;
+                case XMLStreamConstants.START_ELEMENT:
+                case XMLStreamConstants.END_ELEMENT:
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                case XMLStreamConstants.END_DOCUMENT:
+                    flushSegment();
+                    if (text.length() > 0) {
+                        // handle this event in the next call
+                        pending = true;
+                        return XmlNode.text(text.toString(), parentName);
+                    } else if (event == XMLStreamConstants.START_ELEMENT) {
+                        return readElement();
+                    } else if (event == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+                        return XmlNode.processingInstruction(reader.getPITarget(), reader.getPIData());
+                    } else {
+                        return null;
+                    }
+                default:
+                    // document type, entity references that are not replaced
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Skips the content of the current element, making its parent the
+     * current element. Can only be called before the first call to
+     * {@link #nextChild(java.lang.String) } for the element.
+     *
+     * @throws XMLStreamException if the document cannot be parsed
+     */
+    public void skipElement() throws XMLStreamException {
+        pending = false;
+        int level = 1;
+        while (level > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    level++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    level--;
+                    break;
+                case XMLStreamConstants.END_DOCUMENT:
+                    return;
+                default:
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        } finally {
+            input.close();
+        }
+    }
+
+    private void flushSegment() {
+        if (!isWhitespace(segment)) {
+            text.append(segment);
+        }
+        segment.setLength(0);
+    }
+
+    private XmlNode readElement() {
+        final String prefix = reader.getPrefix();
+        final String localName = reader.getLocalName();
+        final String qName = prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+        final int attributeCount = reader.getAttributeCount();
+        final List<Attribute> attributes;
+        if (attributeCount == 0) {
+            attributes = Collections.emptyList();
+        } else {
+            attributes = new ArrayList<>(attributeCount);
+            for (int i = 0; i < attributeCount; i++) {
+                attributes.add(readAttribute(i));
+            }
+            Collections.sort(attributes, ATTRIBUTE_ORDER);
+        }
+        return XmlNode.element(emptyToNull(reader.getNamespaceURI()), localName, qName, attributes);
+    }
+
+    private Attribute readAttribute(int index) {
+        final String namespaceUri = emptyToNull(reader.getAttributeNamespace(index));
+        final String prefix = reader.getAttributePrefix(index);
+        final String localName = reader.getAttributeLocalName(index);
+        final String qName = prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+        final String value = reader.getAttributeValue(index);
+        final Attribute attribute = new Attribute(namespaceUri, localName, qName, value);
+        if (attribute.isSchemaInstance(XMLConstants.W3C_XML_SCHEMA_INSTANCE_TYPE_ATTR)) {
+            // type names are compared by namespace URI rather than prefix
+            final int colon = value.indexOf(':');
+            if (colon >= 0 && colon < value.length() - 1) {
+                attribute.typeName = "{" + emptyToNull(reader.getNamespaceURI(value.substring(0, colon))) + "}" + value.substring(colon + 1);
+            } else {
+                attribute.typeName = "{" + emptyToNull(reader.getNamespaceURI(javax.xml.XMLConstants.DEFAULT_NS_PREFIX)) + "}" + value;
+            }
+        }
+        return attribute;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Same definition of whitespace as {@link XMLUnitComparator}
+     */
+    private static boolean isWhitespace(CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            switch (value.charAt(i)) {
+                case ' ':
+                case '\t':
+                case '\n':
+                case '\r':
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Element, text or processing instruction node. Elements carry their
+     * attributes; their children are only held if the subtree has been read
+     * into memory.
+     */
+    static final class XmlNode {
+
+        final short type;
+        final String namespaceUri;
+        /**
+         * Local name of elements, null for other nodes
+         */
+        final String localName;
+        /**
+         * Node name as in DOM: qualified name of elements, target of
+         * processing instructions
+         */
+        final String nodeName;
+        /**
+         * Text content or processing instruction data
+         */
+        final String value;
+        /**
+         * Name of the parent element of text nodes
+         */
+        final String parentName;
+        final List<Attribute> attributes;
+        /**
+         * Position among the preceding siblings with the same XPath name
+         * (starting at 1), set by the reader of the sibling list
+         */
+        int xpathIndex;
+        /**
+         * Children, if read into memory
+         */
+        List<XmlNode> children;
+        /**
+         * Key to match the node to its counterpart among the siblings in the
+         * other document, see {@link ImdiElementQualifier}; set by the reader
+         * of the sibling list, null for none
+         */
+        String matchKey;
+
+        private XmlNode(short type, String namespaceUri, String localName, String nodeName, String value, String parentName, List<Attribute> attributes) {
+            this.type = type;
+            this.namespaceUri = namespaceUri;
+            this.localName = localName;
+            this.nodeName = nodeName;
+            this.value = value;
+            this.parentName = parentName;
+            this.attributes = attributes;
+        }
+
+        static XmlNode element(String namespaceUri, String localName, String qName, List<Attribute> attributes) {
+            return new XmlNode(Node.ELEMENT_NODE, namespaceUri, localName, qName, null, null, attributes);
+        }
+
+        static XmlNode text(String value, String parentName) {
+            return new XmlNode(Node.TEXT_NODE, null, null, "#text", value, parentName, Collections.<Attribute>emptyList());
+        }
+
+        static XmlNode processingInstruction(String target, String data) {
+            return new XmlNode(Node.PROCESSING_INSTRUCTION_NODE, null, null, target, data, null, Collections.<Attribute>emptyList());
+        }
+
+        /**
+         * @return name of the node in XPath locations
+         */
+        String getXpathName() {
+            switch (type) {
+                case Node.ELEMENT_NODE:
+                    return localName;
+                case Node.TEXT_NODE:
+                    return XMLConstants.XPATH_CHARACTER_NODE_IDENTIFIER;
+                default:
+                    return XMLConstants.XPATH_PROCESSING_INSTRUCTION_IDENTIFIER;
+            }
+        }
+
+        /**
+         * @return copy of this node without content, that still identifies it
+         * as a sibling
+         */
+        XmlNode toSignature() {
+            final XmlNode signature = new XmlNode(type, namespaceUri, localName, nodeName, null, null, Collections.<Attribute>emptyList());
+            signature.xpathIndex = xpathIndex;
+            signature.matchKey = matchKey;
+            return signature;
+        }
+    }
+
+    /**
+     * Attribute of an element
+     */
+    static final class Attribute {
+
+        final String namespaceUri;
+        final String localName;
+        final String qName;
+        final String value;
+        /**
+         * Value of an xsi:type attribute with the prefix replaced by the
+         * namespace URI; null for other attributes
+         */
+        String typeName;
+
+        private Attribute(String namespaceUri, String localName, String qName, String value) {
+            this.namespaceUri = namespaceUri;
+            this.localName = localName;
+            this.qName = qName;
+            this.value = value;
+        }
+
+        boolean isSchemaInstance(String name) {
+            return XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals(namespaceUri) && name.equals(localName);
+        }
+    }
+}
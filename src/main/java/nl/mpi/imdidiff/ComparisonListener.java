@@ -0,0 +1,49 @@
+package nl.mpi.imdidiff;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Receives the outcome of each comparison in a walk over two hierarchies (see
+ * {@link ImdiDiffVisitor#setListener(nl.mpi.imdidiff.ComparisonListener) }),
+ * in the order in which the outcomes get reported, on the walking thread
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+interface ComparisonListener {
+
+    /**
+     *
+     * @param relativePath relative path of the pair
+     * @param differences differences found, empty if the files are similar
+     * @throws IOException if the outcome cannot be passed on
+     */
+    void compared(Path relativePath, List<ImdiDifference> differences) throws IOException;
+
+    /**
+     * Called instead of {@link #compared(java.nio.file.Path, java.util.List)
+     * } for pairs of which the result was carried over from a previous run
+     *
+     * @param relativePath relative path of the pair
+     * @param differenceCount number of differences found in the previous run
+     * @throws IOException if the outcome cannot be passed on
+     */
+    void carried(Path relativePath, int differenceCount) throws IOException;
+
+    /**
+     *
+     * @param relativePath relative path of a source file that has no
+     * counterpart in the target hierarchy
+     * @throws IOException if the outcome cannot be passed on
+     */
+    void targetMissing(Path relativePath) throws IOException;
+
+    /**
+     *
+     * @param relativePath relative path of the pair
+     * @param error exception that prevented the comparison
+     * @throws IOException if the outcome cannot be passed on
+     */
+    void failed(Path relativePath, Exception error) throws IOException;
+}
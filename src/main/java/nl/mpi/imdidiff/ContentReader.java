@@ -0,0 +1,112 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.io.ByteSource;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import nl.mpi.imdidiff.util.ByteBufferInputStream;
+
+/**
+ * Provides the content of the files that get compared. The differs read all
+ * files through a content reader, so that the content can come from elsewhere
+ * than directly from the file system, e.g. from memory after it has been read
+ * ahead (see {@link PrefetchingContentReader}). Files are still identified by
+ * their paths, which the differs need for the exclude rules and to describe
+ * differences.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public abstract class ContentReader {
+
+    /**
+     * Reads directly from the file system, as the differs did before there
+     * were content readers
+     */
+    public static final ContentReader FILE_SYSTEM = new ContentReader() {
+
+        @Override
+        public ByteBuffer read(Path file) throws IOException {
+            return ByteBuffer.wrap(Files.readAllBytes(file));
+        }
+
+        @Override
+        public Reader openReader(Path file) throws IOException {
+            // streams the file rather than reading it into memory first
+            return Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean contentEquals(Path file1, Path file2) throws IOException {
+            return Files.size(file1) == Files.size(file2) && asByteSource(file1).contentEquals(asByteSource(file2));
+        }
+    };
+
+    /**
+     * @return byte source of a file on any file system (e.g. in a zip
+     * archive)
+     */
+    private static ByteSource asByteSource(final Path file) {
+        return new ByteSource() {
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return Files.newInputStream(file);
+            }
+        };
+    }
+
+    /**
+     *
+     * @param file file to read
+     * @return complete content of the file, positioned at its start; the
+     * buffer is not shared with other callers (but its backing array or
+     * mapping may be), so it must not be modified
+     * @throws IOException if the file cannot be read
+     */
+    public abstract ByteBuffer read(Path file) throws IOException;
+
+    /**
+     *
+     * @param file file to read
+     * @return reader of the content of the file as UTF-8, which reports
+     * malformed input
+     * @throws IOException if the file cannot be read
+     */
+    public Reader openReader(Path file) throws IOException {
+        return new BufferedReader(new InputStreamReader(new ByteBufferInputStream(read(file)), StandardCharsets.UTF_8.newDecoder()));
+    }
+
+    /**
+     *
+     * @param file1 a file
+     * @param file2 another file
+     * @return whether both files have the same content
+     * @throws IOException if either file cannot be read
+     */
+    public boolean contentEquals(Path file1, Path file2) throws IOException {
+        // compares the remaining content
+        return read(file1).equals(read(file2));
+    }
+
+    /**
+     *
+     * @param content content as returned by {@link #read(java.nio.file.Path) }
+     * @return the content as a byte array; the backing array of the buffer if
+     * it exactly holds the content, otherwise a copy
+     */
+    public static byte[] toByteArray(ByteBuffer content) {
+        if (content.hasArray() && content.arrayOffset() == 0 && content.position() == 0
+                && content.remaining() == content.array().length) {
+            return content.array();
+        }
+        final byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+        return bytes;
+    }
+}
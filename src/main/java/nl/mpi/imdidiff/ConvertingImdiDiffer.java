@@ -0,0 +1,108 @@
+package nl.mpi.imdidiff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import nl.mpi.imdidiff.metrics.Phase;
+import nl.mpi.imdidiff.util.StylesheetRegistry;
+
+/**
+ * Differ that compares IMDI documents to the IMDI documents that result from
+ * the conversion of CMDI documents, converting each CMDI document in memory
+ * right before it gets normalised. This gives the same results as converting
+ * the CMDI hierarchy to IMDI files first (e.g. with
+ * {@link nl.mpi.imdidiff.util.RecursiveTransformer}) and comparing to these
+ * with a {@link NormalisingImdiDiffer}, without writing and reading back the
+ * converted files. The converted documents can optionally be written to an
+ * output hierarchy as well.
+ *
+ * Instances are not thread safe; use one instance per thread.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class ConvertingImdiDiffer extends NormalisingImdiDiffer {
+
+    private final Path conversionStylesheet;
+    private final Path targetRoot;
+    private final Path outputRoot;
+    private Transformer converter;
+
+    /**
+     *
+     * @param ignoreRules rules for differences to ignore
+     * @param lookupResolver resolver for the lookup documents referenced from
+     * the normalisation stylesheet
+     * @param cache cache for normalised documents, can be null
+     * @param conversionStylesheet stylesheet that converts CMDI to IMDI
+     * @param targetRoot root of the CMDI hierarchy that targets are taken from
+     * @param outputRoot root of the hierarchy to write converted documents to
+     * (by the relative path of the CMDI document, with an IMDI extension); can
+     * be null to not write them
+     */
+    public ConvertingImdiDiffer(IgnoreRules ignoreRules, URIResolver lookupResolver, NormalisedDocumentCache cache, Path conversionStylesheet, Path targetRoot, Path outputRoot) {
+        super(ignoreRules, lookupResolver, cache);
+        this.conversionStylesheet = conversionStylesheet;
+        this.targetRoot = targetRoot;
+        this.outputRoot = outputRoot;
+    }
+
+    @Override
+    public void initialise() {
+        super.initialise();
+        try {
+            converter = StylesheetRegistry.getTemplates(conversionStylesheet).newTransformer();
+        } catch (TransformerConfigurationException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Reads source documents as they are; converts target documents
+     *
+     * @param input file to read
+     * @param phase phase of the normalisation that the content is for
+     * @return content of a source file, or converted content of a target
+     * file
+     * @throws IOException if the file cannot be read or the converted content
+     * cannot be written
+     * @throws TransformerException if the conversion fails
+     */
+    @Override
+    protected byte[] read(Path input, Phase phase) throws IOException, TransformerException {
+        final byte[] content = super.read(input, phase);
+        if (phase != Phase.NORMALISE_TARGET) {
+            return content;
+        }
+
+        final long start = startTiming();
+        final ByteArrayOutputStream converted = new ByteArrayOutputStream(content.length);
+        converter.transform(
+                new StreamSource(new ByteArrayInputStream(content), input.toUri().toString()),
+                new StreamResult(converted));
+        recordTiming(Phase.CONVERT, start);
+
+        final byte[] convertedContent = converted.toByteArray();
+        if (outputRoot != null) {
+            write(input, convertedContent);
+        }
+        return convertedContent;
+    }
+
+    private void write(Path input, byte[] content) throws IOException {
+        // same relative path, but with the extension of an IMDI file
+        final Path relativePath = targetRoot.relativize(input);
+        final String name = relativePath.getFileName().toString();
+        final int extension = name.lastIndexOf('.');
+        final Path output = outputRoot.resolve(RunManifest.toKey(relativePath)).resolveSibling((extension > 0 ? name.substring(0, extension) : name) + ImdiDiffVisitor.IMDI_EXTENSION);
+        Files.createDirectories(output.getParent());
+        Files.write(output, content);
+    }
+}
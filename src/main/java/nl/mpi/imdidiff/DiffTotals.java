@@ -0,0 +1,59 @@
+package nl.mpi.imdidiff;
+
+/**
+ * Totals of a run over a pair of hierarchies
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class DiffTotals {
+
+    private final int fileCount;
+    private final int diffFileCount;
+    private final int diffCount;
+    private final int failedCount;
+
+    public DiffTotals(int fileCount, int diffFileCount, int diffCount) {
+        this(fileCount, diffFileCount, diffCount, 0);
+    }
+
+    public DiffTotals(int fileCount, int diffFileCount, int diffCount, int failedCount) {
+        this.fileCount = fileCount;
+        this.diffFileCount = diffFileCount;
+        this.diffCount = diffCount;
+        this.failedCount = failedCount;
+    }
+
+    /**
+     * @return number of source files encountered
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return number of source files for which differences were found
+     */
+    public int getDiffFileCount() {
+        return diffFileCount;
+    }
+
+    /**
+     * @return total number of differences found
+     */
+    public int getDiffCount() {
+        return diffCount;
+    }
+
+    /**
+     * @return number of source files that could not be compared, because
+     * either file could not be processed or the target file does not exist
+     */
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d differences in %d of %d files", diffCount, diffFileCount, fileCount);
+    }
+}
@@ -0,0 +1,307 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.collect.Ordering;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the differences found in a walk by location: the XPath of the
+ * difference without positional predicates (e.g.
+ * <code>/METATRANSCRIPT/Session/MDGroup/Actors/Actor/Name/text()</code>)
+ * combined with the difference ID. This gives a compact picture of which kinds
+ * of differences dominate a run, e.g. to tune the exclude list, without
+ * keeping the differences themselves.
+ *
+ * <p>
+ * Every location gets interned once; counters are kept in primitive arrays
+ * indexed by location, together with a few example files. The number of
+ * locations is capped, so memory use does not grow with the number of
+ * differences. Instances are not thread safe; as a
+ * {@link ComparisonListener} they get called on the walking thread only.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+class DifferenceAggregator implements ComparisonListener {
+
+    /**
+     * Maximum number of distinct locations; differences at further locations
+     * are only counted in total
+     */
+    private static final int MAX_LOCATIONS = 100000;
+    /**
+     * Number of example files kept per location
+     */
+    private static final int MAX_EXAMPLES = 3;
+    private static final int INITIAL_CAPACITY = 256;
+    private static final String NO_LOCATION = "-";
+
+    private final Path sourceRoot;
+    private final Map<String, Integer> locationIndexes = new HashMap<>();
+    private String[] locations = new String[INITIAL_CAPACITY];
+    private int[] ids = new int[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private int[] fileCounts = new int[INITIAL_CAPACITY];
+    private int[] lastFiles = new int[INITIAL_CAPACITY];
+    private Path[][] examples = new Path[INITIAL_CAPACITY][];
+    private int size = 0;
+
+    private int fileCount = 0;
+    private int diffFileCount = 0;
+    private long diffCount = 0;
+    private long overflowCount = 0;
+    private int carriedFileCount = 0;
+    private long carriedCount = 0;
+
+    /**
+     *
+     * @param sourceRoot root of the source hierarchy, to resolve example
+     * files against in the candidate exclude rules
+     */
+    public DifferenceAggregator(Path sourceRoot) {
+        this.sourceRoot = sourceRoot;
+    }
+
+    @Override
+    public void compared(Path relativePath, List<ImdiDifference> differences) {
+        fileCount++;
+        if (differences.isEmpty()) {
+            return;
+        }
+        diffFileCount++;
+        diffCount += differences.size();
+
+        final StringBuilder key = new StringBuilder();
+        for (ImdiDifference difference : differences) {
+            final String xpath = difference.getControlPath() == null ? difference.getTestPath() : difference.getControlPath();
+            key.setLength(0);
+            key.append(difference.getId()).append(' ');
+            appendLocation(key, xpath);
+
+            final int index = getIndex(key, difference.getId());
+            if (index < 0) {
+                overflowCount++;
+                continue;
+            }
+            counts[index]++;
+            if (lastFiles[index] != fileCount) {
+                // first difference at this location in this file
+                lastFiles[index] = fileCount;
+                fileCounts[index]++;
+                if (fileCounts[index] <= MAX_EXAMPLES) {
+                    examples[index][fileCounts[index] - 1] = relativePath;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void carried(Path relativePath, int differenceCount) {
+        fileCount++;
+        if (differenceCount > 0) {
+            // individual differences are not known
+            carriedFileCount++;
+            carriedCount += differenceCount;
+        }
+    }
+
+    @Override
+    public void targetMissing(Path relativePath) {
+        fileCount++;
+    }
+
+    @Override
+    public void failed(Path relativePath, Exception error) {
+        fileCount++;
+    }
+
+    /**
+     *
+     * @param key ID and location
+     * @param id ID of the difference
+     * @return index of the location, -1 if it is new and the maximum number
+     * of locations has been reached
+     */
+    private int getIndex(StringBuilder key, int id) {
+        final String keyString = key.toString();
+        final Integer index = locationIndexes.get(keyString);
+        if (index != null) {
+            return index;
+        } else if (size == MAX_LOCATIONS) {
+            return -1;
+        }
+
+        if (size == locations.length) {
+            final int capacity = Math.min(size * 2, MAX_LOCATIONS);
+            locations = Arrays.copyOf(locations, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            fileCounts = Arrays.copyOf(fileCounts, capacity);
+            lastFiles = Arrays.copyOf(lastFiles, capacity);
+            examples = Arrays.copyOf(examples, capacity);
+        }
+        locationIndexes.put(keyString, size);
+        locations[size] = keyString.substring(keyString.indexOf(' ') + 1);
+        ids[size] = id;
+        examples[size] = new Path[MAX_EXAMPLES];
+        return size++;
+    }
+
+    /**
+     * Appends an XPath without its positional predicates (e.g.
+     * <code>/a[1]/b[12]/@c</code> becomes <code>/a/b/@c</code>)
+     *
+     * @param builder builder to append to
+     * @param xpath XPath to append, can be null
+     */
+    static void appendLocation(StringBuilder builder, String xpath) {
+        if (xpath == null) {
+            builder.append(NO_LOCATION);
+            return;
+        }
+        final int length = xpath.length();
+        for (int i = 0; i < length; i++) {
+            final char c = xpath.charAt(i);
+            if (c == '[') {
+                int end = i + 1;
+                while (end < length && Character.isDigit(xpath.charAt(end))) {
+                    end++;
+                }
+                if (end > i + 1 && end < length && xpath.charAt(end) == ']') {
+                    i = end;
+                    continue;
+                }
+            }
+            builder.append(c);
+        }
+    }
+
+    /**
+     * Turns a location into an expression for an exclude list, matching the
+     * XPaths with any position
+     *
+     * @param location XPath without positional predicates
+     * @return regular expression for the location
+     */
+    static String toExpression(String location) {
+        final StringBuilder expression = new StringBuilder();
+        for (String step : location.substring(1).split("/", -1)) {
+            expression.append('/');
+            for (char c : step.toCharArray()) {
+                if (".\\[](){}*+?^$|".indexOf(c) >= 0) {
+                    expression.append('\\');
+                }
+                expression.append(c);
+            }
+            if (!step.startsWith("@")) {
+                expression.append("(\\[\\d+\\])?");
+            }
+        }
+        return expression.toString();
+    }
+
+    /**
+     * @return number of distinct locations
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @param limit maximum number of locations to return
+     * @return indexes of the locations with the most differences, most first
+     */
+    private List<Integer> getTop(int limit) {
+        final List<Integer> indexes = new AbstractList<Integer>() {
+
+            @Override
+            public Integer get(int index) {
+                return index;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+        return new Ordering<Integer>() {
+
+            @Override
+            public int compare(Integer left, Integer right) {
+                return Long.compare(counts[left], counts[right]);
+            }
+        }.greatestOf(indexes, limit);
+    }
+
+    /**
+     * Writes the locations with the most differences, with the number of
+     * differences and of files, the difference ID and some example files
+     *
+     * @param file file to write to, will be replaced
+     * @param limit maximum number of locations to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeSummary(Path file, int limit) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(String.format("# %d differences in %d of %d files at %d locations; top %d by number of differences",
+                    diffCount, diffFileCount, fileCount, size, Math.min(limit, size)));
+            writer.newLine();
+            if (overflowCount > 0) {
+                writer.write(String.format("# %d differences at further locations not counted separately", overflowCount));
+                writer.newLine();
+            }
+            if (carriedFileCount > 0) {
+                writer.write(String.format("# %d differences in %d files carried over from a previous run not included", carriedCount, carriedFileCount));
+                writer.newLine();
+            }
+            writer.write("# differences\tfiles\tID\tlocation\texamples");
+            writer.newLine();
+            for (int index : getTop(limit)) {
+                writer.write(String.format("%d\t%d\tID%d\t%s", counts[index], fileCounts[index], ids[index], locations[index]));
+                for (Path example : examples[index]) {
+                    if (example != null) {
+                        writer.write('\t');
+                        writer.write(RunManifest.toKey(example));
+                    }
+                }
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Writes exclude list rules that would exclude the differences at the
+     * locations with the most differences from the example files of these
+     * locations. These are candidates to review and extend to other files,
+     * not rules to apply as they are.
+     *
+     * @param file file to write to, will be replaced
+     * @param limit maximum number of locations to write rules for
+     * @throws IOException if the file cannot be written
+     */
+    public void writeCandidateRules(Path file, int limit) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int index : getTop(limit)) {
+                if (NO_LOCATION.equals(locations[index])) {
+                    // cannot be excluded by path
+                    continue;
+                }
+                final String rule = "ID" + ids[index] + ":" + toExpression(locations[index]);
+                for (Path example : examples[index]) {
+                    if (example != null) {
+                        writer.write(Archives.toDefaultPath(sourceRoot.resolve(RunManifest.toKey(example))).toAbsolutePath().normalize() + " " + rule);
+                        writer.newLine();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.custommonkey.xmlunit.XMLConstants;
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Computes canonical hashes of DOM trees. Two trees that have the same hash
+ * are equal with respect to the comparison options of
+ * {@link XMLUnitComparator}, i.e. comments, whitespace-only text, namespace
+ * prefixes and attribute order do not contribute to the hash. The hash is
+ * stricter than the comparison in other respects (e.g. whitespace within text
+ * is not normalised), so differing hashes do not imply that documents are
+ * dissimilar.
+ *
+ * <p>
+ * Besides the hash of an entire tree, the hashes of all element subtrees can
+ * be computed in a single bottom-up pass (see {@link #hashSubtrees(org.w3c.dom.Node)
+ * }): the hash of an element is computed from its name, its attributes and
+ * the hashes of its children in document order, so that two elements with the
+ * same hash have equal subtrees.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class DocumentHasher {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    // markers that keep the structure of the tree unambiguous in the hash
+    private static final byte ELEMENT_START = 1;
+    private static final byte ELEMENT_END = 2;
+    private static final byte ATTRIBUTE = 3;
+    private static final byte TEXT = 4;
+    private static final byte PROCESSING_INSTRUCTION = 5;
+
+    private static final Comparator<Node> ATTRIBUTE_ORDER = new Comparator<Node>() {
+
+        @Override
+        public int compare(Node o1, Node o2) {
+            final int result = nullToEmpty(o1.getNamespaceURI()).compareTo(nullToEmpty(o2.getNamespaceURI()));
+            if (result == 0) {
+                return getLocalName(o1).compareTo(getLocalName(o2));
+            } else {
+                return result;
+            }
+        }
+    };
+
+    /**
+     *
+     * @param node node to hash, typically a document
+     * @return canonical hash of the node and all of its descendants
+     */
+    public HashCode hash(Node node) {
+        final Hasher hasher = HASH_FUNCTION.newHasher();
+        putNode(hasher, node);
+        return hasher.hash();
+    }
+
+    /**
+     * Computes the hashes of all element subtrees of a tree. The hash of the
+     * document element equals neither the hash of the document returned by
+     * {@link #hash(org.w3c.dom.Node) } nor that of another representation of
+     * the same tree, so only compare hashes obtained from this method.
+     *
+     * @param node root of the tree, typically a document
+     * @return canonical hash of each element in the tree (including the node
+     * itself if it is an element), by element identity
+     */
+    public Map<Node, HashCode> hashSubtrees(Node node) {
+        final Map<Node, HashCode> hashes = new IdentityHashMap<>();
+        if (node.getNodeType() == Node.ELEMENT_NODE) {
+            putSubtree(node, hashes);
+        } else {
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    putSubtree(child, hashes);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    private HashCode putSubtree(Node element, Map<Node, HashCode> hashes) {
+        final Hasher hasher = HASH_FUNCTION.newHasher();
+        hasher.putByte(ELEMENT_START);
+        putName(hasher, element);
+        putAttributes(hasher, element);
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                // children contribute by their own hash, which makes this bottom-up
+                hasher.putByte(ELEMENT_START);
+                hasher.putBytes(putSubtree(child, hashes).asBytes());
+            } else {
+                putNode(hasher, child);
+            }
+        }
+        hasher.putByte(ELEMENT_END);
+        final HashCode hash = hasher.hash();
+        hashes.put(element, hash);
+        return hash;
+    }
+
+    private void putNode(Hasher hasher, Node node) {
+        switch (node.getNodeType()) {
+            case Node.DOCUMENT_NODE:
+                putChildren(hasher, node);
+                break;
+            case Node.ELEMENT_NODE:
+                hasher.putByte(ELEMENT_START);
+                putName(hasher, node);
+                putAttributes(hasher, node);
+                putChildren(hasher, node);
+                hasher.putByte(ELEMENT_END);
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                final String text = node.getNodeValue();
+                if (!text.trim().isEmpty()) {
+                    hasher.putByte(TEXT);
+                    putString(hasher, text);
+                }
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                hasher.putByte(PROCESSING_INSTRUCTION);
+                putString(hasher, node.getNodeName());
+                putString(hasher, node.getNodeValue());
+                break;
+            default:
+                // comments, document type etc.
+                break;
+        }
+    }
+
+    private void putChildren(Hasher hasher, Node node) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            putNode(hasher, child);
+        }
+    }
+
+    private void putAttributes(Hasher hasher, Node element) {
+        final NamedNodeMap attributeMap = element.getAttributes();
+        final Node[] attributes = new Node[attributeMap.getLength()];
+        int count = 0;
+        for (int i = 0; i < attributes.length; i++) {
+            final Attr attribute = (Attr) attributeMap.item(i);
+            if (!isNamespaceDeclaration(attribute)) {
+                attributes[count++] = attribute;
+            }
+        }
+        Arrays.sort(attributes, 0, count, ATTRIBUTE_ORDER);
+        for (int i = 0; i < count; i++) {
+            hasher.putByte(ATTRIBUTE);
+            putName(hasher, attributes[i]);
+            putString(hasher, attributes[i].getNodeValue());
+            if (isSchemaType(attributes[i])) {
+                // the comparison resolves the prefix of the type name
+                putString(hasher, nullToEmpty(getTypeNamespace(element, attributes[i].getNodeValue())));
+            }
+        }
+    }
+
+    private static void putName(Hasher hasher, Node node) {
+        putString(hasher, nullToEmpty(node.getNamespaceURI()));
+        putString(hasher, getLocalName(node));
+    }
+
+    private static void putString(Hasher hasher, String value) {
+        hasher.putInt(value.length());
+        hasher.putString(value, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isNamespaceDeclaration(Attr attribute) {
+        return "http://www.w3.org/2000/xmlns/".equals(attribute.getNamespaceURI())
+                || attribute.getName().equals("xmlns")
+                || attribute.getName().startsWith("xmlns:");
+    }
+
+    private static boolean isSchemaType(Node attribute) {
+        return XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals(attribute.getNamespaceURI())
+                && XMLConstants.W3C_XML_SCHEMA_INSTANCE_TYPE_ATTR.equals(attribute.getLocalName());
+    }
+
+    private static String getTypeNamespace(Node element, String typeName) {
+        final int colon = typeName.indexOf(':');
+        return element.lookupNamespaceURI(colon < 0 ? null : typeName.substring(0, colon));
+    }
+
+    private static String getLocalName(Node node) {
+        final String localName = node.getLocalName();
+        return localName == null ? node.getNodeName() : localName;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
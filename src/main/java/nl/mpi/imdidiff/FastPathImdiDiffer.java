@@ -0,0 +1,117 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import javax.xml.transform.TransformerException;
+import nl.mpi.imdidiff.metrics.Phase;
+import nl.mpi.imdidiff.metrics.RunMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Differ that tries to establish equality of a pair cheaply before handing it
+ * over to another differ:
+ * <ol>
+ * <li>if both files have the same size and the same content, there are no
+ * differences</li>
+ * <li>if the delegate is a {@link NormalisingImdiDiffer}, both files get
+ * normalised and there are no differences if the canonical hashes of the
+ * results are equal (see {@link DocumentHasher}); otherwise the normalised
+ * documents are compared without normalising again</li>
+ * </ol>
+ * Pairs that are not settled by either of these are compared by the delegate.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class FastPathImdiDiffer implements ImdiDiffer {
+
+    private final static Logger logger = LoggerFactory.getLogger(FastPathImdiDiffer.class);
+
+    private final ImdiDiffer delegate;
+    private final FastPathStatistics statistics;
+    private final DocumentHasher hasher = new DocumentHasher();
+    private RunMetrics metrics;
+    private ContentReader contentReader = ContentReader.FILE_SYSTEM;
+
+    /**
+     *
+     * @param delegate differ for pairs that are not equal
+     * @param statistics counters to update
+     */
+    public FastPathImdiDiffer(ImdiDiffer delegate, FastPathStatistics statistics) {
+        this.delegate = delegate;
+        this.statistics = statistics;
+    }
+
+    /**
+     *
+     * @param metrics metrics to record the time spent on the fast path in, can
+     * be null; set the same metrics on the delegate to also get its phases
+     * recorded
+     */
+    public void setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     *
+     * @param contentReader reader to read the files to compare through; set the
+     * same reader on the delegate
+     * (default {@link ContentReader#FILE_SYSTEM})
+     */
+    public void setContentReader(ContentReader contentReader) {
+        this.contentReader = contentReader;
+    }
+
+    @Override
+    public void initialise() {
+        delegate.initialise();
+    }
+
+    @Override
+    public List<ImdiDifference> compare(Path source, Path target) throws IOException, SAXException, TransformerException {
+        long start = startTiming();
+        final boolean identical = contentReader.contentEquals(source, target);
+        recordTiming(start);
+        if (identical) {
+            logger.trace("Identical content: {} and {}", source, target);
+            statistics.rawHit();
+            return ImmutableList.of();
+        }
+
+        if (delegate instanceof NormalisingImdiDiffer) {
+            final NormalisingImdiDiffer normalisingDiffer = (NormalisingImdiDiffer) delegate;
+            final Document normalisedSource = normalisingDiffer.normalise(source, Phase.NORMALISE_SOURCE);
+            final Document normalisedTarget = normalisingDiffer.normalise(target, Phase.NORMALISE_TARGET);
+            start = startTiming();
+            final boolean equal = hasher.hash(normalisedSource).equals(hasher.hash(normalisedTarget));
+            recordTiming(start);
+            if (equal) {
+                logger.trace("Equal after normalisation: {} and {}", source, target);
+                statistics.normalisedHit();
+                return ImmutableList.of();
+            } else {
+                statistics.miss();
+                return normalisingDiffer.compareNormalised(source, normalisedSource, normalisedTarget);
+            }
+        } else {
+            statistics.miss();
+            return delegate.compare(source, target);
+        }
+    }
+
+    private long startTiming() {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+
+    private void recordTiming(long start) {
+        if (metrics != null) {
+            metrics.record(Phase.FAST_PATH, System.nanoTime() - start);
+        }
+    }
+
+}
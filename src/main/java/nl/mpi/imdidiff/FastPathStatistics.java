@@ -0,0 +1,71 @@
+package nl.mpi.imdidiff;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe counters for the outcomes of the {@link FastPathImdiDiffer}
+ * stages. A single instance can be shared by the differs of all worker
+ * threads.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class FastPathStatistics {
+
+    private final AtomicLong rawHits = new AtomicLong();
+    private final AtomicLong normalisedHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    void rawHit() {
+        rawHits.incrementAndGet();
+    }
+
+    void normalisedHit() {
+        normalisedHits.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Adds counts recorded elsewhere, e.g. in the results of another shard
+     *
+     * @param rawHits number of pairs found equal by their raw content
+     * @param normalisedHits number of pairs found equal after normalisation
+     * @param misses number of pairs that needed a full comparison
+     */
+    void add(long rawHits, long normalisedHits, long misses) {
+        this.rawHits.addAndGet(rawHits);
+        this.normalisedHits.addAndGet(normalisedHits);
+        this.misses.addAndGet(misses);
+    }
+
+    /**
+     * @return number of pairs found equal by comparing their raw content
+     */
+    public long getRawHits() {
+        return rawHits.get();
+    }
+
+    /**
+     * @return number of pairs found equal by comparing the hashes of their
+     * normalised content
+     */
+    public long getNormalisedHits() {
+        return normalisedHits.get();
+    }
+
+    /**
+     * @return number of pairs that needed a full comparison
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d identical, %d equal after normalisation, %d fully compared",
+                getRawHits(), getNormalisedHits(), getMisses());
+    }
+
+}
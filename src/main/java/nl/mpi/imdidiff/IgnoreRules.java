@@ -0,0 +1,232 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiled index of the rules in an exclude list. Every line of the list
+ * consists of a file path, optionally followed by whitespace and a rule of the
+ * form <code>[ID:]expression</code>, where the expression is either
+ * {@value ImdiDiffer#SKIP_WILDCARD} (matches everything) or a regular
+ * expression that has to match the entire node path. Rules with an ID prefix
+ * (e.g. <code>ID14</code>) only apply to differences with that ID; a line with
+ * only a file path excludes the entire file. Blank lines are skipped, as are
+ * lines that do not start with a file path (with a warning).
+ *
+ * <p>
+ * Rules are indexed by normalised absolute path and, per file, by difference
+ * ID; all expressions that apply to an ID are merged into a single
+ * precompiled pattern. Instances are immutable and thread safe.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class IgnoreRules {
+
+    private final static Logger logger = LoggerFactory.getLogger(IgnoreRules.class);
+
+    private static final IgnoreRules EMPTY = new IgnoreRules(ImmutableMap.<Path, FileRules>of(), 0);
+
+    private final Map<Path, FileRules> rules;
+    private final int size;
+
+    private IgnoreRules(Map<Path, FileRules> rules, int size) {
+        this.rules = rules;
+        this.size = size;
+    }
+
+    /**
+     * @return rules that match nothing
+     */
+    public static IgnoreRules empty() {
+        return EMPTY;
+    }
+
+    /**
+     *
+     * @param lines lines of an exclude list
+     * @return compiled rules
+     * @throws java.util.regex.PatternSyntaxException if any expression is not
+     * a valid regular expression
+     */
+    public static IgnoreRules parse(List<String> lines) {
+        final ListMultimap<Path, String> expressions = ArrayListMultimap.create();
+        for (int i = 0; i < lines.size(); i++) {
+            final String line = lines.get(i);
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            final String[] tokens = line.split("\\s", 2);
+            if (tokens[0].isEmpty()) {
+                // an empty path would resolve to the working directory and exclude all of it
+                logger.warn("Ignoring line {} of exclude list, which does not start with a file path: {}", i + 1, line);
+                continue;
+            }
+            final Path path = normalise(FileSystems.getDefault().getPath(tokens[0]));
+            expressions.put(path, tokens.length == 1 ? ImdiDiffer.SKIP_WILDCARD : tokens[1]);
+        }
+
+        final Map<Path, FileRules> rules = new HashMap<>();
+        for (Path path : expressions.keySet()) {
+            rules.put(path, FileRules.compile(expressions.get(path)));
+        }
+        return new IgnoreRules(rules, expressions.size());
+    }
+
+    /**
+     * @return number of rules
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Looks up the rules that apply to a single file; when testing many node
+     * paths for the same file, look up once and use
+     * {@link FileRules#matches(java.lang.String, java.lang.String) }
+     *
+     * @param source file to get the rules for
+     * @return rules for the file (never null)
+     */
+    public FileRules forFile(Path source) {
+        final FileRules fileRules = rules.isEmpty() ? null : rules.get(normalise(source));
+        return fileRules == null ? FileRules.NONE : fileRules;
+    }
+
+    /**
+     *
+     * @param source file the node path applies to
+     * @param nodePath node path to test, null paths never match
+     * @param code ID of the difference, can be null
+     * @return whether there is a rule for the file that matches the path
+     */
+    public boolean matches(Path source, String nodePath, String code) {
+        return forFile(source).matches(nodePath, code);
+    }
+
+    /**
+     *
+     * @param source file or directory
+     * @return whether the file or directory should be skipped entirely
+     */
+    public boolean skipsFile(Path source) {
+        return forFile(source).matches(ImdiDiffer.SKIP_WILDCARD, null);
+    }
+
+    private static Path normalise(Path path) {
+        // files in zip archives are referred to by the path of the archive and the entry
+        return Archives.toDefaultPath(path).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Rules for a single file
+     */
+    public static class FileRules {
+
+        private static final FileRules NONE = new FileRules(null, ImmutableMap.<String, Pattern>of(), false);
+
+        /**
+         * Applies to all codes, null if there are no such rules
+         */
+        private final Pattern generalPattern;
+        /**
+         * Per code, merged with the general expressions
+         */
+        private final Map<String, Pattern> codePatterns;
+        /**
+         * Whether there is a wildcard rule that applies to all codes
+         */
+        private final boolean matchesAll;
+
+        private FileRules(Pattern generalPattern, Map<String, Pattern> codePatterns, boolean matchesAll) {
+            this.generalPattern = generalPattern;
+            this.codePatterns = codePatterns;
+            this.matchesAll = matchesAll;
+        }
+
+        private static FileRules compile(Collection<String> rules) {
+            final ListMultimap<String, String> codeExpressions = ArrayListMultimap.create();
+            final List<String> generalExpressions = new ArrayList<>();
+            for (String rule : rules) {
+                final String[] tokens = rule.split(":", 2);
+                if (tokens.length == 2) {
+                    codeExpressions.put(tokens[0], tokens[1]);
+                } else {
+                    generalExpressions.add(tokens[0]);
+                }
+            }
+
+            final boolean matchesAll = generalExpressions.contains(ImdiDiffer.SKIP_WILDCARD);
+            final Map<String, Pattern> codePatterns = new LinkedHashMap<>();
+            for (String code : codeExpressions.keySet()) {
+                final List<String> expressions = new ArrayList<>(codeExpressions.get(code));
+                expressions.addAll(generalExpressions);
+                codePatterns.put(code, merge(expressions));
+            }
+            return new FileRules(merge(generalExpressions), codePatterns, matchesAll);
+        }
+
+        /**
+         *
+         * @param expressions expressions to merge
+         * @return pattern that matches if any of the expressions matches, one
+         * that matches anything if any of the expressions is the wildcard and
+         * null if there are no expressions
+         */
+        private static Pattern merge(List<String> expressions) {
+            if (expressions.isEmpty()) {
+                return null;
+            } else if (expressions.contains(ImdiDiffer.SKIP_WILDCARD)) {
+                return Pattern.compile(".*", Pattern.DOTALL);
+            } else if (expressions.size() == 1) {
+                return Pattern.compile(expressions.get(0));
+            } else {
+                // validate individually, so that errors refer to the original expression
+                for (String expression : expressions) {
+                    Pattern.compile(expression);
+                }
+                return Pattern.compile("(?:" + Joiner.on(")|(?:").join(expressions) + ")");
+            }
+        }
+
+        /**
+         *
+         * @param difference difference to test
+         * @return whether there is a rule that matches the control or test
+         * path of the difference
+         */
+        public boolean matches(ImdiDifference difference) {
+            final String code = "ID" + difference.getId();
+            return matches(difference.getControlPath(), code) || matches(difference.getTestPath(), code);
+        }
+
+        /**
+         *
+         * @param nodePath node path to test, null paths never match
+         * @param code ID of the difference, can be null
+         * @return whether there is a rule that matches the path
+         */
+        public boolean matches(String nodePath, String code) {
+            if (nodePath == null) {
+                return false;
+            } else if (matchesAll) {
+                return true;
+            }
+            final Pattern codePattern = code == null ? null : codePatterns.get(code);
+            final Pattern pattern = codePattern == null ? generalPattern : codePattern;
+            return pattern != null && pattern.matcher(nodePath).matches();
+        }
+    }
+}
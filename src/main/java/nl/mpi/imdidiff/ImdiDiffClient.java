@@ -0,0 +1,135 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.base.Splitter;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line client of the {@link ImdiDiffServer}. Sends a single request
+ * and prints the differences that come back to standard output as they
+ * arrive, in the format of the log output of {@link ImdiDiffRunner}
+ * (<code>path: difference</code>); progress and totals go to standard error.
+ *
+ * <p>
+ * Exits with status 0 if the comparison completed, 1 on invalid arguments and
+ * 2 if the server could not be reached or could not handle the request.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class ImdiDiffClient {
+
+    private static final Splitter FIELD_SPLITTER = Splitter.on('\t');
+
+    public static void main(String[] args) {
+        final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        int port = ImdiDiffServer.DEFAULT_PORT;
+        boolean shutdown = false;
+        while (!arguments.isEmpty() && arguments.get(0).startsWith("--")) {
+            final String option = arguments.remove(0);
+            if ("--port".equals(option) && !arguments.isEmpty()) {
+                port = ImdiDiffRunner.getPositiveNumber(option, arguments.remove(0));
+            } else if ("--shutdown".equals(option)) {
+                shutdown = true;
+            } else {
+                printUsageAndExit();
+            }
+        }
+
+        final List<String> request = new ArrayList<>();
+        if (shutdown) {
+            if (!arguments.isEmpty()) {
+                printUsageAndExit();
+            }
+            request.add(ImdiDiffServer.REQUEST_SHUTDOWN);
+        } else {
+            if (arguments.size() < 2 || arguments.size() > 3) {
+                printUsageAndExit();
+            }
+            request.add(ImdiDiffServer.REQUEST_COMPARE);
+            // the server may run in another working directory
+            for (String path : arguments) {
+                request.add(FileSystems.getDefault().getPath(path).toAbsolutePath().toString());
+            }
+        }
+
+        try {
+            System.exit(send(port, request));
+        } catch (IOException ex) {
+            System.err.println(String.format("Could not reach server on port %d: %s", port, ex.getMessage()));
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Sends a request and prints the response
+     *
+     * @param port port of the server
+     * @param request fields of the request
+     * @return exit status
+     * @throws IOException if the connection fails
+     */
+    private static int send(int port, List<String> request) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            for (int i = 0; i < request.size(); i++) {
+                if (i > 0) {
+                    writer.write('\t');
+                }
+                writer.write(ImdiDiffServer.escape(request.get(i)));
+            }
+            writer.write('\n');
+            writer.flush();
+
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                final List<String> fields = new ArrayList<>();
+                for (String field : FIELD_SPLITTER.split(line)) {
+                    fields.add(ImdiDiffServer.unescape(field));
+                }
+                switch (fields.get(0)) {
+                    case ImdiDiffServer.RESPONSE_DIFF:
+                        System.out.println(fields.get(1) + ": " + fields.get(2));
+                        break;
+                    case ImdiDiffServer.RESPONSE_FILE:
+                        System.err.println(String.format("Found %s differences for %s", fields.get(2), fields.get(1)));
+                        break;
+                    case ImdiDiffServer.RESPONSE_MISSING:
+                        System.err.println(String.format("No matching file found in target directory for %s", fields.get(1)));
+                        break;
+                    case ImdiDiffServer.RESPONSE_ERROR:
+                        System.err.println(String.format("Could not compare %s: %s", fields.get(1), fields.get(2)));
+                        break;
+                    case ImdiDiffServer.RESPONSE_DONE:
+                        if (fields.size() > 3) {
+                            System.err.println(String.format("Total number of differences found: %s in %s of %s files", fields.get(3), fields.get(2), fields.get(1)));
+                        }
+                        return 0;
+                    case ImdiDiffServer.RESPONSE_FAIL:
+                        System.err.println("Server failed to handle request: " + fields.get(1));
+                        return 2;
+                    default:
+                        System.err.println("Unexpected response: " + line);
+                        break;
+                }
+            }
+        }
+        System.err.println("Connection closed before the request was completed");
+        return 2;
+    }
+
+    private static void printUsageAndExit() {
+        System.err.println("Usage: java " + ImdiDiffClient.class.getName() + " [--port N] imdi-src imdi-target [exclude-list-file]");
+        System.err.println("       java " + ImdiDiffClient.class.getName() + " [--port N] --shutdown");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,198 @@
+package nl.mpi.imdidiff;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the results of the runs over all shards of a pair of hierarchies (see
+ * {@link ImdiDiffRunner} options <code>--shard</code> and
+ * <code>--results</code>) into a single report. The report has the same
+ * content and totals as that of a single run over all files; pairs are
+ * reported in order of relative path, as in an indexed walk.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class ImdiDiffMerger {
+
+    // logs under the name of the visitor, so that the report reads like that of a single run
+    private final static Logger logger = LoggerFactory.getLogger(ImdiDiffVisitor.class);
+
+    private static final Comparator<ShardResults.Entry> KEY_ORDER = new Comparator<ShardResults.Entry>() {
+
+        @Override
+        public int compare(ShardResults.Entry e1, ShardResults.Entry e2) {
+            return e1.getKey().compareTo(e2.getKey());
+        }
+    };
+
+    /**
+     * @param args results files of all shards
+     * @throws IOException if a results file cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java " + ImdiDiffMerger.class.getName() + " results-file...");
+            System.exit(1);
+        }
+
+        final List<ShardResults> results = new ArrayList<>(args.length);
+        for (String arg : args) {
+            final Path file = FileSystems.getDefault().getPath(arg);
+            if (!Files.isReadable(file)) {
+                System.err.println(String.format("Could not read results file '%s'", file));
+                System.exit(3);
+            }
+            results.add(ShardResults.read(file));
+        }
+
+        try {
+            merge(results);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(3);
+        }
+    }
+
+    /**
+     * Logs the merged report of the results of all shards
+     *
+     * @param results complete results of every shard of a single run
+     * configuration, each shard exactly once
+     * @return totals over all shards
+     * @throws IllegalArgumentException if the results are incomplete or do not
+     * belong together
+     */
+    public static DiffTotals merge(List<ShardResults> results) {
+        checkShards(results);
+
+        final List<ShardResults.Entry> pairs = new ArrayList<>();
+        final List<ShardResults.Entry> targetOnly = new ArrayList<>();
+        int carriedCount = -1;
+        FastPathStatistics fastPathStatistics = new FastPathStatistics();
+        for (ShardResults shardResults : results) {
+            for (ShardResults.Entry entry : shardResults.getEntries()) {
+                if (entry.getType() == ShardResults.Type.MISSING_SOURCE) {
+                    targetOnly.add(entry);
+                } else {
+                    pairs.add(entry);
+                }
+            }
+            if (shardResults.getCarriedCount() >= 0) {
+                carriedCount = Math.max(carriedCount, 0) + shardResults.getCarriedCount();
+            }
+            final long[] fastPathCounts = shardResults.getFastPathCounts();
+            if (fastPathCounts == null) {
+                fastPathStatistics = null;
+            } else if (fastPathStatistics != null) {
+                fastPathStatistics.add(fastPathCounts[0], fastPathCounts[1], fastPathCounts[2]);
+            }
+        }
+        Collections.sort(pairs, KEY_ORDER);
+        Collections.sort(targetOnly, KEY_ORDER);
+
+        final int differenceLimit = results.get(0).getDifferenceLimit();
+        int diffCount = 0;
+        int diffFileCount = 0;
+        int missingTargetCount = 0;
+        int failedCount = 0;
+        int limitedCount = 0;
+        for (ShardResults.Entry entry : pairs) {
+            switch (entry.getType()) {
+                case COMPARED:
+                    if (entry.getCount() > 0) {
+                        if (differenceLimit > 0 && entry.getCount() >= differenceLimit) {
+                            limitedCount++;
+                            logger.info("Found {} differences for {} (stopped at limit)", entry.getCount(), entry.getKey());
+                        } else {
+                            logger.info("Found {} differences for {}", entry.getCount(), entry.getKey());
+                        }
+                        for (String difference : entry.getValues()) {
+                            logger.warn("{}: {}", entry.getKey(), difference);
+                        }
+                        diffFileCount++;
+                        diffCount += entry.getCount();
+                    }
+                    break;
+                case CARRIED:
+                    if (entry.getCount() > 0) {
+                        logger.info("Found {} differences for {} in previous run (unchanged since)", entry.getCount(), entry.getKey());
+                        diffFileCount++;
+                        diffCount += entry.getCount();
+                    }
+                    break;
+                case MISSING_TARGET:
+                    missingTargetCount++;
+                    logger.warn("No matching file found in target directory for {}\n\t(expected to find {})", entry.getValues().get(0), entry.getValues().get(1));
+                    break;
+                case FAILED:
+                    failedCount++;
+                    // the stack trace is not part of the results
+                    logger.error("{}\n{}", entry.getValues().get(0), entry.getValues().get(1));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected entry type " + entry.getType());
+            }
+        }
+
+        if (results.get(0).isIndexedWalk()) {
+            for (ShardResults.Entry entry : targetOnly) {
+                logger.warn("No matching file found in source directory for {}", entry.getValues().get(0));
+            }
+            logger.info("Files without counterpart: {} only in source, {} only in target", missingTargetCount, targetOnly.size());
+        }
+        logger.info("Total number of differences found: {} in {} of {} files", diffCount, diffFileCount, pairs.size());
+        if (limitedCount > 0) {
+            logger.info("Comparison of {} files stopped at {} differences, so the totals are lower bounds", limitedCount, differenceLimit);
+        }
+        if (carriedCount >= 0) {
+            logger.info("Results of {} unchanged files carried over from previous run", carriedCount);
+        }
+        if (fastPathStatistics != null) {
+            logger.info("Fast path: {}", fastPathStatistics);
+        }
+        return new DiffTotals(pairs.size(), diffFileCount, diffCount, failedCount + missingTargetCount);
+    }
+
+    private static void checkShards(List<ShardResults> results) {
+        if (results.isEmpty()) {
+            throw new IllegalArgumentException("No results to merge");
+        }
+        final ShardResults first = results.get(0);
+        final int count = first.getShard().getCount();
+        if (results.size() != count) {
+            throw new IllegalArgumentException(String.format("Expected results of %d shards, got %d", count, results.size()));
+        }
+        final Set<Integer> indexes = new HashSet<>();
+        for (ShardResults shardResults : results) {
+            final Shard shard = shardResults.getShard();
+            if (shard.getCount() != count) {
+                throw new IllegalArgumentException(String.format("Results of shard %s do not belong to a run over %d shards", shard, count));
+            }
+            if (!indexes.add(shard.getIndex())) {
+                throw new IllegalArgumentException(String.format("Results of shard %s occur more than once", shard));
+            }
+            if (!shardResults.isComplete()) {
+                throw new IllegalArgumentException(String.format("Results of shard %s are incomplete", shard));
+            }
+            if (shardResults.getDifferenceLimit() != first.getDifferenceLimit()) {
+                throw new IllegalArgumentException(String.format("Shards %s and %s were compared with different limits to the number of differences", shard, first.getShard()));
+            }
+            if (first.getFingerprint() == null ? shardResults.getFingerprint() != null : !first.getFingerprint().equals(shardResults.getFingerprint())) {
+                throw new IllegalArgumentException(String.format("Results of shard %s were written with a different configuration (differ, stylesheet, lookup documents, rules or exclude list) than those of shard %s", shard, first.getShard()));
+            }
+            if (shardResults.isIndexedWalk() != first.isIndexedWalk()) {
+                throw new IllegalArgumentException(String.format("Shards %s and %s were not walked in the same way", shard, first.getShard()));
+            }
+        }
+    }
+}
@@ -1,14 +1,24 @@
 package nl.mpi.imdidiff;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ImmutableListMultimap;
-import com.google.common.collect.Multimap;
+import com.google.common.base.Supplier;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.regex.PatternSyntaxException;
+import nl.mpi.imdidiff.metrics.MetricsReporter;
+import nl.mpi.imdidiff.metrics.RunMetrics;
+import nl.mpi.imdidiff.util.LookupDocumentResolver;
 
 /**
  *
@@ -16,102 +26,472 @@ import java.util.List;
  */
 public class ImdiDiffRunner {
 
+    private static final long DEFAULT_CACHE_SIZE_MB = 1024;
+    private static final int DEFAULT_METRICS_INTERVAL_SECONDS = 60;
+    private static final int DEFAULT_SUMMARY_SIZE = 100;
+    private static final int DEFAULT_READ_AHEAD_THREADS = 4;
+    private static final String CMDI_EXTENSION = ".cmdi";
+    private static final String DIFFER_NORMALISING = "normalising";
+    private static final String DIFFER_XMLUNIT = "xmlunit";
+    private static final String DIFFER_STREAMING = "streaming";
+    private static final List<String> DIFFER_TYPES = Arrays.asList(DIFFER_NORMALISING, DIFFER_XMLUNIT, DIFFER_STREAMING);
+
+    /**
+     * Options that make the exit status reflect the outcome of the comparison
+     */
+    private static final List<String> CHECK_OPTIONS = Arrays.asList("--first-difference", "--max-differences", "--count-only");
+    /**
+     * Exit status in check mode if differences were found
+     */
+    public static final int EXIT_DIFFERENCES = 4;
+    /**
+     * Exit status in check mode if no differences were found, but some files
+     * could not be compared
+     */
+    public static final int EXIT_INCOMPLETE = 5;
+
     /**
+     * Runs a comparison. With any of the options <code>--first-difference</code>,
+     * <code>--max-differences</code> and <code>--count-only</code> the exit
+     * status reflects the outcome: 0 if all pairs are similar,
+     * {@value #EXIT_DIFFERENCES} if differences were found and
+     * {@value #EXIT_INCOMPLETE} if no differences were found but not all
+     * source files could be compared.
+     *
      * @param args the command line arguments
      * @throws java.io.IOException in case of read failure or missing file
      */
     public static void main(String[] args) throws IOException {
-        if (args.length < 2 || args.length > 3) {
-            System.err.println("Usage: <jar> imdi-src imdi-target [exclude-list-file]");
-            System.exit(1);
+        final DiffTotals totals = run(args);
+        if (isCheck(args)) {
+            if (totals.getDiffCount() > 0) {
+                System.exit(EXIT_DIFFERENCES);
+            } else if (totals.getFailedCount() > 0) {
+                System.exit(EXIT_INCOMPLETE);
+            } else {
+                System.exit(0);
+            }
+        }
+    }
+
+    private static boolean isCheck(String[] args) {
+        for (String arg : args) {
+            if (CHECK_OPTIONS.contains(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs a comparison as configured by command line arguments (see
+     * {@link #main(java.lang.String[]) }); exits the JVM if the arguments are
+     * invalid
+     *
+     * @param args the command line arguments
+     * @return totals of the run
+     * @throws java.io.IOException in case of read failure or missing file
+     */
+    public static DiffTotals run(String[] args) throws IOException {
+        final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        int threads = 1;
+        Path lookupDirectory = null;
+        boolean fastPath = true;
+        boolean subtreeHashing = true;
+        boolean indexedWalk = false;
+        Path cacheDirectory = null;
+        long cacheSize = DEFAULT_CACHE_SIZE_MB;
+        long readAheadSize = 0;
+        int readAheadThreads = DEFAULT_READ_AHEAD_THREADS;
+        Path manifestFile = null;
+        Path previousManifestFile = null;
+        Path metricsDirectory = null;
+        int metricsInterval = DEFAULT_METRICS_INTERVAL_SECONDS;
+        String differType = DIFFER_NORMALISING;
+        Path conversionStylesheet = null;
+        Path conversionOutput = null;
+        Path similarityRulesFile = null;
+        Shard shard = null;
+        Path resultsFile = null;
+        Path summaryFile = null;
+        int summarySize = DEFAULT_SUMMARY_SIZE;
+        Path candidateRulesFile = null;
+        int differenceLimit = 0;
+        boolean countOnly = false;
+        // options come before the positional arguments
+        while (!arguments.isEmpty() && arguments.get(0).startsWith("--")) {
+            final String option = arguments.remove(0);
+            if ("--threads".equals(option) && !arguments.isEmpty()) {
+                threads = getPositiveNumber(option, arguments.remove(0));
+            } else if ("--no-fast-path".equals(option)) {
+                fastPath = false;
+            } else if ("--indexed-walk".equals(option)) {
+                indexedWalk = true;
+            } else if ("--no-subtree-hashing".equals(option)) {
+                subtreeHashing = false;
+            } else if ("--cache-dir".equals(option) && !arguments.isEmpty()) {
+                cacheDirectory = FileSystems.getDefault().getPath(arguments.remove(0));
+            } else if ("--cache-size".equals(option) && !arguments.isEmpty()) {
+                cacheSize = getPositiveNumber(option, arguments.remove(0));
+            } else if ("--read-ahead".equals(option) && !arguments.isEmpty()) {
+                readAheadSize = getPositiveNumber(option, arguments.remove(0));
+            } else if ("--read-ahead-threads".equals(option) && !arguments.isEmpty()) {
+                readAheadThreads = getPositiveNumber(option, arguments.remove(0));
+            } else if ("--lookup-dir".equals(option) && !arguments.isEmpty()) {
+                lookupDirectory = FileSystems.getDefault().getPath(arguments.remove(0));
+            } else if ("--manifest".equals(option) && !arguments.isEmpty()) {
+                manifestFile = FileSystems.getDefault().getPath(arguments.remove(0));
+            } else if ("--since".equals(option) && !arguments.isEmpty()) {
+                previousManifestFile = FileSystems.getDefault().getPath(arguments.remove(0));
+            } else if ("--metrics-dir".equals(option) && !arguments.isEmpty()) {
+                metricsDirectory = FileSystems.getDefault().getPath(arguments.remove(0));
+            } else if ("--metrics-interval".equals(option) && !arguments.isEmpty()) {
+                metricsInterval = getPositiveNumber(option, arguments.remove(0));
+            } else if ("--differ".equals(option) && !arguments.isEmpty()
+                    && DIFFER_TYPES.contains(arguments.get(0))) {
+                differType = arguments.remove(0);
+            } else if ("--convert".equals(option) && !arguments.isEmpty()) {
+                conversionStylesheet = FileSystems.getDefault().getPath(arguments.remove(0));
+            } else if ("--convert-output".equals(option) && !arguments.isEmpty()) {
+                conversionOutput = FileSystems.getDefault().getPath(arguments.remove(0));
+            } else if ("--rules".equals(option) && !arguments.isEmpty()) {
+                similarityRulesFile = FileSystems.getDefault().getPath(arguments.remove(0));
+            } else if ("--shard".equals(option) && !arguments.isEmpty()) {
+                shard = getShard(arguments.remove(0));
+            } else if ("--results".equals(option) && !arguments.isEmpty()) {
+                resultsFile = FileSystems.getDefault().getPath(arguments.remove(0));
+            } else if ("--summary".equals(option) && !arguments.isEmpty()) {
+                summaryFile = FileSystems.getDefault().getPath(arguments.remove(0));
+            } else if ("--summary-size".equals(option) && !arguments.isEmpty()) {
+                summarySize = getPositiveNumber(option, arguments.remove(0));
+            } else if ("--candidate-rules".equals(option) && !arguments.isEmpty()) {
+                candidateRulesFile = FileSystems.getDefault().getPath(arguments.remove(0));
+            } else if ("--first-difference".equals(option)) {
+                differenceLimit = 1;
+            } else if ("--max-differences".equals(option) && !arguments.isEmpty()) {
+                differenceLimit = getPositiveNumber(option, arguments.remove(0));
+            } else if ("--count-only".equals(option)) {
+                countOnly = true;
+            } else {
+                printUsageAndExit();
+            }
         }
-        final Path dir1 = getDirectory(args[0]);
-        final Path dir2 = getDirectory(args[1]);
 
-        // map File path -> XPath (null value for key means ignore entire file)
-        // use map type that can contain null!!
-        final Multimap<Path, String> ignorePaths;
-        if (args.length > 2) {
-            ignorePaths = getIgnorePaths(args[2]);
+        if (arguments.size() < 2 || arguments.size() > 3) {
+            printUsageAndExit();
+        }
+        if ((conversionOutput != null && conversionStylesheet == null)
+                || (conversionStylesheet != null && !DIFFER_NORMALISING.equals(differType))) {
+            // conversion output requires conversion, which only works with the normalising differ
+            printUsageAndExit();
+        }
+        if (similarityRulesFile != null && DIFFER_NORMALISING.equals(differType)) {
+            // the normalising differ normalises artefacts away instead
+            printUsageAndExit();
+        }
+        if (conversionStylesheet != null && !Files.isReadable(conversionStylesheet)) {
+            System.err.println(String.format("Could not read conversion stylesheet '%s'", conversionStylesheet));
+            System.exit(3);
+        }
+        // mounted zip archives, to close after the walk
+        final List<FileSystem> zipArchives = new ArrayList<>();
+        final Path dir1 = getRoot(arguments.get(0), zipArchives);
+        final Path dir2 = getRoot(arguments.get(1), zipArchives);
+        final boolean tarArchives = Archives.isTar(dir1);
+        if (tarArchives != Archives.isTar(dir2)) {
+            System.err.println("Tar archives are read as streams and can only be compared to tar archives");
+            System.exit(2);
+        }
+        if (tarArchives && (manifestFile != null || previousManifestFile != null || readAheadSize > 0)) {
+            // entries of tar archives cannot be inspected or read separately
+            printUsageAndExit();
+        }
+
+        // rules get compiled once and shared by all differs
+        final IgnoreRules ignoreRules;
+        if (arguments.size() > 2) {
+            ignoreRules = getIgnoreRules(arguments.get(2));
         } else {
-            ignorePaths = ImmutableListMultimap.of();
+            ignoreRules = IgnoreRules.empty();
         }
 
-        final ImdiDiffer differ = new NormalisingImdiDiffer(ignorePaths);
-        differ.initialise();
+        final ImdiSimilarityRules similarityRules = getSimilarityRules(similarityRulesFile);
 
-        final ImdiDiffVisitor visitor = new ImdiDiffVisitor(dir1, dir2, differ, ignorePaths);
-        visitor.walk();
-    }
+        // lookup documents for the normalisation get loaded once and shared by all differs
+        final LookupDocumentResolver lookupResolver;
+        if (lookupDirectory == null) {
+            lookupResolver = LookupDocumentResolver.getDefault();
+        } else {
+            lookupResolver = new LookupDocumentResolver(lookupDirectory);
+        }
 
-    private static Path getDirectory(String dir) {
-        final Path dirFile = FileSystems.getDefault().getPath(dir);
-        if (!Files.isDirectory(dirFile)) {
-            System.err.println(String.format("'%s' is not an existing directory", dir));
-            System.exit(2);
+        final byte[] stylesheet = Resources.toByteArray(NormalisingImdiDiffer.class.getResource(NormalisingImdiDiffer.NORMALISATION_STYLESHEET));
+        // normalised documents and results become stale if the lookup documents change
+        final HashCode lookupDocumentsHash = lookupResolver.hashDocuments(NormalisingImdiDiffer.LOOKUP_DOCUMENTS);
+        final NormalisedDocumentCache cache;
+        if (cacheDirectory == null) {
+            cache = null;
+        } else {
+            cache = new NormalisedDocumentCache(cacheDirectory, cacheSize << 20, stylesheet, lookupDocumentsHash);
         }
-        return dirFile;
-    }
 
-    private static Multimap<Path, String> getIgnorePaths(String file) throws IOException {
-        final Path ignoreListFile = FileSystems.getDefault().getPath(file);
-        if (!(Files.exists(ignoreListFile) && Files.isReadable(ignoreListFile))) {
-            System.err.println(String.format("Could not read exclude list '%s'", ignoreListFile));
-            System.exit(3);
+        // results only carry over between runs with the same differ, difference limit, stylesheets, lookup documents, rules and exclude list
+        final String fingerprint = getConfigurationFingerprint(stylesheet, lookupDocumentsHash, differType, differenceLimit, conversionStylesheet, similarityRulesFile, arguments.size() > 2 ? arguments.get(2) : null);
+        final RunManifest previousManifest = getPreviousManifest(previousManifestFile, fingerprint);
+
+        // shared by the differs of all threads
+        final FastPathStatistics fastPathStatistics = fastPath ? new FastPathStatistics() : null;
+        final RunMetrics metrics = metricsDirectory == null ? null : new RunMetrics();
+        // files of upcoming pairs get read into memory while earlier pairs are compared
+        final PrefetchingContentReader readAhead = readAheadSize == 0 ? null : new PrefetchingContentReader(readAheadThreads, readAheadSize << 20);
+        // entries of tar archives get read by the walk
+        final ArchiveContentReader archiveContents = tarArchives ? new ArchiveContentReader() : null;
+        final ContentReader contentReader;
+        if (readAhead != null) {
+            contentReader = readAhead;
+        } else if (archiveContents != null) {
+            contentReader = archiveContents;
+        } else {
+            contentReader = ContentReader.FILE_SYSTEM;
         }
 
-        final List<String> pathStrings = Files.readAllLines(ignoreListFile, Charset.defaultCharset());
+        final String selectedDifferType = differType;
+        final boolean useSubtreeHashing = subtreeHashing;
+        final Path selectedConversionStylesheet = conversionStylesheet;
+        final Path selectedConversionOutput = conversionOutput;
+        final int selectedDifferenceLimit = differenceLimit;
+        final Supplier<ImdiDiffer> differSupplier = new Supplier<ImdiDiffer>() {
 
-        final Multimap<Path, String> paths = ArrayListMultimap.create();
-        for (String pathString : pathStrings) {
-            final String[] tokens = pathString.split("\\s", 2);
-            if (tokens.length == 1) {
-                paths.put(FileSystems.getDefault().getPath(tokens[0]), ImdiDiffer.SKIP_WILDCARD);
+            @Override
+            public ImdiDiffer get() {
+                ImdiDiffer differ;
+                if (DIFFER_XMLUNIT.equals(selectedDifferType)) {
+                    final XMLUnitImdiDiffer xmlUnitDiffer = new XMLUnitImdiDiffer(ignoreRules);
+                    xmlUnitDiffer.setSubtreeHashing(useSubtreeHashing);
+                    xmlUnitDiffer.setSimilarityRules(similarityRules);
+                    xmlUnitDiffer.setContentReader(contentReader);
+                    xmlUnitDiffer.setDifferenceLimit(selectedDifferenceLimit);
+                    differ = xmlUnitDiffer;
+                } else if (DIFFER_STREAMING.equals(selectedDifferType)) {
+                    final StreamingImdiDiffer streamingDiffer = new StreamingImdiDiffer(ignoreRules);
+                    streamingDiffer.setSimilarityRules(similarityRules);
+                    streamingDiffer.setContentReader(contentReader);
+                    streamingDiffer.setDifferenceLimit(selectedDifferenceLimit);
+                    differ = streamingDiffer;
+                } else {
+                    final NormalisingImdiDiffer normalisingDiffer;
+                    if (selectedConversionStylesheet == null) {
+                        normalisingDiffer = new NormalisingImdiDiffer(ignoreRules, lookupResolver, cache);
+                    } else {
+                        normalisingDiffer = new ConvertingImdiDiffer(ignoreRules, lookupResolver, cache, selectedConversionStylesheet, dir2, selectedConversionOutput);
+                    }
+                    normalisingDiffer.setMetrics(metrics);
+                    normalisingDiffer.setContentReader(contentReader);
+                    normalisingDiffer.setSubtreeHashing(useSubtreeHashing);
+                    normalisingDiffer.setDifferenceLimit(selectedDifferenceLimit);
+                    differ = normalisingDiffer;
+                }
+                if (fastPathStatistics != null) {
+                    final FastPathImdiDiffer fastPathDiffer = new FastPathImdiDiffer(differ, fastPathStatistics);
+                    fastPathDiffer.setMetrics(metrics);
+                    fastPathDiffer.setContentReader(contentReader);
+                    differ = fastPathDiffer;
+                }
+                differ.initialise();
+                return differ;
+            }
+        };
+
+        final ImdiDiffVisitor visitor;
+        if (threads > 1) {
+            visitor = new ParallelImdiDiffVisitor(dir1, dir2, differSupplier, ignoreRules, threads);
+        } else {
+            visitor = new ImdiDiffVisitor(dir1, dir2, differSupplier.get(), ignoreRules);
+        }
+        visitor.setIndexedWalk(indexedWalk);
+        visitor.setShard(shard);
+        visitor.setDifferenceLimit(differenceLimit);
+        visitor.setCountOnly(countOnly);
+        if (conversionStylesheet != null) {
+            visitor.setTargetExtension(CMDI_EXTENSION);
+        }
+        visitor.setFastPathStatistics(fastPathStatistics);
+        visitor.setPreviousManifest(previousManifest);
+        visitor.setMetrics(metrics);
+        visitor.setReadAhead(readAhead);
+        visitor.setTarArchives(archiveContents);
+        final DifferenceAggregator aggregator;
+        if (summaryFile == null && candidateRulesFile == null) {
+            aggregator = null;
+        } else {
+            aggregator = new DifferenceAggregator(dir1);
+            visitor.setListener(aggregator);
+        }
+
+        final Shard resultsShard = shard == null ? new Shard(1, 1) : shard;
+        final DiffTotals totals;
+        try {
+            if (metrics == null) {
+                totals = walk(visitor, manifestFile, previousManifest, resultsFile, resultsShard, fingerprint, differenceLimit);
             } else {
-                paths.put(FileSystems.getDefault().getPath(tokens[0]), tokens[1]);
+                try (MetricsReporter reporter = new MetricsReporter(metrics, metricsDirectory, metricsInterval)) {
+                    reporter.start();
+                    totals = walk(visitor, manifestFile, previousManifest, resultsFile, resultsShard, fingerprint, differenceLimit);
+                }
             }
+        } finally {
+            if (readAhead != null) {
+                readAhead.close();
+            }
+            for (FileSystem zipArchive : zipArchives) {
+                zipArchive.close();
+            }
+        }
+
+        if (summaryFile != null) {
+            aggregator.writeSummary(summaryFile, summarySize);
+            System.err.println(String.format("Wrote summary of differences at %d locations to '%s'", aggregator.size(), summaryFile));
+        }
+        if (candidateRulesFile != null) {
+            aggregator.writeCandidateRules(candidateRulesFile, summarySize);
+            System.err.println(String.format("Wrote candidate exclude rules to '%s'", candidateRulesFile));
         }
-        System.err.println(String.format("Found %d patterns to exclude from diff", paths.values().size()));
-        return paths;
+        return totals;
     }
 
-    public static boolean matchesIgnorePath(Multimap<Path, String> ignorepaths, Path origSource, String targetPath, String targetCode) {
-        if (targetPath != null) { //null paths cannot match
-            final Path sourceAbsolutePath = origSource.toAbsolutePath();
-            // do for both referenced path and absolutePath
-            for (Path source : new Path[]{origSource, sourceAbsolutePath}) {
-                if (ignorepaths.containsKey(source)) {
-                    for (String rule : ignorepaths.get(source)) {
-                        String[] tokens = rule.split(":", 2);
-                        if (tokens.length == 2) {
-                            final String id = tokens[0];
-                            //rule has code, only match if it matches target code
-                            if (targetCode != null && targetCode.equals(id)) {
-                                final String pathExpression = tokens[1];
-                                if (expressionMatchesPath(pathExpression, targetPath)) {
-                                    return true;
-                                }
-                            }
-                        } else {
-                            // no code specified, ignore target code
-                            if (tokens.length != 1) {
-                                throw new RuntimeException("Unexpected number of tokens in " + rule);
-                            }
-                            final String pathExpression = tokens[0];
-                            if (expressionMatchesPath(pathExpression, targetPath)) {
-                                return true;
-                            }
-                        }
-                    }
-                }
+    private static DiffTotals walk(ImdiDiffVisitor visitor, Path manifestFile, RunManifest previousManifest, Path resultsFile, Shard shard, String fingerprint, int differenceLimit) throws IOException {
+        // writers that are not needed stay null and are not closed
+        try (RunManifest.Writer manifestWriter = manifestFile == null ? null : new RunManifest.Writer(manifestFile, fingerprint, previousManifest);
+                ShardResults.Writer resultsWriter = resultsFile == null ? null : new ShardResults.Writer(resultsFile, shard, fingerprint, differenceLimit)) {
+            visitor.setManifestWriter(manifestWriter);
+            visitor.setResultsWriter(resultsWriter);
+            return visitor.walk();
+        }
+    }
+
+    private static void printUsageAndExit() {
+        System.err.println("Usage: <jar> [--threads N] [--no-fast-path] [--no-subtree-hashing] [--indexed-walk] [--cache-dir DIR [--cache-size MB]] [--read-ahead MB [--read-ahead-threads N]] [--lookup-dir DIR] [--manifest FILE] [--since FILE] [--metrics-dir DIR [--metrics-interval SECONDS]] [--differ normalising|xmlunit|streaming | --convert STYLESHEET [--convert-output DIR]] [--rules FILE] [--shard i/n] [--results FILE] [--summary FILE] [--summary-size N] [--candidate-rules FILE] [--first-difference | --max-differences N] [--count-only] imdi-src imdi-target|cmdi-target [exclude-list-file]");
+        System.err.println("       imdi-src and the target can be directories, zip archives or (both) tar archives (.tar, .tar.gz, .tgz)");
+        System.exit(1);
+    }
+
+    static int getPositiveNumber(String option, String value) {
+        try {
+            final int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
             }
+        } catch (NumberFormatException ex) {
+            // handled below
         }
-        return false;
+        System.err.println(String.format("Value for %s must be a positive number, got '%s'", option, value));
+        System.exit(1);
+        return -1;
+    }
+
+    private static Shard getShard(String value) {
+        try {
+            return Shard.parse(value);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static String getConfigurationFingerprint(byte[] stylesheet, HashCode lookupDocumentsHash, String differType, int differenceLimit, Path conversionStylesheet, Path similarityRulesFile, String ignoreListFile) throws IOException {
+        final Hasher hasher = Hashing.sha1().newHasher().putBytes(stylesheet).putBytes(lookupDocumentsHash.asBytes())
+                .putString(differType, StandardCharsets.UTF_8).putInt(differenceLimit);
+        if (conversionStylesheet != null) {
+            hasher.putBytes(Files.readAllBytes(conversionStylesheet));
+        }
+        if (similarityRulesFile != null) {
+            hasher.putBytes(Files.readAllBytes(similarityRulesFile));
+        } else if (!DIFFER_NORMALISING.equals(differType)) {
+            // the rule based differs apply the default rules
+            hasher.putBytes(Resources.toByteArray(ImdiSimilarityRules.class.getResource(ImdiSimilarityRules.DEFAULT_RULES_RESOURCE)));
+        }
+        if (ignoreListFile != null) {
+            hasher.putBytes(Files.readAllBytes(FileSystems.getDefault().getPath(ignoreListFile)));
+        }
+        return hasher.hash().toString();
+    }
+
+    private static RunManifest getPreviousManifest(Path file, String fingerprint) throws IOException {
+        if (file == null) {
+            return null;
+        }
+        if (!Files.isReadable(file)) {
+            System.err.println(String.format("Could not read manifest '%s'", file));
+            System.exit(3);
+        }
+        final RunManifest manifest = RunManifest.read(file);
+        if (!fingerprint.equals(manifest.getFingerprint())) {
+            System.err.println(String.format("Manifest '%s' was written with a different differ, difference limit, stylesheet, lookup documents, rules or exclude list, comparing all files", file));
+            return null;
+        }
+        System.err.println(String.format("Found results for %d files in %s manifest '%s'", manifest.size(), manifest.isComplete() ? "complete" : "incomplete", file));
+        return manifest;
+    }
+
+    /**
+     *
+     * @param location directory or archive
+     * @param zipArchives list to add the file system of a zip archive to
+     * @return the directory, the root of a zip archive or a tar archive
+     * @throws IOException if a zip archive cannot be opened
+     */
+    private static Path getRoot(String location, List<FileSystem> zipArchives) throws IOException {
+        final Path path = FileSystems.getDefault().getPath(location);
+        if (Archives.isZip(path)) {
+            final FileSystem zipArchive = Archives.openZip(path);
+            zipArchives.add(zipArchive);
+            return zipArchive.getPath("/");
+        } else if (!Files.isDirectory(path) && !Archives.isTar(path)) {
+            System.err.println(String.format("'%s' is not an existing directory or archive", location));
+            System.exit(2);
+        }
+        return path;
     }
 
-    private static boolean expressionMatchesPath(final String expression, String targetPath) {
-        return expression.equals("*") //matches everything
-                || targetPath.matches(expression); //exact match
+    private static ImdiSimilarityRules getSimilarityRules(Path file) throws IOException {
+        if (file == null) {
+            return ImdiSimilarityRules.getDefault();
+        }
+        if (!Files.isReadable(file)) {
+            System.err.println(String.format("Could not read similarity rules '%s'", file));
+            System.exit(3);
+        }
+        final ImdiSimilarityRules rules;
+        try {
+            rules = ImdiSimilarityRules.read(file);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(3);
+            return null;
+        }
+        System.err.println(String.format("Found %d similarity rules", rules.size()));
+        return rules;
+    }
+
+    private static IgnoreRules getIgnoreRules(String file) throws IOException {
+        final Path ignoreListFile = FileSystems.getDefault().getPath(file);
+        if (!(Files.exists(ignoreListFile) && Files.isReadable(ignoreListFile))) {
+            System.err.println(String.format("Could not read exclude list '%s'", ignoreListFile));
+            System.exit(3);
+        }
+
+        final List<String> pathStrings = Files.readAllLines(ignoreListFile, Charset.defaultCharset());
+        final IgnoreRules rules;
+        try {
+            rules = IgnoreRules.parse(pathStrings);
+        } catch (PatternSyntaxException ex) {
+            System.err.println(String.format("Invalid expression in exclude list '%s': %s", ignoreListFile, ex.getMessage()));
+            System.exit(3);
+            return null;
+        }
+        System.err.println(String.format("Found %d patterns to exclude from diff", rules.size()));
+        return rules;
     }
 
 }
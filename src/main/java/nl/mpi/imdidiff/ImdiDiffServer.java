@@ -0,0 +1,391 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Supplier;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.PatternSyntaxException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import nl.mpi.imdidiff.util.LookupDocumentResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+/**
+ * Server that keeps initialised differs resident and compares pairs of files
+ * or hierarchies on request, so that repeated comparisons do not pay for JVM
+ * startup, stylesheet compilation and loading of lookup tables, and run on
+ * warmed up code. Listens on a port on the loopback interface only; see
+ * {@link ImdiDiffClient} for a client.
+ *
+ * <p>
+ * The protocol is line based (UTF-8, fields separated by tabs). A connection
+ * carries a single request, which is one of
+ * <ul>
+ * <li><code>COMPARE source target [exclude-list-file]</code>: compares two
+ * files or two hierarchies (absolute paths)</li>
+ * <li><code>SHUTDOWN</code>: stops the server</li>
+ * </ul>
+ * The response to a comparison is streamed back while the comparison
+ * progresses:
+ * <ul>
+ * <li><code>FILE path count</code> for every pair with differences, followed
+ * by a <code>DIFF path difference</code> line for each difference</li>
+ * <li><code>MISSING path</code> for a source file without counterpart</li>
+ * <li><code>ERROR path message</code> for a pair that could not be
+ * compared</li>
+ * <li><code>DONE files files-with-differences differences</code> at the
+ * end, or <code>FAIL message</code> if the request could not be
+ * handled</li>
+ * </ul>
+ * Tabs, line breaks and backslashes in values are escaped with a
+ * backslash.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class ImdiDiffServer implements Closeable {
+
+    private final static Logger logger = LoggerFactory.getLogger(ImdiDiffServer.class);
+
+    public static final int DEFAULT_PORT = 7346;
+    public static final String REQUEST_COMPARE = "COMPARE";
+    public static final String REQUEST_SHUTDOWN = "SHUTDOWN";
+    public static final String RESPONSE_FILE = "FILE";
+    public static final String RESPONSE_DIFF = "DIFF";
+    public static final String RESPONSE_MISSING = "MISSING";
+    public static final String RESPONSE_ERROR = "ERROR";
+    public static final String RESPONSE_DONE = "DONE";
+    public static final String RESPONSE_FAIL = "FAIL";
+
+    private static final Splitter FIELD_SPLITTER = Splitter.on('\t');
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final ThreadLocal<ImdiDiffer> differs;
+
+    /**
+     *
+     * @param port port to listen on (on the loopback interface)
+     * @param threads maximum number of requests to handle concurrently
+     * @param differSupplier supplier of initialised differs that do not apply
+     * any exclude rules themselves, called once for each handler thread
+     * @throws IOException if the port cannot be bound
+     */
+    public ImdiDiffServer(int port, int threads, final Supplier<ImdiDiffer> differSupplier) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.executor = Executors.newFixedThreadPool(threads, new HandlerThreadFactory());
+        this.differs = new ThreadLocal<ImdiDiffer>() {
+
+            @Override
+            protected ImdiDiffer initialValue() {
+                return differSupplier.get();
+            }
+        };
+    }
+
+    /**
+     * Accepts connections until the server gets closed
+     *
+     * @throws IOException if accepting a connection fails
+     */
+    public void serve() throws IOException {
+        logger.info("Listening on {}", serverSocket.getLocalSocketAddress());
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException ex) {
+                if (serverSocket.isClosed()) {
+                    // closed while waiting
+                    break;
+                }
+                throw ex;
+            }
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        serverSocket.close();
+    }
+
+    private void handle(Socket socket) {
+        try (Socket connection = socket;
+                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+                Writer writer = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8))) {
+            final String request = reader.readLine();
+            if (request == null) {
+                return;
+            }
+            final List<String> fields = new ArrayList<>();
+            for (String field : FIELD_SPLITTER.split(request)) {
+                fields.add(unescape(field));
+            }
+            try {
+                if (REQUEST_SHUTDOWN.equals(fields.get(0)) && fields.size() == 1) {
+                    logger.info("Shutdown requested");
+                    writeLine(writer, RESPONSE_DONE);
+                    writer.flush();
+                    close();
+                } else if (REQUEST_COMPARE.equals(fields.get(0)) && (fields.size() == 3 || fields.size() == 4)) {
+                    final Path source = FileSystems.getDefault().getPath(fields.get(1));
+                    final Path target = FileSystems.getDefault().getPath(fields.get(2));
+                    final IgnoreRules ignoreRules = fields.size() > 3 ? readIgnoreRules(fields.get(3)) : IgnoreRules.empty();
+                    final DiffTotals totals = compare(source, target, ignoreRules, writer);
+                    writeLine(writer, RESPONSE_DONE,
+                            Integer.toString(totals.getFileCount()), Integer.toString(totals.getDiffFileCount()), Integer.toString(totals.getDiffCount()));
+                } else {
+                    writeLine(writer, RESPONSE_FAIL, "Invalid request: " + request);
+                }
+            } catch (IOException | IllegalArgumentException ex) {
+                logger.warn("Failed to handle request {}", request, ex);
+                writeLine(writer, RESPONSE_FAIL, ex.toString());
+            }
+        } catch (IOException ex) {
+            logger.warn("Connection failed", ex);
+        }
+    }
+
+    private DiffTotals compare(Path source, Path target, IgnoreRules ignoreRules, final Writer writer) throws IOException {
+        final ImdiDiffer differ = new FilteringDiffer(differs.get(), ignoreRules);
+        if (Files.isDirectory(source) && Files.isDirectory(target)) {
+            logger.info("Comparing hierarchies {} and {}", source, target);
+            final ImdiDiffVisitor visitor = new ImdiDiffVisitor(source, target, differ, ignoreRules);
+            visitor.setListener(new ComparisonListener() {
+
+                @Override
+                public void compared(Path relativePath, List<ImdiDifference> differences) throws IOException {
+                    writeDifferences(writer, relativePath.toString(), differences);
+                }
+
+                @Override
+                public void carried(Path relativePath, int differenceCount) throws IOException {
+                    // no previous runs on the server
+                }
+
+                @Override
+                public void targetMissing(Path relativePath) throws IOException {
+                    writeLine(writer, RESPONSE_MISSING, relativePath.toString());
+                }
+
+                @Override
+                public void failed(Path relativePath, Exception error) throws IOException {
+                    writeLine(writer, RESPONSE_ERROR, relativePath.toString(), error.toString());
+                }
+            });
+            return visitor.walk();
+        } else if (Files.isRegularFile(source) && Files.isRegularFile(target)) {
+            logger.info("Comparing {} and {}", source, target);
+            final String path = source.getFileName().toString();
+            try {
+                final List<ImdiDifference> differences = differ.compare(source, target);
+                writeDifferences(writer, path, differences);
+                return new DiffTotals(1, differences.isEmpty() ? 0 : 1, differences.size());
+            } catch (SAXException | TransformerException ex) {
+                writeLine(writer, RESPONSE_ERROR, path, ex.toString());
+                return new DiffTotals(1, 0, 0);
+            }
+        } else {
+            throw new IllegalArgumentException(String.format("'%s' and '%s' must both be existing files or directories", source, target));
+        }
+    }
+
+    private static IgnoreRules readIgnoreRules(String file) throws IOException {
+        try {
+            return IgnoreRules.parse(Files.readAllLines(FileSystems.getDefault().getPath(file), Charset.defaultCharset()));
+        } catch (PatternSyntaxException ex) {
+            throw new IllegalArgumentException("Invalid expression in exclude list: " + ex.getMessage());
+        }
+    }
+
+    private static void writeDifferences(Writer writer, String path, List<ImdiDifference> differences) throws IOException {
+        if (!differences.isEmpty()) {
+            writeLine(writer, RESPONSE_FILE, path, Integer.toString(differences.size()));
+            for (ImdiDifference difference : differences) {
+                writeLine(writer, RESPONSE_DIFF, path, difference.toString());
+            }
+            // stream results per file
+            writer.flush();
+        }
+    }
+
+    private static void writeLine(Writer writer, String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                writer.write('\t');
+            }
+            writer.write(escape(fields[i]));
+        }
+        writer.write('\n');
+    }
+
+    /**
+     *
+     * @param value value to write in a field
+     * @return value with tabs, line breaks and backslashes escaped
+     */
+    public static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     *
+     * @param value value read from a field
+     * @return value with escapes replaced
+     * @see #escape(java.lang.String)
+     */
+    public static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        final StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                final char escaped = value.charAt(++i);
+                switch (escaped) {
+                    case 't':
+                        result.append('\t');
+                        break;
+                    case 'n':
+                        result.append('\n');
+                        break;
+                    case 'r':
+                        result.append('\r');
+                        break;
+                    default:
+                        result.append(escaped);
+                        break;
+                }
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Applies the exclude rules of a request to the differences found by a
+     * resident differ
+     */
+    private static class FilteringDiffer implements ImdiDiffer {
+
+        private final ImdiDiffer delegate;
+        private final IgnoreRules ignoreRules;
+
+        public FilteringDiffer(ImdiDiffer delegate, IgnoreRules ignoreRules) {
+            this.delegate = delegate;
+            this.ignoreRules = ignoreRules;
+        }
+
+        @Override
+        public void initialise() {
+            // delegate is initialised already
+        }
+
+        @Override
+        public List<ImdiDifference> compare(Path source, Path target) throws IOException, SAXException, TransformerException {
+            final List<ImdiDifference> differences = delegate.compare(source, target);
+            if (differences.isEmpty()) {
+                return differences;
+            }
+            final IgnoreRules.FileRules fileRules = ignoreRules.forFile(source);
+            final List<ImdiDifference> remaining = new ArrayList<>(differences.size());
+            for (ImdiDifference difference : differences) {
+                if (!fileRules.matches(difference)) {
+                    remaining.add(difference);
+                }
+            }
+            return remaining;
+        }
+    }
+
+    private static class HandlerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "handler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        int port = DEFAULT_PORT;
+        int threads = 1;
+        Path lookupDirectory = null;
+        boolean fastPath = true;
+        while (!arguments.isEmpty()) {
+            final String option = arguments.remove(0);
+            if ("--port".equals(option) && !arguments.isEmpty()) {
+                port = ImdiDiffRunner.getPositiveNumber(option, arguments.remove(0));
+            } else if ("--threads".equals(option) && !arguments.isEmpty()) {
+                threads = ImdiDiffRunner.getPositiveNumber(option, arguments.remove(0));
+            } else if ("--lookup-dir".equals(option) && !arguments.isEmpty()) {
+                lookupDirectory = FileSystems.getDefault().getPath(arguments.remove(0));
+            } else if ("--no-fast-path".equals(option)) {
+                fastPath = false;
+            } else {
+                System.err.println("Usage: java " + ImdiDiffServer.class.getName() + " [--port N] [--threads N] [--lookup-dir DIR] [--no-fast-path]");
+                System.exit(1);
+            }
+        }
+
+        final URIResolver lookupResolver = lookupDirectory == null ? LookupDocumentResolver.getDefault() : new LookupDocumentResolver(lookupDirectory);
+        final FastPathStatistics fastPathStatistics = fastPath ? new FastPathStatistics() : null;
+        final Supplier<ImdiDiffer> differSupplier = new Supplier<ImdiDiffer>() {
+
+            @Override
+            public ImdiDiffer get() {
+                ImdiDiffer differ = new NormalisingImdiDiffer(IgnoreRules.empty(), lookupResolver);
+                if (fastPathStatistics != null) {
+                    differ = new FastPathImdiDiffer(differ, fastPathStatistics);
+                }
+                differ.initialise();
+                return differ;
+            }
+        };
+        // compiles the stylesheet (shared by all differs) before the first request comes in
+        differSupplier.get();
+
+        try (ImdiDiffServer server = new ImdiDiffServer(port, threads, differSupplier)) {
+            server.serve();
+        }
+        if (fastPathStatistics != null) {
+            logger.info("Fast path: {}", fastPathStatistics);
+        }
+    }
+}
@@ -1,22 +1,59 @@
 package nl.mpi.imdidiff;
 
-import com.google.common.collect.Multimap;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Collection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import javax.xml.transform.TransformerException;
+import nl.mpi.imdidiff.metrics.RunMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 
 /**
  * File visitor that walks two parallel IMDI directory hierarchies and compares
- * all encountered IMDI files
+ * all encountered IMDI files.
+ *
+ * <p>
+ * By default the source hierarchy gets walked and the existence of each
+ * counterpart in the target hierarchy is checked separately. In an
+ * {@link #setIndexedWalk(boolean) indexed walk} both hierarchies are listed
+ * up front (concurrently) into sorted indexes, which are then merged into
+ * pairs in order of relative path. This needs no existence checks and also
+ * reveals the files that only exist in the target hierarchy.</p>
+ *
+ * <p>
+ * The walk can be restricted to a {@link #setShard(nl.mpi.imdidiff.Shard)
+ * shard}, so that a pair of hierarchies can be compared by several
+ * independent runs; the {@link ShardResults results} of these runs can be
+ * merged into the report of a single run.</p>
+ *
+ * <p>
+ * With {@link #setReadAhead(nl.mpi.imdidiff.PrefetchingContentReader) read
+ * ahead}, the files of each pair get scheduled for reading as soon as the
+ * pair is found, and pairs are compared a number of pairs behind the walk, so
+ * that reading overlaps with comparing.</p>
+ *
+ * <p>
+ * Both hierarchies can also be {@link #setTarArchives(nl.mpi.imdidiff.ArchiveContentReader)
+ * tar archives}, which are read as streams side by side; entries are paired
+ * by name as they are read, and files that only exist in the target archive
+ * are reported at the end, as in an indexed walk.</p>
  *
  * @author Twan Goosen <twan.goosen@mpi.nl>
  */
@@ -26,14 +63,44 @@ class ImdiDiffVisitor extends SimpleFileVisitor<Path> {
 
     public static final Pattern DIFF_PATH_PATTERN = Pattern.compile(".* at ([^\\s]+)$");
 
+    /**
+     * Extension of IMDI files, in lower case
+     */
+    public static final String IMDI_EXTENSION = ".imdi";
+
+    /**
+     * Number of pairs that a sequential walk keeps ahead of the comparison
+     * when reading ahead
+     */
+    private static final int READ_AHEAD_PAIRS = 16;
+
     private final Path sourceDir;
     private final Path targetDir;
     private final ImdiDiffer imdiDiffer;
-    private final Multimap<Path, String> ignorepaths;
+    private final IgnoreRules ignoreRules;
+
+    private FastPathStatistics fastPathStatistics;
+    private RunManifest previousManifest;
+    private RunManifest.Writer manifestWriter;
+    private ShardResults.Writer resultsWriter;
+    private RunMetrics metrics;
+    private ComparisonListener listener;
+    private PrefetchingContentReader readAhead;
+    private ArchiveContentReader archiveContents;
+    private final Deque<PendingPair> readAheadPairs = new ArrayDeque<>();
+    private boolean indexedWalk = false;
+    private Shard shard;
+    private int differenceLimit = 0;
+    private boolean countOnly = false;
+    private String targetExtension = IMDI_EXTENSION;
 
     private int diffCount;
     private int fileCount;
     private int diffFileCount;
+    private int carriedCount;
+    private int missingTargetCount;
+    private int failedCount;
+    private int limitedCount;
 
     /**
      *
@@ -42,18 +109,388 @@ class ImdiDiffVisitor extends SimpleFileVisitor<Path> {
      * @param target target directory; assumed to be an existing directory on
      * the filesystem that reflects the structure of dir1
      * @param imdiDiffer an initialised IMDI comparator
+     * @param ignoreRules rules for files and directories to skip
      */
-    public ImdiDiffVisitor(Path source, Path target, ImdiDiffer imdiDiffer, Multimap<Path, String> ignorepaths) {
+    public ImdiDiffVisitor(Path source, Path target, ImdiDiffer imdiDiffer, IgnoreRules ignoreRules) {
         this.sourceDir = source;
         this.targetDir = target;
         this.imdiDiffer = imdiDiffer;
-        this.ignorepaths = ignorepaths;
+        this.ignoreRules = ignoreRules;
     }
 
-    void walk() throws IOException {
-        diffCount = fileCount = diffFileCount = 0;
-        Files.walkFileTree(sourceDir, this);
+    /**
+     * Walks the source hierarchy, comparing all IMDI files to their
+     * counterparts in the target hierarchy
+     *
+     * @return totals of the walk
+     * @throws IOException if the hierarchy cannot be walked or a file cannot
+     * be read
+     */
+    DiffTotals walk() throws IOException {
+        diffCount = fileCount = diffFileCount = carriedCount = missingTargetCount = failedCount = limitedCount = 0;
+        final List<Path> targetOnly;
+        if (archiveContents != null) {
+            targetOnly = walkTarArchives();
+        } else if (indexedWalk) {
+            targetOnly = walkIndexes();
+        } else {
+            Files.walkFileTree(sourceDir, this);
+            targetOnly = null;
+        }
+        finish();
+        if (manifestWriter != null) {
+            manifestWriter.markComplete();
+        }
+        if (targetOnly != null) {
+            for (Path relativePath : targetOnly) {
+                // entries of a zip archive as paths in the archive file
+                final Path target = Archives.toDefaultPath(getTarget(relativePath));
+                logger.warn("No matching file found in source directory for {}", target);
+                if (resultsWriter != null) {
+                    resultsWriter.sourceMissing(RunManifest.toKey(relativePath), target);
+                }
+            }
+            logger.info("Files without counterpart: {} only in source, {} only in target", missingTargetCount, targetOnly.size());
+        }
+        if (resultsWriter != null) {
+            resultsWriter.markComplete(targetOnly != null, previousManifest == null ? -1 : carriedCount, fastPathStatistics);
+        }
         logger.info("Total number of differences found: {} in {} of {} files", diffCount, diffFileCount, fileCount);
+        if (limitedCount > 0) {
+            logger.info("Comparison of {} files stopped at {} differences, so the totals are lower bounds", limitedCount, differenceLimit);
+        }
+        if (previousManifest != null) {
+            logger.info("Results of {} unchanged files carried over from previous run", carriedCount);
+        }
+        if (fastPathStatistics != null) {
+            logger.info("Fast path: {}", fastPathStatistics);
+        }
+        return new DiffTotals(fileCount, diffFileCount, diffCount, failedCount + missingTargetCount);
+    }
+
+    /**
+     * Lists both hierarchies and merges the listings, submitting all pairs and
+     * source files without counterpart in order of relative path
+     *
+     * @return relative paths of the files that only exist in the target
+     * hierarchy
+     * @throws IOException if either hierarchy cannot be walked
+     */
+    private List<Path> walkIndexes() throws IOException {
+        final ImdiFileIndex sourceIndex;
+        final ImdiFileIndex targetIndex;
+        final ExecutorService listingExecutor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<ImdiFileIndex> targetListing = listingExecutor.submit(new Callable<ImdiFileIndex>() {
+
+                @Override
+                public ImdiFileIndex call() throws IOException {
+                    // exclude rules refer to the source hierarchy
+                    return ImdiFileIndex.list(targetDir, targetExtension, sourceDir, ignoreRules);
+                }
+            });
+            sourceIndex = ImdiFileIndex.list(sourceDir, IMDI_EXTENSION, sourceDir, ignoreRules);
+            targetIndex = getListing(targetListing);
+        } finally {
+            listingExecutor.shutdownNow();
+        }
+        logger.debug("Listed {} source and {} target files", sourceIndex.size(), targetIndex.size());
+
+        final List<Path> targetOnly = new ArrayList<>();
+        int sourcePosition = 0;
+        int targetPosition = 0;
+        while (sourcePosition < sourceIndex.size() || targetPosition < targetIndex.size()) {
+            // files of other shards are passed over on both sides
+            if (sourcePosition < sourceIndex.size() && !isInShard(sourceIndex.getKey(sourcePosition))) {
+                sourcePosition++;
+                continue;
+            }
+            if (targetPosition < targetIndex.size() && !isInShard(targetIndex.getKey(targetPosition))) {
+                targetPosition++;
+                continue;
+            }
+
+            final int order;
+            if (sourcePosition == sourceIndex.size()) {
+                order = 1;
+            } else if (targetPosition == targetIndex.size()) {
+                order = -1;
+            } else {
+                order = sourceIndex.getKey(sourcePosition).compareTo(targetIndex.getKey(targetPosition));
+            }
+
+            if (order > 0) {
+                targetOnly.add(targetIndex.getRelativePath(targetPosition++));
+            } else {
+                final Path relativePath = sourceIndex.getRelativePath(sourcePosition++);
+                fileCount++;
+                if (order == 0) {
+                    targetPosition++;
+                }
+                submit(sourceDir.resolve(relativePath), getTarget(relativePath), relativePath, order == 0);
+            }
+        }
+        return targetOnly;
+    }
+
+    /**
+     * Reads both tar archives side by side, pairing entries by name. Entries
+     * of which the counterpart has not been read yet are kept in memory, so
+     * archives with their entries in the same order (e.g. both written from
+     * sorted listings) need little memory; otherwise all unmatched entries of
+     * either archive may have to be held.
+     *
+     * @return relative paths of the files that only exist in the target
+     * archive
+     * @throws IOException if either archive cannot be read
+     */
+    private List<Path> walkTarArchives() throws IOException {
+        final Map<String, byte[]> sourceOnly = new LinkedHashMap<>();
+        final Map<String, byte[]> targetOnly = new LinkedHashMap<>();
+        try (TarArchiveReader sourceReader = new TarArchiveReader(sourceDir);
+                TarArchiveReader targetReader = new TarArchiveReader(targetDir)) {
+            String sourceKey = nextTarEntry(sourceReader, IMDI_EXTENSION);
+            String targetKey = nextTarEntry(targetReader, targetExtension);
+            while (sourceKey != null || targetKey != null) {
+                if (sourceKey != null) {
+                    final byte[] content = sourceReader.readContent();
+                    if (targetOnly.containsKey(sourceKey)) {
+                        submitTarPair(sourceKey, content, targetOnly.remove(sourceKey));
+                    } else {
+                        sourceOnly.put(sourceKey, content);
+                    }
+                    sourceKey = nextTarEntry(sourceReader, IMDI_EXTENSION);
+                }
+                if (targetKey != null) {
+                    final byte[] content = targetReader.readContent();
+                    if (sourceOnly.containsKey(targetKey)) {
+                        submitTarPair(targetKey, sourceOnly.remove(targetKey), content);
+                    } else {
+                        targetOnly.put(targetKey, content);
+                    }
+                    targetKey = nextTarEntry(targetReader, targetExtension);
+                }
+            }
+        }
+
+        for (String key : sourceOnly.keySet()) {
+            final Path relativePath = sourceDir.getFileSystem().getPath(key);
+            fileCount++;
+            submit(sourceDir.resolve(key), getTarget(relativePath), relativePath, false);
+        }
+        final List<Path> targetOnlyPaths = new ArrayList<>(targetOnly.size());
+        for (String key : targetOnly.keySet()) {
+            targetOnlyPaths.add(sourceDir.getFileSystem().getPath(key));
+        }
+        return targetOnlyPaths;
+    }
+
+    /**
+     * Moves to the next entry of an archive that is to be compared
+     *
+     * @param reader archive reader
+     * @param extension extension of the files to compare
+     * @return relative path of the entry as a manifest key (with the IMDI
+     * extension), null if there are no further entries
+     * @throws IOException if the archive cannot be read
+     */
+    private String nextTarEntry(TarArchiveReader reader, String extension) throws IOException {
+        for (String name = reader.next(); name != null; name = reader.next()) {
+            if (!name.toLowerCase().endsWith(extension.toLowerCase())) {
+                continue;
+            }
+            final String key = name.substring(0, name.length() - extension.length()) + IMDI_EXTENSION;
+            if (isInShard(key) && !isExcludedEntry(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the exclude rules skip the file or any of its
+     * directories, which are looked up by their path in the source archive
+     */
+    private boolean isExcludedEntry(String key) {
+        for (Path path = sourceDir.getFileSystem().getPath(key); path != null; path = path.getParent()) {
+            if (shouldSkip(sourceDir.resolve(path))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void submitTarPair(String key, byte[] sourceContent, byte[] targetContent) throws IOException {
+        final Path relativePath = sourceDir.getFileSystem().getPath(key);
+        final Path source = sourceDir.resolve(key);
+        final Path target = getTarget(relativePath);
+        archiveContents.put(source, sourceContent);
+        archiveContents.put(target, targetContent);
+        fileCount++;
+        submit(source, target, relativePath, true);
+    }
+
+    private static ImdiFileIndex getListing(Future<ImdiFileIndex> listing) throws IOException {
+        try {
+            return listing.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while listing target directory");
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param relativePath relative path of a source file
+     * @return path of its counterpart in the target hierarchy
+     */
+    private Path getTarget(Path relativePath) {
+        // the hierarchies can be on different file systems
+        final Path target = targetDir.resolve(RunManifest.toKey(relativePath));
+        if (IMDI_EXTENSION.equals(targetExtension)) {
+            return target;
+        } else {
+            final String name = relativePath.getFileName().toString();
+            return target.resolveSibling(name.substring(0, name.length() - IMDI_EXTENSION.length()) + targetExtension);
+        }
+    }
+
+    private boolean isInShard(String key) {
+        return shard == null || shard.contains(key);
+    }
+
+    /**
+     *
+     * @param targetExtension extension of the files in the target hierarchy
+     * (default {@value #IMDI_EXTENSION}); the counterpart of a source file is
+     * the file with the same relative path and name, but with this extension
+     */
+    public void setTargetExtension(String targetExtension) {
+        this.targetExtension = targetExtension;
+    }
+
+    /**
+     *
+     * @param indexedWalk whether to list both hierarchies and merge the
+     * listings rather than walking the source hierarchy and looking up each
+     * counterpart (default false). Pairs are then compared in order of
+     * relative path and files that only exist in the target hierarchy get
+     * reported at the end.
+     */
+    public void setIndexedWalk(boolean indexedWalk) {
+        this.indexedWalk = indexedWalk;
+    }
+
+    /**
+     *
+     * @param shard shard to restrict the walk to; files of other shards are
+     * neither compared nor counted. Can be null to walk all files
+     */
+    public void setShard(Shard shard) {
+        this.shard = shard;
+    }
+
+    /**
+     *
+     * @param differenceLimit limit to the number of differences per pair that
+     * the differ has been configured with (default 0, no limit); pairs with
+     * this many differences get reported as possibly having more
+     */
+    public void setDifferenceLimit(int differenceLimit) {
+        this.differenceLimit = differenceLimit;
+    }
+
+    /**
+     *
+     * @param countOnly whether to only report the number of differences per
+     * pair rather than every difference (default false)
+     */
+    public void setCountOnly(boolean countOnly) {
+        this.countOnly = countOnly;
+    }
+
+    /**
+     *
+     * @param fastPathStatistics statistics of the fast path differ(s) to
+     * include in the summary, can be null
+     */
+    public void setFastPathStatistics(FastPathStatistics fastPathStatistics) {
+        this.fastPathStatistics = fastPathStatistics;
+    }
+
+    /**
+     *
+     * @param previousManifest manifest of a previous run; pairs of which
+     * neither side has changed since are not compared again but get the
+     * result recorded in the manifest. Can be null
+     */
+    public void setPreviousManifest(RunManifest previousManifest) {
+        this.previousManifest = previousManifest;
+    }
+
+    /**
+     *
+     * @param manifestWriter writer to record the outcome for every pair in,
+     * can be null
+     */
+    public void setManifestWriter(RunManifest.Writer manifestWriter) {
+        this.manifestWriter = manifestWriter;
+    }
+
+    /**
+     *
+     * @param resultsWriter writer to record all results and the counters of
+     * the summary in, can be null
+     */
+    public void setResultsWriter(ShardResults.Writer resultsWriter) {
+        this.resultsWriter = resultsWriter;
+    }
+
+    /**
+     *
+     * @param listener listener to pass the outcome of every comparison to, in
+     * addition to logging it; can be null
+     */
+    public void setListener(ComparisonListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     *
+     * @param readAhead content reader to schedule the files of upcoming pairs
+     * on, which should also be the content reader of the differ(s); can be
+     * null to not read ahead
+     */
+    public void setReadAhead(PrefetchingContentReader readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    /**
+     *
+     * @param archiveContents content reader of the differ(s) to put the
+     * content of the files read from the archives in; if not null, the source
+     * and target are tar archives rather than directories
+     */
+    public void setTarArchives(ArchiveContentReader archiveContents) {
+        this.archiveContents = archiveContents;
+    }
+
+    /**
+     *
+     * @param metrics metrics to record the duration and number of differences
+     * of every compared pair in, can be null
+     */
+    public void setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
     }
 
     @Override
@@ -77,60 +514,308 @@ class ImdiDiffVisitor extends SimpleFileVisitor<Path> {
             return FileVisitResult.CONTINUE;
         }
 
-        fileCount++;
-
         // construct target path for comparison (same relative path in target dir)
         final Path relativePath = sourceDir.relativize(source);
-        final Path target = targetDir.resolve(relativePath);
+        if (!isInShard(RunManifest.toKey(relativePath))) {
+            return FileVisitResult.CONTINUE;
+        }
+
+        fileCount++;
+        final Path target = getTarget(relativePath);
 
         // perform comparison (logging all differences)
-        if (Files.exists(target)) {
-            logger.debug("Comparing {} to {}", source, target);
-            compare(source, target, relativePath);
-        } else {
-            logger.warn("No matching file found in target directory for {}\n\t(expected to find {})", source, target);
-        }
+        submit(source, target, relativePath, false);
         return FileVisitResult.CONTINUE;
     }
 
     /**
-     * Compares source and target files using the {@link ImdiDiffer}, and sends
-     * all differences found to the logger at warn level
+     * Hands a pair of files over for comparison. The default implementation
+     * compares and reports immediately on the calling thread; subclasses may
+     * defer either, as long as results get reported in submission order and
+     * all have been reported when {@link #finish() } returns.
      *
      * @param source source to compare
      * @param target target to compare to
      * @param relativePath relative path that applies to both source and target
+     * @param targetListed whether the target is known to exist
      * @throws IOException if differ fails to read either file
      */
-    private void compare(Path source, final Path target, final Path relativePath) throws IOException {
+    protected void submit(Path source, Path target, Path relativePath, boolean targetListed) throws IOException {
+        if (readAhead == null) {
+            report(compare(imdiDiffer, source, target, relativePath, targetListed));
+        } else {
+            scheduleReadAhead(source, target, relativePath);
+            readAheadPairs.add(new PendingPair(source, target, relativePath, targetListed));
+            while (readAheadPairs.size() > READ_AHEAD_PAIRS) {
+                compareNextPending();
+            }
+        }
+    }
+
+    /**
+     * Called after the walk has completed, before the totals get logged
+     *
+     * @throws IOException if reporting of any outstanding comparison fails
+     */
+    protected void finish() throws IOException {
+        while (!readAheadPairs.isEmpty()) {
+            compareNextPending();
+        }
+    }
+
+    private void compareNextPending() throws IOException {
+        final PendingPair pair = readAheadPairs.remove();
+        report(compare(imdiDiffer, pair.source, pair.target, pair.relativePath, pair.targetListed));
+    }
+
+    /**
+     * Starts reading the files of a pair ahead, if reading ahead; call when
+     * the pair gets submitted
+     *
+     * @param source source to compare
+     * @param target target to compare to
+     * @param relativePath relative path that applies to both source and target
+     */
+    protected void scheduleReadAhead(Path source, Path target, Path relativePath) {
+        if (readAhead == null) {
+            return;
+        }
+        if (previousManifest != null && previousManifest.get(RunManifest.toKey(relativePath)) != null) {
+            // probably unchanged, in which case neither file gets read
+            return;
+        }
+        readAhead.schedule(source);
+        readAhead.schedule(target);
+    }
+
+    /**
+     * Compares source and target files using the provided {@link ImdiDiffer},
+     * unless the previous manifest shows that neither file has changed since
+     * it was last compared. Only reads state of the visitor that does not
+     * change during the walk, so it is safe to call from any thread as long
+     * as the differ is not shared between threads.
+     *
+     * @param differ differ to compare with
+     * @param source source to compare
+     * @param target target to compare to
+     * @param relativePath relative path that applies to both source and target
+     * @param targetListed whether the target is known to exist; if not, its
+     * existence gets checked
+     * @return outcome of the comparison, to be passed to
+     * {@link #report(nl.mpi.imdidiff.ImdiDiffVisitor.ComparisonResult) }
+     */
+    protected ComparisonResult compare(ImdiDiffer differ, Path source, Path target, Path relativePath, boolean targetListed) {
+        try {
+            return compareOrCarry(differ, source, target, relativePath, targetListed);
+        } finally {
+            if (readAhead != null) {
+                readAhead.release(source);
+                readAhead.release(target);
+            }
+            if (archiveContents != null) {
+                archiveContents.release(source);
+                archiveContents.release(target);
+            }
+        }
+    }
+
+    private ComparisonResult compareOrCarry(ImdiDiffer differ, Path source, Path target, Path relativePath, boolean targetListed) {
+        final boolean targetExists = targetListed || Files.exists(target);
+        if (previousManifest == null && manifestWriter == null) {
+            return compareFiles(differ, source, target, relativePath, targetExists, null, null, null);
+        }
+
+        final String key = RunManifest.toKey(relativePath);
+        final RunManifest.Entry previous = previousManifest == null ? null : previousManifest.get(key);
+        final RunManifest.FileState sourceState;
+        final RunManifest.FileState targetState;
         try {
-            final Collection<String> differences = imdiDiffer.compare(source, target);
+            // files only get hashed if their size or modification time has changed
+            sourceState = RunManifest.FileState.of(source, previous == null ? null : previous.getSource());
+            targetState = targetExists ? RunManifest.FileState.of(target, previous == null ? null : previous.getTarget()) : null;
+        } catch (IOException ex) {
+            return new ComparisonResult(source, target, relativePath, null, ex, null, false);
+        }
+
+        if (previous != null && previous.getResult() >= 0
+                && sourceState.hasSameContent(previous.getSource())
+                && targetState != null && targetState.hasSameContent(previous.getTarget())) {
+            logger.debug("Unchanged since previous run: {}", relativePath);
+            final RunManifest.Entry entry = new RunManifest.Entry(key, sourceState, targetState, previous.getResult());
+            return new ComparisonResult(source, target, relativePath, null, null, entry, true);
+        } else {
+            return compareFiles(differ, source, target, relativePath, targetExists, key, sourceState, targetState);
+        }
+    }
+
+    private ComparisonResult compareFiles(ImdiDiffer differ, Path source, Path target, Path relativePath, boolean targetExists, String key, RunManifest.FileState sourceState, RunManifest.FileState targetState) {
+        if (!targetExists) {
+            return new ComparisonResult(source, target, relativePath, null, null,
+                    createEntry(key, sourceState, targetState, RunManifest.RESULT_MISSING_TARGET), false);
+        }
+        logger.debug("Comparing {} to {}", source, target);
+        if (metrics != null) {
+            metrics.beginPair();
+        }
+        final long start = System.nanoTime();
+        try {
+            final List<ImdiDifference> differences = differ.compare(source, target);
+            if (metrics != null) {
+                metrics.endPair(RunManifest.toKey(relativePath), System.nanoTime() - start);
+                metrics.addDifferences(differences.size());
+            }
+            // a count cut off at the limit is not recorded, so that a next run compares the pair again
+            final int result = differenceLimit > 0 && differences.size() >= differenceLimit ? RunManifest.RESULT_LIMITED : differences.size();
+            return new ComparisonResult(source, target, relativePath, differences, null,
+                    createEntry(key, sourceState, targetState, result), false);
+        } catch (IOException | SAXException | TransformerException ex) {
+            return new ComparisonResult(source, target, relativePath, null, ex,
+                    createEntry(key, sourceState, targetState, RunManifest.RESULT_FAILED), false);
+        }
+    }
+
+    private static RunManifest.Entry createEntry(String key, RunManifest.FileState sourceState, RunManifest.FileState targetState, int result) {
+        if (key == null) {
+            // no manifest in use
+            return null;
+        } else {
+            return new RunManifest.Entry(key, sourceState, targetState, result);
+        }
+    }
+
+    /**
+     * Sends all differences found to the logger at warn level and updates the
+     * counters
+     *
+     * @param result result of a comparison
+     * @throws IOException if differ failed to read either file
+     */
+    protected void report(ComparisonResult result) throws IOException {
+        if (manifestWriter != null && result.manifestEntry != null) {
+            manifestWriter.write(result.manifestEntry);
+        }
+
+        if (result.carried) {
+            final int count = result.manifestEntry.getResult();
+            carriedCount++;
+            if (count > 0) {
+                logger.info("Found {} differences for {} in previous run (unchanged since)", count, result.relativePath);
+                diffFileCount++;
+                diffCount += count;
+            }
+            if (resultsWriter != null) {
+                resultsWriter.carried(RunManifest.toKey(result.relativePath), count);
+            }
+            if (listener != null) {
+                listener.carried(result.relativePath, count);
+            }
+        } else if (result.differences == null && result.error == null) {
+            missingTargetCount++;
+            final Path source = Archives.toDefaultPath(result.source);
+            final Path target = Archives.toDefaultPath(result.target);
+            logger.warn("No matching file found in target directory for {}\n\t(expected to find {})", source, target);
+            if (resultsWriter != null) {
+                resultsWriter.targetMissing(RunManifest.toKey(result.relativePath), source, target);
+            }
+            if (listener != null) {
+                listener.targetMissing(result.relativePath);
+            }
+        } else if (result.error instanceof IOException) {
+            throw (IOException) result.error;
+        } else if (result.error instanceof SAXException || result.error instanceof TransformerException) {
+            final String message = String.format("Fatal error while %s. Skipped file: %s",
+                    result.error instanceof SAXException ? "parsing" : "transforming", result.source.getFileName());
+            failedCount++;
+            logger.error(message, result.error);
+            if (resultsWriter != null) {
+                resultsWriter.failed(RunManifest.toKey(result.relativePath), message, result.error);
+            }
+            if (listener != null) {
+                listener.failed(result.relativePath, result.error);
+            }
+        } else {
+            final List<ImdiDifference> differences = result.differences;
             if (differences.size() > 0) {
-                logger.info("Found {} differences for {}", differences.size(), relativePath);
-                for (String diff : differences) {
-                    logger.warn("{}: {}", relativePath, diff);
+                if (differenceLimit > 0 && differences.size() >= differenceLimit) {
+                    limitedCount++;
+                    logger.info("Found {} differences for {} (stopped at limit)", differences.size(), result.relativePath);
+                } else {
+                    logger.info("Found {} differences for {}", differences.size(), result.relativePath);
+                }
+                if (!countOnly) {
+                    for (ImdiDifference diff : differences) {
+                        // only gets formatted if warnings are enabled
+                        logger.warn("{}: {}", result.relativePath, diff);
+                    }
                 }
                 diffFileCount++;
                 diffCount += differences.size();
             }
-        } catch (SAXException ex) {
-            logger.error("Fatal error while parsing. Skipped file: {}", source.getFileName(), ex);
-        } catch (TransformerException ex) {
-            logger.error("Fatal error while transforming. Skipped file: {}", source.getFileName(), ex);
+            if (resultsWriter != null) {
+                resultsWriter.compared(RunManifest.toKey(result.relativePath), differences);
+            }
+            if (listener != null) {
+                listener.compared(result.relativePath, differences);
+            }
         }
     }
 
     private boolean shouldSkip(Path source) {
-        return shouldSkip(source, ImdiDiffer.SKIP_WILDCARD);
+        return ignoreRules.skipsFile(source);
+    }
+
+    static boolean isImdiFile(Path source) {
+        return hasExtension(source, IMDI_EXTENSION);
     }
 
-    private boolean shouldSkip(Path source, String nodePath) {
-        // skip node path if an entry exists for the file
-        return ImdiDiffRunner.matchesIgnorePath(ignorepaths, source, nodePath, null);
+    static boolean hasExtension(Path file, String extension) {
+        return file.getFileName().toString().toLowerCase().endsWith(extension.toLowerCase());
     }
 
-    private boolean isImdiFile(Path source) {
-        return source.getFileName().toString().toLowerCase().endsWith(".imdi");
+    /**
+     * Pair that has been submitted but not yet compared
+     */
+    private static class PendingPair {
+
+        private final Path source;
+        private final Path target;
+        private final Path relativePath;
+        private final boolean targetListed;
+
+        public PendingPair(Path source, Path target, Path relativePath, boolean targetListed) {
+            this.source = source;
+            this.target = target;
+            this.relativePath = relativePath;
+            this.targetListed = targetListed;
+        }
     }
-    
+
+    /**
+     * Outcome of the comparison of a single pair of files: either a collection
+     * of differences, the exception that prevented the comparison, a result
+     * carried over from a previous run or none of these if the target file does
+     * not exist
+     */
+    protected static class ComparisonResult {
+
+        private final Path source;
+        private final Path target;
+        private final Path relativePath;
+        private final List<ImdiDifference> differences;
+        private final Exception error;
+        private final RunManifest.Entry manifestEntry;
+        private final boolean carried;
+
+        public ComparisonResult(Path source, Path target, Path relativePath, List<ImdiDifference> differences, Exception error, RunManifest.Entry manifestEntry, boolean carried) {
+            this.source = source;
+            this.target = target;
+            this.relativePath = relativePath;
+            this.differences = differences;
+            this.error = error;
+            this.manifestEntry = manifestEntry;
+            this.carried = carried;
+        }
+
+    }
+
 }
@@ -7,7 +7,7 @@ package nl.mpi.imdidiff;
 
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.Collection;
+import java.util.List;
 import javax.xml.transform.TransformerException;
 import org.xml.sax.SAXException;
 
@@ -24,6 +24,15 @@ public interface ImdiDiffer {
 
     void initialise();
 
-    Collection<String> compare(Path source, Path target) throws IOException, SAXException, TransformerException;
+    /**
+     *
+     * @param source source file
+     * @param target target file to compare to
+     * @return all (relevant) differences between the files
+     * @throws IOException if either file cannot be read
+     * @throws SAXException if either file cannot be parsed
+     * @throws TransformerException if either file cannot be transformed
+     */
+    List<ImdiDifference> compare(Path source, Path target) throws IOException, SAXException, TransformerException;
 
 }
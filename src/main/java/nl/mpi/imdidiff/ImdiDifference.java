@@ -0,0 +1,287 @@
+package nl.mpi.imdidiff;
+
+import java.nio.file.Path;
+import org.custommonkey.xmlunit.Difference;
+import org.custommonkey.xmlunit.NodeDetail;
+import org.w3c.dom.Attr;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Node;
+
+/**
+ * Difference found between a pair of IMDI files. Holds only the details that
+ * are needed to describe the difference, so that it does not keep the compared
+ * documents in memory; the description (in the format of XMLUnit, prefixed
+ * with the ID) is only built by {@link #toString() }, so that callers that only
+ * count differences (or pass them to a logger that is not enabled) do not pay
+ * for formatting.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public final class ImdiDifference {
+
+    private final Path file;
+    private final int id;
+    private final String description;
+    private final Side control;
+    private final Side test;
+
+    /**
+     *
+     * @param file source file the difference was found in
+     * @param id ID of the difference (see
+     * {@link org.custommonkey.xmlunit.DifferenceConstants})
+     * @param description description of the type of difference
+     * @param control details of the control (source) side, can be null
+     * @param test details of the test (target) side, can be null
+     */
+    public ImdiDifference(Path file, int id, String description, Side control, Side test) {
+        this.file = file;
+        this.id = id;
+        this.description = description;
+        this.control = control;
+        this.test = test;
+    }
+
+    /**
+     *
+     * @param file source file the difference was found in
+     * @param difference difference reported by XMLUnit
+     * @return record of the difference
+     */
+    public static ImdiDifference of(Path file, Difference difference) {
+        return new ImdiDifference(file, difference.getId(), difference.getDescription(),
+                Side.of(difference.getControlNodeDetail()), Side.of(difference.getTestNodeDetail()));
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public Side getControl() {
+        return control;
+    }
+
+    public Side getTest() {
+        return test;
+    }
+
+    /**
+     * @return XPath of the control node, null if not available
+     */
+    public String getControlPath() {
+        return control == null ? null : control.getXpath();
+    }
+
+    /**
+     * @return XPath of the test node, null if not available
+     */
+    public String getTestPath() {
+        return test == null ? null : test.getXpath();
+    }
+
+    /**
+     * Appends the full description of the difference
+     *
+     * @param builder builder to append to
+     * @return the builder
+     */
+    public StringBuilder appendTo(StringBuilder builder) {
+        builder.append("ID").append(id).append(" - ");
+        if (control == null || test == null) {
+            builder.append("Difference (#").append(id).append(") ").append(description);
+        } else {
+            builder.append("Expected ").append(description)
+                    .append(" '").append(control.value)
+                    .append("' but was '").append(test.value)
+                    .append("' - comparing ");
+            control.appendTo(builder);
+            builder.append(" to ");
+            test.appendTo(builder);
+        }
+        return builder;
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder()).toString();
+    }
+
+    /**
+     * Details of the node on one side of a difference
+     */
+    public static final class Side {
+
+        /**
+         * Node type for sides without a node
+         */
+        public static final short NO_NODE = 0;
+
+        private final String xpath;
+        private final String value;
+        private final short nodeType;
+        private final String nodeName;
+        private final String nodeValue;
+        private final String containerName;
+
+        /**
+         *
+         * @param xpath location of the node
+         * @param value value that was compared (e.g. the attribute value or
+         * number of children)
+         * @param nodeType DOM type of the node, {@link #NO_NODE} if there is
+         * no node
+         * @param nodeName name of the node (target for processing
+         * instructions)
+         * @param nodeValue value of the node (data for processing
+         * instructions, system identifier for document types)
+         * @param containerName name of the owner element of attributes or the
+         * parent of text nodes (public identifier for document types)
+         */
+        public Side(String xpath, String value, short nodeType, String nodeName, String nodeValue, String containerName) {
+            this.xpath = xpath;
+            this.value = value;
+            this.nodeType = nodeType;
+            this.nodeName = nodeName;
+            this.nodeValue = nodeValue;
+            this.containerName = containerName;
+        }
+
+        private static Side of(NodeDetail detail) {
+            if (detail == null) {
+                return null;
+            }
+            final Node node = detail.getNode();
+            if (node == null) {
+                return new Side(detail.getXpathLocation(), detail.getValue(), NO_NODE, null, null, null);
+            }
+            switch (node.getNodeType()) {
+                case Node.ATTRIBUTE_NODE:
+                    final Node owner = ((Attr) node).getOwnerElement();
+                    return new Side(detail.getXpathLocation(), detail.getValue(), node.getNodeType(), node.getNodeName(), node.getNodeValue(), getContainerName(owner));
+                case Node.TEXT_NODE:
+                    return new Side(detail.getXpathLocation(), detail.getValue(), node.getNodeType(), node.getNodeName(), node.getNodeValue(), getContainerName(node.getParentNode()));
+                case Node.DOCUMENT_TYPE_NODE:
+                    final DocumentType type = (DocumentType) node;
+                    return new Side(detail.getXpathLocation(), detail.getValue(), node.getNodeType(), type.getName(), type.getSystemId(), type.getPublicId());
+                default:
+                    return new Side(detail.getXpathLocation(), detail.getValue(), node.getNodeType(), node.getNodeName(), node.getNodeValue(), null);
+            }
+        }
+
+        /**
+         * @return name of the container node, in the form it is described
+         * (element name, document marker etc.)
+         */
+        private static String getContainerName(Node container) {
+            if (container == null) {
+                return null;
+            } else if (container.getNodeType() == Node.ELEMENT_NODE) {
+                return container.getNodeName();
+            } else {
+                // unlikely; describe as XMLUnit would
+                return new Side(null, null, container.getNodeType(), container.getNodeName(), container.getNodeValue(), null).describeNode(false);
+            }
+        }
+
+        public String getXpath() {
+            return xpath;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public short getNodeType() {
+            return nodeType;
+        }
+
+        public String getNodeName() {
+            return nodeName;
+        }
+
+        public String getNodeValue() {
+            return nodeValue;
+        }
+
+        public String getContainerName() {
+            return containerName;
+        }
+
+        /**
+         * Appends the node description and location, like
+         * {@link org.custommonkey.xmlunit.NodeDescriptor#appendNodeDetail(java.lang.StringBuffer, org.custommonkey.xmlunit.NodeDetail)}
+         */
+        private void appendTo(StringBuilder builder) {
+            if (nodeType != NO_NODE) {
+                builder.append('<').append(describeNode(true)).append('>');
+            }
+            builder.append(" at ").append(xpath);
+        }
+
+        private String describeNode(boolean topLevel) {
+            final StringBuilder builder = new StringBuilder();
+            switch (nodeType) {
+                case Node.ATTRIBUTE_NODE:
+                    appendContainer(builder);
+                    builder.append(' ').append(nodeName).append("=\"").append(nodeValue).append("\"...");
+                    break;
+                case Node.ELEMENT_NODE:
+                    builder.append(nodeName);
+                    if (topLevel) {
+                        builder.append("...");
+                    }
+                    break;
+                case Node.TEXT_NODE:
+                    appendContainer(builder);
+                    builder.append(" ...>").append(nodeValue).append("</");
+                    appendContainer(builder);
+                    break;
+                case Node.CDATA_SECTION_NODE:
+                    builder.append("![CDATA[").append(nodeValue).append("]]");
+                    break;
+                case Node.COMMENT_NODE:
+                    builder.append("!--").append(nodeValue).append("--");
+                    break;
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    builder.append('?').append(nodeName).append(' ').append(nodeValue).append('?');
+                    break;
+                case Node.DOCUMENT_TYPE_NODE:
+                    builder.append("!DOCTYPE ").append(nodeName);
+                    final boolean hasPublicId = containerName != null && containerName.length() > 0;
+                    if (hasPublicId) {
+                        builder.append(" PUBLIC \"").append(containerName).append('"');
+                    }
+                    if (nodeValue != null && nodeValue.length() > 0) {
+                        if (!hasPublicId) {
+                            builder.append(" SYSTEM");
+                        }
+                        builder.append(" \"").append(nodeValue).append('"');
+                    }
+                    break;
+                case Node.DOCUMENT_NODE:
+                    builder.append("Document Node <...>");
+                    break;
+                default:
+                    builder.append("!--NodeType ").append(nodeType)
+                            .append(' ').append(nodeName)
+                            .append('/').append(nodeValue)
+                            .append("--");
+            }
+            return builder.toString();
+        }
+
+        private void appendContainer(StringBuilder builder) {
+            if (containerName != null) {
+                builder.append(containerName);
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import nl.mpi.imdidiff.CanonicalXmlReader.Attribute;
+import nl.mpi.imdidiff.CanonicalXmlReader.XmlNode;
+import org.custommonkey.xmlunit.ElementNameQualifier;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Element qualifier that matches the elements of IMDI lists by identity
+ * rather than by position, so that a list that has been reordered in the
+ * conversion (descriptions, keys, corpus links, resources) does not come out
+ * as a cascade of differences. Elements qualify for comparison if they have
+ * the same name (as with an {@link ElementNameQualifier}) and the same key:
+ * <ul>
+ * <li><code>CorpusLink</code>: the <code>Name</code> attribute, or the
+ * <code>ArchiveHandle</code> attribute (without format postfix) if there is no
+ * name</li>
+ * <li><code>Key</code>: the <code>Name</code> attribute together with the
+ * text content, as a list may hold several keys of the same name</li>
+ * <li><code>MediaFile</code> and <code>WrittenResource</code>: the file name
+ * of the <code>ResourceLink</code> (without path)</li>
+ * <li><code>Description</code>: the text content or, for info links without
+ * text, the <code>ArchiveHandle</code> attribute (without format postfix) or
+ * else the file name of the <code>Link</code> attribute</li>
+ * </ul>
+ * Other elements have no key. Whitespace in keys is normalised.
+ *
+ * <p>
+ * The keys are computed once per element and kept until {@link #reset() }.
+ * Siblings that remain unmatched are still compared to each other in order
+ * (see {@link org.custommonkey.xmlunit.XMLUnit#getCompareUnmatched() }), so
+ * a changed description yields a difference in text value rather than a
+ * missing node on either side. Instances are not thread safe.</p>
+ *
+ * <p>
+ * Rather than trying each pair of siblings, the differs put the siblings in
+ * groups of nodes that qualify for comparison with each other (see
+ * {@link #getMatchGroup(org.w3c.dom.Node) }) and match them with
+ * {@link #match(java.util.List, int, java.util.List, boolean[], boolean) },
+ * so that matching takes time proportional to the number of siblings.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+class ImdiElementQualifier extends ElementNameQualifier {
+
+    private static final Set<String> NAME_KEYED = ImmutableSet.of("CorpusLink");
+    private static final Set<String> NAME_AND_TEXT_KEYED = ImmutableSet.of("Key");
+    private static final Set<String> RESOURCE_LINK_KEYED = ImmutableSet.of("MediaFile", "WrittenResource");
+    private static final Set<String> TEXT_KEYED = ImmutableSet.of("Description");
+    private static final String NAME_ATTRIBUTE = "Name";
+    private static final String HANDLE_ATTRIBUTE = "ArchiveHandle";
+    private static final String LINK_ATTRIBUTE = "Link";
+    private static final String HANDLE_FORMAT_POSTFIX = "@format=imdi";
+    private static final String RESOURCE_LINK = "ResourceLink";
+
+    /**
+     * Keys of the elements of a keyed type seen so far; elements without a
+     * key are mapped to null
+     */
+    private final Map<Element, String> keys = new IdentityHashMap<>();
+
+    @Override
+    public boolean qualifyForComparison(Element control, Element test) {
+        if (!super.qualifyForComparison(control, test)) {
+            return false;
+        }
+        // both have the same name
+        if (isKeyed(getLocalName(control))) {
+            return Objects.equal(getCachedKey(control), getCachedKey(test));
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param node node of a DOM document
+     * @return identifier of the group of nodes that the node qualifies for
+     * comparison with, by the criteria of XMLUnit's node list comparison
+     * with this qualifier
+     */
+    String getMatchGroup(Node node) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                final Element element = (Element) node;
+                final String name = getLocalName(element);
+                return getElementMatchGroup(name, element.getNamespaceURI(), isKeyed(name) ? getCachedKey(element) : null);
+            case Node.CDATA_SECTION_NODE:
+                // text and CDATA qualify for comparison with each other
+                return Short.toString(Node.TEXT_NODE);
+            default:
+                return Short.toString(node.getNodeType());
+        }
+    }
+
+    /**
+     *
+     * @param node node read by a {@link CanonicalXmlReader}, of which the
+     * matching key has been set
+     * @return identifier of the group of nodes that the node qualifies for
+     * comparison with
+     * @see #getMatchGroup(org.w3c.dom.Node)
+     */
+    static String getMatchGroup(XmlNode node) {
+        if (node.type == Node.ELEMENT_NODE) {
+            return getElementMatchGroup(node.localName, node.namespaceUri, node.matchKey);
+        } else {
+            return Short.toString(node.type);
+        }
+    }
+
+    private static String getElementMatchGroup(String localName, String namespaceUri, String key) {
+        // the key goes last, as it may contain any character
+        return Node.ELEMENT_NODE + " " + localName + " " + namespaceUri + " " + (key == null ? "-" : "+" + key);
+    }
+
+    /**
+     * Matches siblings like the first pass of
+     * {@link org.custommonkey.xmlunit.DifferenceEngine#compareNodeList(java.util.List, java.util.List, int, org.custommonkey.xmlunit.DifferenceListener, org.custommonkey.xmlunit.ElementQualifier)}:
+     * each control node gets the first unmatched test node of its group from
+     * its own position on, wrapping around at the end. If all test nodes of
+     * its group have been matched already, it optionally falls back to the
+     * first of those from its position on.
+     *
+     * @param controlGroups match groups of the control nodes to match
+     * @param offset position of the first of these control nodes among their
+     * siblings
+     * @param testGroups match groups of all test nodes
+     * @param matched for each test node, whether it has been matched already;
+     * gets updated
+     * @param fallback whether a control node may be matched to an already
+     * matched test node
+     * @return for each control node the position of its test node, or -1 if
+     * it has none
+     */
+    static int[] match(List<String> controlGroups, int offset, List<String> testGroups, boolean[] matched, boolean fallback) {
+        final int lastTestNode = testGroups.size() - 1;
+        final Map<String, List<Integer>> positions = new HashMap<>();
+        final Map<String, TreeSet<Integer>> unmatchedPositions = new HashMap<>();
+        for (int j = 0; j <= lastTestNode; j++) {
+            final String group = testGroups.get(j);
+            List<Integer> groupPositions = positions.get(group);
+            if (groupPositions == null) {
+                groupPositions = new ArrayList<>();
+                positions.put(group, groupPositions);
+                unmatchedPositions.put(group, new TreeSet<Integer>());
+            }
+            groupPositions.add(j);
+            if (!matched[j]) {
+                unmatchedPositions.get(group).add(j);
+            }
+        }
+        final int[] matches = new int[controlGroups.size()];
+        for (int k = 0; k < controlGroups.size(); k++) {
+            final String group = controlGroups.get(k);
+            final int i = offset + k;
+            final int startAt = i > lastTestNode ? lastTestNode : i;
+            // the first candidate from the start position on, wrapping around at the end
+            final TreeSet<Integer> unmatchedCandidates = unmatchedPositions.get(group);
+            if (unmatchedCandidates != null && !unmatchedCandidates.isEmpty()) {
+                final Integer next = unmatchedCandidates.ceiling(startAt);
+                final int j = next == null ? unmatchedCandidates.first() : next;
+                unmatchedCandidates.remove(j);
+                matches[k] = j;
+                matched[j] = true;
+            } else if (unmatchedCandidates != null && fallback) {
+                // all candidates have been matched already
+                final List<Integer> candidates = positions.get(group);
+                final int index = Collections.binarySearch(candidates, startAt);
+                if (index >= 0) {
+                    matches[k] = candidates.get(index);
+                } else {
+                    final int insertion = -index - 1;
+                    matches[k] = candidates.get(insertion < candidates.size() ? insertion : 0);
+                }
+            } else {
+                matches[k] = -1;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Forgets the keys of all elements seen so far; call after each
+     * comparison
+     */
+    public void reset() {
+        keys.clear();
+    }
+
+    private String getCachedKey(Element element) {
+        String key = keys.get(element);
+        if (key == null && !keys.containsKey(element)) {
+            key = getKey(element);
+            keys.put(element, key);
+        }
+        return key;
+    }
+
+    /**
+     *
+     * @param element element of a DOM document
+     * @return key of the element, null if it has none
+     */
+    static String getKey(Element element) {
+        final String name = getLocalName(element);
+        if (NAME_KEYED.contains(name)) {
+            return getAttributeKey(element.getAttribute(NAME_ATTRIBUTE), element.getAttribute(HANDLE_ATTRIBUTE));
+        } else if (NAME_AND_TEXT_KEYED.contains(name)) {
+            return getNameAndTextKey(element.getAttribute(NAME_ATTRIBUTE), getText(element));
+        } else if (RESOURCE_LINK_KEYED.contains(name)) {
+            for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.ELEMENT_NODE && RESOURCE_LINK.equals(child.getLocalName())) {
+                    return getFileName(getText(child));
+                }
+            }
+            return null;
+        } else if (TEXT_KEYED.contains(name)) {
+            return getTextKey(getText(element), element.getAttribute(HANDLE_ATTRIBUTE), element.getAttribute(LINK_ATTRIBUTE));
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     *
+     * @param node node read by a {@link CanonicalXmlReader}
+     * @return key of the node, null if it has none; content based keys are
+     * only available if the content has been read into memory
+     * @see #isKeyedByContent(nl.mpi.imdidiff.CanonicalXmlReader.XmlNode)
+     */
+    static String getKey(XmlNode node) {
+        if (node.type != Node.ELEMENT_NODE) {
+            return null;
+        } else if (NAME_KEYED.contains(node.localName)) {
+            return getAttributeKey(getAttribute(node, NAME_ATTRIBUTE), getAttribute(node, HANDLE_ATTRIBUTE));
+        } else if (node.children == null) {
+            return null;
+        } else if (NAME_AND_TEXT_KEYED.contains(node.localName)) {
+            return getNameAndTextKey(getAttribute(node, NAME_ATTRIBUTE), getText(node.children));
+        } else if (RESOURCE_LINK_KEYED.contains(node.localName)) {
+            for (XmlNode child : node.children) {
+                if (child.type == Node.ELEMENT_NODE && RESOURCE_LINK.equals(child.localName)) {
+                    return getFileName(getText(child.children));
+                }
+            }
+            return null;
+        } else if (TEXT_KEYED.contains(node.localName)) {
+            return getTextKey(getText(node.children), getAttribute(node, HANDLE_ATTRIBUTE), getAttribute(node, LINK_ATTRIBUTE));
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     *
+     * @param node node read by a {@link CanonicalXmlReader}
+     * @return whether the key of the node depends on its content
+     */
+    static boolean isKeyedByContent(XmlNode node) {
+        return node.type == Node.ELEMENT_NODE
+                && (NAME_AND_TEXT_KEYED.contains(node.localName) || RESOURCE_LINK_KEYED.contains(node.localName) || TEXT_KEYED.contains(node.localName));
+    }
+
+    private static boolean isKeyed(String name) {
+        return NAME_KEYED.contains(name) || NAME_AND_TEXT_KEYED.contains(name) || RESOURCE_LINK_KEYED.contains(name) || TEXT_KEYED.contains(name);
+    }
+
+    private static String getLocalName(Element element) {
+        return element.getLocalName() == null ? element.getNodeName() : element.getLocalName();
+    }
+
+    private static String getAttributeKey(String name, String handle) {
+        final String normalisedName = normalise(name);
+        if (!normalisedName.isEmpty()) {
+            return normalisedName;
+        }
+        final String normalisedHandle = normalise(handle);
+        if (normalisedHandle.endsWith(HANDLE_FORMAT_POSTFIX)) {
+            return normalisedHandle.substring(0, normalisedHandle.length() - HANDLE_FORMAT_POSTFIX.length());
+        }
+        return normalisedHandle.isEmpty() ? null : normalisedHandle;
+    }
+
+    private static String getNameAndTextKey(String name, String text) {
+        // a tab does not survive normalisation, so it cannot occur in either part
+        return normalise(name) + '\t' + normalise(text);
+    }
+
+    private static String getTextKey(String text, String handle, String link) {
+        final String normalisedText = normalise(text);
+        if (!normalisedText.isEmpty()) {
+            return normalisedText;
+        }
+        // info links have no text; the tab keeps their keys apart from texts
+        final String handleKey = getAttributeKey(null, handle);
+        if (handleKey != null) {
+            return '\t' + handleKey;
+        }
+        final String linkFileName = getFileName(link);
+        return linkFileName.isEmpty() ? "" : '\t' + linkFileName;
+    }
+
+    private static String getAttribute(XmlNode node, String localName) {
+        for (Attribute attribute : node.attributes) {
+            if (attribute.namespaceUri == null && localName.equals(attribute.localName)) {
+                return attribute.value;
+            }
+        }
+        return null;
+    }
+
+    private static String getText(Node element) {
+        final StringBuilder text = new StringBuilder();
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                text.append(child.getNodeValue());
+            }
+        }
+        return text.toString();
+    }
+
+    private static String getText(List<XmlNode> children) {
+        final StringBuilder text = new StringBuilder();
+        if (children != null) {
+            for (XmlNode child : children) {
+                if (child.type == Node.TEXT_NODE) {
+                    text.append(child.value);
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    private static String getFileName(String link) {
+        final String normalisedLink = normalise(link);
+        return normalisedLink.substring(normalisedLink.lastIndexOf('/') + 1);
+    }
+
+    private static String normalise(String value) {
+        return value == null ? "" : CharMatcher.WHITESPACE.trimAndCollapseFrom(value, ' ');
+    }
+}
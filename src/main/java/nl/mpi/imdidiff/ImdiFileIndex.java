@@ -0,0 +1,111 @@
+package nl.mpi.imdidiff;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorted listing of the IMDI files in a directory hierarchy, by relative path
+ * in the form of a manifest key (see {@link RunManifest#toKey(java.nio.file.Path)
+ * }). Files of another type can be listed under the path of their IMDI
+ * counterpart, i.e. with the extension replaced. Two indexes of parallel
+ * hierarchies can be merged in a single pass to find the pairs of files and
+ * the files that only exist on one side. Instances are immutable.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+final class ImdiFileIndex {
+
+    private final Path root;
+    private final String[] keys;
+
+    private ImdiFileIndex(Path root, String[] keys) {
+        this.root = root;
+        this.keys = keys;
+    }
+
+    /**
+     * Lists the IMDI files in a hierarchy, leaving out excluded files and
+     * directories
+     *
+     * @param root root of the hierarchy to list
+     * @param extension extension of the files to list; files of another type
+     * than IMDI are indexed by their relative path with this extension
+     * replaced by {@value ImdiDiffVisitor#IMDI_EXTENSION}
+     * @param rulesRoot root of the hierarchy that the exclude rules refer to;
+     * files and directories are looked up by the same relative path in this
+     * hierarchy (pass the root itself for the source hierarchy)
+     * @param ignoreRules rules for files and directories to skip
+     * @return sorted index of the files
+     * @throws IOException if the hierarchy cannot be walked
+     */
+    public static ImdiFileIndex list(final Path root, final String extension, final Path rulesRoot, final IgnoreRules ignoreRules) throws IOException {
+        final List<String> keys = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (ignoreRules.skipsFile(rulesRoot.resolve(RunManifest.toKey(root.relativize(dir))))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                } else {
+                    return FileVisitResult.CONTINUE;
+                }
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && ImdiDiffVisitor.hasExtension(file, extension)) {
+                    final String relativePath = RunManifest.toKey(root.relativize(file));
+                    final String key = ImdiDiffVisitor.IMDI_EXTENSION.equals(extension)
+                            ? relativePath
+                            : relativePath.substring(0, relativePath.length() - extension.length()) + ImdiDiffVisitor.IMDI_EXTENSION;
+                    if (!ignoreRules.skipsFile(rulesRoot.resolve(key))) {
+                        keys.add(key);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        final String[] sorted = keys.toArray(new String[keys.size()]);
+        Arrays.sort(sorted);
+        return new ImdiFileIndex(root, sorted);
+    }
+
+    /**
+     * @return number of files in the index
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     *
+     * @param index position in the index
+     * @return relative path of the file at the position, as a manifest key
+     */
+    public String getKey(int index) {
+        return keys[index];
+    }
+
+    /**
+     *
+     * @param index position in the index
+     * @return relative path of the file at the position
+     */
+    public Path getRelativePath(int index) {
+        return root.getFileSystem().getPath(keys[index]);
+    }
+
+    /**
+     * @return root of the indexed hierarchy
+     */
+    public Path getRoot() {
+        return root;
+    }
+}
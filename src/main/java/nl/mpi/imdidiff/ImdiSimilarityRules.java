@@ -0,0 +1,348 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.io.Resources;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+import nl.mpi.imdidiff.rules.SimilarityRule;
+import nl.mpi.imdidiff.rules.SimilarityRuleProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
+
+/**
+ * Rules that identify differences between an original IMDI document and its
+ * converted counterpart that are known conversion artefacts, i.e. that make
+ * the documents similar rather than different. Operates on
+ * {@link ImdiDifference} records so that the rules apply in the same way to
+ * differences found by XMLUnit and by the {@link StreamingImdiDiffer}.
+ *
+ * <p>
+ * Rules are read from a rules file (the default rules from
+ * {@value #DEFAULT_RULES_RESOURCE}) with a rule per line: the rule type, the
+ * difference IDs (comma separated, or <code>*</code> for any), the local name
+ * of the node (attribute, element or parent of a text node; <code>*</code> for
+ * any) and the arguments of the rule type. Rule types are provided by the
+ * {@link SimilarityRuleProvider} services on the class path. On construction,
+ * the rules are compiled into a table per difference ID, in which the rules
+ * are looked up by node name, so that judging a difference only evaluates the
+ * rules that can apply to it and does not allocate. Instances are immutable
+ * and can be shared between threads.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public final class ImdiSimilarityRules {
+
+    private final static Logger logger = LoggerFactory.getLogger(ImdiSimilarityRules.class);
+
+    public static final String DEFAULT_RULES_RESOURCE = "/similarityRules.conf";
+    private static final String ANY = "*";
+
+    private final int size;
+    /**
+     * Rules for differences with an ID that no rule names explicitly
+     */
+    private final RuleTable defaultTable;
+    /**
+     * Rules by difference ID, null for IDs that no rule names explicitly
+     */
+    private final RuleTable[] tablesById;
+
+    private ImdiSimilarityRules(List<RuleLine> rules) {
+        this.size = rules.size();
+        final TreeSet<Integer> ids = new TreeSet<>();
+        for (RuleLine rule : rules) {
+            if (rule.ids != null) {
+                ids.addAll(rule.ids);
+            }
+        }
+        this.defaultTable = new RuleTable(rules, -1);
+        this.tablesById = new RuleTable[ids.isEmpty() ? 0 : ids.last() + 1];
+        for (int id : ids) {
+            tablesById[id] = new RuleTable(rules, id);
+        }
+    }
+
+    /**
+     * @return the rules of the default rules file
+     */
+    public static ImdiSimilarityRules getDefault() {
+        return DefaultRulesHolder.DEFAULT_RULES;
+    }
+
+    /**
+     *
+     * @param file rules file to read
+     * @return rules in the file
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file contains an invalid rule
+     */
+    public static ImdiSimilarityRules read(Path file) throws IOException {
+        try {
+            return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(String.format("Invalid similarity rules file %s: %s", file, ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     *
+     * @param lines lines of a rules file
+     * @return rules on the lines
+     * @throws IllegalArgumentException if a line contains an invalid rule
+     */
+    public static ImdiSimilarityRules parse(List<String> lines) {
+        final Map<String, SimilarityRuleProvider> providers = getProviders();
+        final List<RuleLine> rules = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            final String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = line.split("\\s+", 4);
+            if (fields.length < 3) {
+                throw new IllegalArgumentException(String.format("line %d: expected rule type, IDs and node name, got '%s'", i + 1, line));
+            }
+            final SimilarityRuleProvider provider = providers.get(fields[0]);
+            if (provider == null) {
+                throw new IllegalArgumentException(String.format("line %d: unknown rule type '%s'", i + 1, fields[0]));
+            }
+            try {
+                final Set<Integer> ids = parseIds(fields[1]);
+                final String nodeName = ANY.equals(fields[2]) ? null : fields[2];
+                final SimilarityRule rule = provider.create(fields[0], nodeName, fields.length > 3 ? fields[3] : null);
+                rules.add(new RuleLine(ids, nodeName, rule));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException(String.format("line %d: %s", i + 1, ex.getMessage()), ex);
+            }
+        }
+        return new ImdiSimilarityRules(rules);
+    }
+
+    private static Set<Integer> parseIds(String value) {
+        if (ANY.equals(value)) {
+            return null;
+        }
+        final Set<Integer> ids = new TreeSet<>();
+        for (String id : value.split(",")) {
+            final int parsed = Integer.parseInt(id.trim());
+            if (parsed < 0) {
+                throw new IllegalArgumentException("Invalid difference ID " + parsed);
+            }
+            ids.add(parsed);
+        }
+        return ids;
+    }
+
+    private static Map<String, SimilarityRuleProvider> getProviders() {
+        final Map<String, SimilarityRuleProvider> providers = new HashMap<>();
+        for (SimilarityRuleProvider provider : ServiceLoader.load(SimilarityRuleProvider.class)) {
+            for (String type : provider.getTypes()) {
+                if (providers.containsKey(type)) {
+                    logger.warn("Rule type {} of {} already provided by {}, ignoring", type, provider.getClass().getName(), providers.get(type).getClass().getName());
+                } else {
+                    providers.put(type, provider);
+                }
+            }
+        }
+        return providers;
+    }
+
+    /**
+     * @return number of rules
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @param difference difference to judge
+     * @return whether the difference is an acceptable similarity
+     */
+    public boolean isSimilar(ImdiDifference difference) {
+        final int id = difference.getId();
+        final RuleTable table = id >= 0 && id < tablesById.length && tablesById[id] != null ? tablesById[id] : defaultTable;
+        return table.isSimilar(difference, getNodeName(difference));
+    }
+
+    /**
+     * @return qualified name of the node the difference is about (attribute,
+     * element or parent of a text node), preferably on the control side; null
+     * if there is none
+     */
+    private static String getNodeName(ImdiDifference difference) {
+        ImdiDifference.Side side = difference.getControl();
+        if (side == null || side.getNodeType() == ImdiDifference.Side.NO_NODE) {
+            side = difference.getTest();
+            if (side == null) {
+                return null;
+            }
+        }
+        switch (side.getNodeType()) {
+            case Node.ATTRIBUTE_NODE:
+            case Node.ELEMENT_NODE:
+                return side.getNodeName();
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                return side.getContainerName();
+            default:
+                return null;
+        }
+    }
+
+    private static class DefaultRulesHolder {
+
+        private static final ImdiSimilarityRules DEFAULT_RULES = readDefault();
+
+        private static ImdiSimilarityRules readDefault() {
+            try {
+                return parse(Resources.readLines(ImdiSimilarityRules.class.getResource(DEFAULT_RULES_RESOURCE), StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                throw new IllegalStateException("Could not read default similarity rules", ex);
+            }
+        }
+    }
+
+    /**
+     * Rule as read from a line of a rules file
+     */
+    private static class RuleLine {
+
+        private final Set<Integer> ids;
+        private final String nodeName;
+        private final SimilarityRule rule;
+
+        /**
+         *
+         * @param ids IDs the rule applies to, null for any
+         * @param nodeName local node name the rule applies to, null for any
+         * @param rule the rule
+         */
+        public RuleLine(Set<Integer> ids, String nodeName, SimilarityRule rule) {
+            this.ids = ids;
+            this.nodeName = nodeName;
+            this.rule = rule;
+        }
+    }
+
+    /**
+     * Rules that apply to a single difference ID (or to all IDs without a
+     * table of their own), by node name
+     */
+    private static class RuleTable {
+
+        private static final SimilarityRule[] NO_RULES = new SimilarityRule[0];
+
+        private final SimilarityRule[] anyNodeRules;
+        private final NameTable nodeRules;
+
+        /**
+         *
+         * @param rules all rules
+         * @param id ID to select the rules for, -1 to select the rules for any
+         * ID only
+         */
+        public RuleTable(List<RuleLine> rules, int id) {
+            final List<SimilarityRule> anyNode = new ArrayList<>();
+            final Map<String, List<SimilarityRule>> byName = new LinkedHashMap<>();
+            for (RuleLine rule : rules) {
+                if (rule.ids == null || rule.ids.contains(id)) {
+                    if (rule.nodeName == null) {
+                        anyNode.add(rule.rule);
+                    } else {
+                        if (!byName.containsKey(rule.nodeName)) {
+                            byName.put(rule.nodeName, new ArrayList<SimilarityRule>());
+                        }
+                        byName.get(rule.nodeName).add(rule.rule);
+                    }
+                }
+            }
+            this.anyNodeRules = anyNode.toArray(NO_RULES);
+            this.nodeRules = new NameTable(byName);
+        }
+
+        public boolean isSimilar(ImdiDifference difference, String nodeName) {
+            for (SimilarityRule rule : anyNodeRules) {
+                if (rule.isSimilar(difference)) {
+                    return true;
+                }
+            }
+            if (nodeName != null) {
+                final SimilarityRule[] rules = nodeRules.get(nodeName);
+                if (rules != null) {
+                    for (SimilarityRule rule : rules) {
+                        if (rule.isSimilar(difference)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Open addressing hash table from local node names to rules, which is
+     * looked up with qualified names without creating a substring for the
+     * local name
+     */
+    private static class NameTable {
+
+        private final String[] names;
+        private final SimilarityRule[][] rules;
+        private final int mask;
+
+        public NameTable(Map<String, List<SimilarityRule>> byName) {
+            int capacity = 2;
+            while (capacity < byName.size() * 2) {
+                capacity *= 2;
+            }
+            this.names = new String[capacity];
+            this.rules = new SimilarityRule[capacity][];
+            this.mask = capacity - 1;
+            for (Map.Entry<String, List<SimilarityRule>> entry : byName.entrySet()) {
+                final String name = entry.getKey();
+                int index = hash(name, 0) & mask;
+                while (names[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                names[index] = name;
+                rules[index] = entry.getValue().toArray(RuleTable.NO_RULES);
+            }
+        }
+
+        /**
+         *
+         * @param qualifiedName qualified node name
+         * @return rules for the local part of the name, null if there are none
+         */
+        public SimilarityRule[] get(String qualifiedName) {
+            final int start = qualifiedName.indexOf(':') + 1;
+            final int length = qualifiedName.length() - start;
+            for (int index = hash(qualifiedName, start) & mask; names[index] != null; index = (index + 1) & mask) {
+                if (names[index].length() == length && qualifiedName.startsWith(names[index], start)) {
+                    return rules[index];
+                }
+            }
+            return null;
+        }
+
+        private static int hash(String name, int start) {
+            int hash = 0;
+            for (int i = start; i < name.length(); i++) {
+                hash = 31 * hash + name.charAt(i);
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
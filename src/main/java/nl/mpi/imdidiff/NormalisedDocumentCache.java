@@ -0,0 +1,239 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import nl.mpi.imdidiff.util.StylesheetRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+/**
+ * Size bounded on-disk cache of normalised documents, shared by all threads
+ * (and subsequent runs). Entries are keyed by a hash of the input content, of
+ * the stylesheet that produced them and of the lookup documents that the
+ * stylesheet used, and are stored as compressed XML. When
+ * the total size exceeds the limit, the least recently used entries get
+ * removed.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class NormalisedDocumentCache {
+
+    private final static Logger logger = LoggerFactory.getLogger(NormalisedDocumentCache.class);
+
+    private static final HashFunction HASH_FUNCTION = Hashing.sha1();
+    private static final String ENTRY_EXTENSION = ".xml.gz";
+    /**
+     * Fraction of the maximum size to evict down to, so that eviction does not
+     * have to take place on every store once the cache is full
+     */
+    private static final double EVICTION_TARGET = 0.9;
+
+    private final Path directory;
+    private final long maxSize;
+    /**
+     * Hash of the stylesheet and the lookup documents
+     */
+    private final HashCode stylesheetHash;
+    private final AtomicLong size = new AtomicLong();
+    private final ThreadLocal<Transformer> serialisers = new ThreadLocal<Transformer>() {
+
+        @Override
+        protected Transformer initialValue() {
+            final TransformerFactory factory = StylesheetRegistry.getTransformerFactory();
+            try {
+                synchronized (factory) {
+                    return factory.newTransformer();
+                }
+            } catch (TransformerConfigurationException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    };
+
+    /**
+     *
+     * @param directory cache directory, will be created if it does not exist
+     * @param maxSize maximum total size of the cache in bytes
+     * @param stylesheet content of the stylesheet that normalises the documents
+     * @param lookupDocumentsHash hash of the lookup documents that the
+     * stylesheet uses (see
+     * {@link nl.mpi.imdidiff.util.LookupDocumentResolver#hashDocuments(java.util.List) })
+     * @throws IOException if the cache directory cannot be created or read
+     */
+    public NormalisedDocumentCache(Path directory, long maxSize, byte[] stylesheet, HashCode lookupDocumentsHash) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.stylesheetHash = HASH_FUNCTION.newHasher()
+                .putBytes(stylesheet)
+                .putBytes(lookupDocumentsHash.asBytes())
+                .hash();
+
+        Files.createDirectories(directory);
+        size.set(sizeOf(getEntries()));
+        logger.info("Using cache of normalised documents in {} ({} of {} MB in use)", directory, size.get() >> 20, maxSize >> 20);
+    }
+
+    /**
+     *
+     * @param content content of an input document
+     * @return key for the normalised version of the document
+     */
+    public HashCode getKey(byte[] content) {
+        return HASH_FUNCTION.newHasher()
+                .putBytes(stylesheetHash.asBytes())
+                .putBytes(content)
+                .hash();
+    }
+
+    /**
+     *
+     * @param key entry key
+     * @return stream of the (uncompressed) normalised document; null if there
+     * is no entry for the key
+     * @throws IOException if the entry exists but cannot be read
+     */
+    public InputStream open(HashCode key) throws IOException {
+        final Path entry = getEntryPath(key);
+        try {
+            final InputStream stream = new GZIPInputStream(Files.newInputStream(entry));
+            // update modification time for least recently used eviction
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return stream;
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a normalised document. Concurrent stores for the same key are
+     * harmless, the last one wins.
+     *
+     * @param key entry key
+     * @param document document to store
+     * @throws IOException if the entry cannot be written
+     */
+    public void store(HashCode key, Document document) throws IOException {
+        final Path entry = getEntryPath(key);
+        Files.createDirectories(entry.getParent());
+        final Path tempFile = Files.createTempFile(entry.getParent(), key.toString(), ".tmp");
+        try {
+            try (OutputStream stream = new GZIPOutputStream(Files.newOutputStream(tempFile))) {
+                serialisers.get().transform(new DOMSource(document), new StreamResult(stream));
+            } catch (TransformerException ex) {
+                throw new IOException("Could not serialise normalised document", ex);
+            }
+            final long entrySize = Files.size(tempFile);
+            Files.move(tempFile, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (size.addAndGet(entrySize) > maxSize) {
+                evict();
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Removes least recently used entries until the cache size is below the
+     * eviction target
+     *
+     * @throws IOException if the cache directory cannot be read
+     */
+    private synchronized void evict() throws IOException {
+        if (size.get() <= maxSize) {
+            // another thread has evicted in the meantime
+            return;
+        }
+        final List<Path> entries = getEntries();
+        final List<FileTime> times = new ArrayList<>(entries.size());
+        for (Path entry : entries) {
+            times.add(Files.getLastModifiedTime(entry));
+        }
+        final List<Integer> order = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return times.get(o1).compareTo(times.get(o2));
+            }
+        });
+
+        long total = sizeOf(entries);
+        final long target = (long) (maxSize * EVICTION_TARGET);
+        int evicted = 0;
+        for (int i = 0; i < order.size() && total > target; i++) {
+            final Path entry = entries.get(order.get(i));
+            try {
+                final long entrySize = Files.size(entry);
+                Files.delete(entry);
+                total -= entrySize;
+                evicted++;
+            } catch (NoSuchFileException ex) {
+                // already gone
+            }
+        }
+        size.set(total);
+        logger.debug("Evicted {} entries from cache of normalised documents", evicted);
+    }
+
+    private Path getEntryPath(HashCode key) {
+        final String name = key.toString();
+        // spread entries over subdirectories
+        return directory.resolve(name.substring(0, 2)).resolve(name + ENTRY_EXTENSION);
+    }
+
+    private List<Path> getEntries() throws IOException {
+        final List<Path> entries = new ArrayList<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (file.getFileName().toString().endsWith(ENTRY_EXTENSION)) {
+                    entries.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return entries;
+    }
+
+    private static long sizeOf(List<Path> entries) throws IOException {
+        long total = 0;
+        for (Path entry : entries) {
+            try {
+                total += Files.size(entry);
+            } catch (NoSuchFileException ex) {
+                // removed concurrently
+            }
+        }
+        return total;
+    }
+}
@@ -1,176 +1,298 @@
 package nl.mpi.imdidiff;
 
-import com.google.common.base.Converter;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Multimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.List;
-import javax.xml.transform.ErrorListener;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.stream.StreamSource;
-import net.sf.saxon.TransformerFactoryImpl;
-import org.custommonkey.xmlunit.DetailedDiff;
-import org.custommonkey.xmlunit.Diff;
+import nl.mpi.imdidiff.metrics.Phase;
+import nl.mpi.imdidiff.metrics.RunMetrics;
+import nl.mpi.imdidiff.util.LookupDocumentResolver;
+import nl.mpi.imdidiff.util.StylesheetRegistry;
 import org.custommonkey.xmlunit.Difference;
-import org.custommonkey.xmlunit.XMLUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
+ * Differ that normalises both documents before comparing them. Instances are
+ * not thread safe; use one instance per thread.
  *
  * @author Twan Goosen <twan.goosen@mpi.nl>
  */
 public class NormalisingImdiDiffer implements ImdiDiffer {
 
     private final static Logger logger = LoggerFactory.getLogger(NormalisingImdiDiffer.class);
-    private final static String SAXON_MESSAGE_EMITTER_CLASSNAME = "net.sf.saxon.serialize.MessageWarner";
+
+    /**
+     * Classpath location of the normalisation stylesheet
+     */
+    public static final String NORMALISATION_STYLESHEET = "/normaliseImdi.xsl";
+    /**
+     * Names of the lookup documents that the normalisation stylesheet loads
+     * (see {@link LookupDocumentResolver})
+     */
+    public static final List<String> LOOKUP_DOCUMENTS = ImmutableList.of("sil_to_iso6393.xml", "iso2iso.xml");
+
     private Transformer transformer;
-    private final Multimap<Path, String> ignorepaths;
+    private XMLUnitComparator comparator;
+    private final IgnoreRules ignoreRules;
+    private final URIResolver lookupResolver;
+    private final NormalisedDocumentCache cache;
+    private RunMetrics metrics;
+    private ContentReader contentReader = ContentReader.FILE_SYSTEM;
+    private boolean subtreeHashing = true;
+    private int differenceLimit = 0;
+
+    public NormalisingImdiDiffer(IgnoreRules ignoreRules) {
+        this(ignoreRules, LookupDocumentResolver.getDefault());
+    }
+
+    /**
+     *
+     * @param ignoreRules rules for differences to ignore
+     * @param lookupResolver resolver for the lookup documents referenced from
+     * the normalisation stylesheet; share it between instances so that these
+     * documents only get loaded once
+     */
+    public NormalisingImdiDiffer(IgnoreRules ignoreRules, URIResolver lookupResolver) {
+        this(ignoreRules, lookupResolver, null);
+    }
+
+    /**
+     *
+     * @param ignoreRules rules for differences to ignore
+     * @param lookupResolver resolver for the lookup documents referenced from
+     * the normalisation stylesheet; share it between instances so that these
+     * documents only get loaded once
+     * @param cache cache for normalised documents, can be null
+     */
+    public NormalisingImdiDiffer(IgnoreRules ignoreRules, URIResolver lookupResolver, NormalisedDocumentCache cache) {
+        this.ignoreRules = ignoreRules;
+        this.lookupResolver = lookupResolver;
+        this.cache = cache;
+    }
+
+    /**
+     *
+     * @param metrics metrics to record the duration of the phases of each
+     * comparison in, can be null
+     */
+    public void setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+    }
 
-    public NormalisingImdiDiffer(Multimap<Path, String> ignorepaths) {
-        this.ignorepaths = ignorepaths;
+    /**
+     *
+     * @param contentReader reader to read the files to compare through
+     * (default {@link ContentReader#FILE_SYSTEM})
+     */
+    public void setContentReader(ContentReader contentReader) {
+        this.contentReader = contentReader;
+    }
+
+    /**
+     *
+     * @param subtreeHashing whether to skip the comparison of equal subtrees
+     * (default true); takes effect on initialisation
+     * @see XMLUnitComparator#setSubtreeHashing(boolean)
+     */
+    public void setSubtreeHashing(boolean subtreeHashing) {
+        this.subtreeHashing = subtreeHashing;
+    }
+
+    /**
+     *
+     * @param differenceLimit number of relevant differences after which to
+     * stop comparing a pair (default 0, no limit)
+     */
+    public void setDifferenceLimit(int differenceLimit) {
+        this.differenceLimit = differenceLimit;
     }
 
     @Override
     public void initialise() {
-        XMLUnit.setIgnoreAttributeOrder(true);
-        XMLUnit.setIgnoreComments(true);
-        XMLUnit.setIgnoreWhitespace(true);
-        XMLUnit.setNormalizeWhitespace(true);
+        comparator = new XMLUnitComparator(null);
+        comparator.setSubtreeHashing(subtreeHashing);
 
         try {
-            final StreamSource xsltSource = new StreamSource(getClass().getResourceAsStream("/normaliseImdi.xsl"));
-            transformer = getTransformerFactory().newTransformer(xsltSource);
+            transformer = StylesheetRegistry.getTemplates(getClass(), NORMALISATION_STYLESHEET).newTransformer();
+            transformer.setURIResolver(lookupResolver);
         } catch (TransformerConfigurationException ex) {
             throw new RuntimeException(ex);
         }
     }
 
     @Override
-    public Collection<String> compare(final Path source, final Path target) throws IOException, SAXException, TransformerException {
-
-        final InputSource normalisedSource = normalise(source);
-        final InputSource normalisedTarget = normalise(target);
+    public List<ImdiDifference> compare(final Path source, final Path target) throws IOException, SAXException, TransformerException {
 
-        final Diff diff = XMLUnit.compareXML(normalisedSource, normalisedTarget);
-        final DetailedDiff detailedDiff = new DetailedDiff(diff);
-
-        final List<Difference> differences = detailedDiff.getAllDifferences();
+        final Document normalisedSource = normalise(source, Phase.NORMALISE_SOURCE);
+        final Document normalisedTarget = normalise(target, Phase.NORMALISE_TARGET);
+        return compareNormalised(source, normalisedSource, normalisedTarget);
+    }
 
-        // filter out acceptable similarities...
-        final Collection<Difference> unsimilar = Collections2.filter(differences, new Predicate<Difference>() {
+    /**
+     * Compares two documents that have already been normalised
+     *
+     * @param source source file, used to look up paths to ignore
+     * @param normalisedSource normalised source document, see
+     * {@link #normalise(java.nio.file.Path) }
+     * @param normalisedTarget normalised target document, see
+     * {@link #normalise(java.nio.file.Path) }
+     * @return differences found
+     */
+    public List<ImdiDifference> compareNormalised(final Path source, Document normalisedSource, Document normalisedTarget) {
+        // looking up the rules for the file only once
+        final IgnoreRules.FileRules fileRules = ignoreRules.forFile(source);
 
-            @Override
-            public boolean apply(Difference input) {
-                return !input.isRecoverable();
-            }
-        });
+        // only differences that are not recoverable...
+        long start = startTiming();
+        final List<Difference> unsimilar = comparator.compare(normalisedSource, normalisedTarget, fileRules, differenceLimit);
+        recordTiming(Phase.DIFF, start);
 
         // filter out skipped paths...
-        final Collection<Difference> unskippedUnsimilar = Collections2.filter(unsimilar, new Predicate<Difference>() {
-
-            @Override
-            public boolean apply(Difference input) {
-                // skipped paths should be filtered out
-                if (shouldSkip(source, input)) {
-                    logger.debug("Skipping path {}/{} in {}", input.getControlNodeDetail().getXpathLocation(), input.getTestNodeDetail().getXpathLocation(), source);
-                    return false;
-                } else {
-                    // all other cases: include
-                    return true;
-                }
+        start = startTiming();
+        final List<ImdiDifference> differences = new ArrayList<>(unsimilar.size());
+        for (Difference difference : unsimilar) {
+            if (shouldSkip(fileRules, difference)) {
+                logger.debug("Skipping path {}/{} in {}", difference.getControlNodeDetail().getXpathLocation(), difference.getTestNodeDetail().getXpathLocation(), source);
+            } else {
+                differences.add(ImdiDifference.of(source, difference));
             }
         }
-        );
+        recordTiming(Phase.FILTER, start);
+        return differences;
+    }
+
+    /**
+     * Applies the normalisation transformation to a file, or retrieves the
+     * result from the cache if there is one
+     *
+     * @param input file to normalise
+     * @return normalised document, built directly by the transformer (without
+     * serialisation and parsing)
+     * @throws IOException if the file cannot be read
+     * @throws TransformerException if the transformation fails
+     */
+    public Document normalise(Path input) throws IOException, TransformerException {
+        return normalise(input, Phase.NORMALISE_SOURCE);
+    }
 
-        // apply toString to all differences
-        return Collections2.transform(unskippedUnsimilar, new Converter<Difference, String>() {
+    /**
+     * Normalises a file, recording the time spent on it as the given phase
+     *
+     * @param input file to normalise
+     * @param phase phase to record the normalisation as
+     * @return normalised document
+     * @throws IOException if the file cannot be read
+     * @throws TransformerException if the transformation fails
+     * @see #normalise(java.nio.file.Path)
+     */
+    Document normalise(Path input, Phase phase) throws IOException, TransformerException {
+        final byte[] content = read(input, phase);
 
-            @Override
-            protected String doForward(Difference a) {
-                return String.format("ID%d - %s", a.getId(), a.toString());
+        final long start = startTiming();
+        final HashCode key = cache == null ? null : cache.getKey(content);
+        Document normalised = key == null ? null : readCached(key, input);
+        if (normalised == null) {
+            // decode strictly, like a reader on the file would
+            try (Reader reader = new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8.newDecoder())) {
+                normalised = transform(reader, input);
             }
-
-            @Override
-            protected Difference doBackward(String b) {
-                throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+            if (key != null) {
+                cache.store(key, normalised);
             }
-        });
+        }
+        recordTiming(phase, start);
+        return normalised;
+    }
+
+    /**
+     * Reads the IMDI content of a file to normalise
+     *
+     * @param input file to read
+     * @param phase phase of the normalisation that the content is for, i.e.
+     * whether the file is the source or the target of a pair
+     * @return content of the file
+     * @throws IOException if the file cannot be read
+     * @throws TransformerException if the content has to be transformed to
+     * IMDI and this fails
+     */
+    protected byte[] read(Path input, Phase phase) throws IOException, TransformerException {
+        final long start = startTiming();
+        final byte[] content = ContentReader.toByteArray(contentReader.read(input));
+        recordTiming(Phase.READ, start);
+        return content;
     }
 
-    private InputSource normalise(Path input) throws IOException, TransformerException {
+    private Document transform(Reader reader, Path input) throws TransformerException {
         // create input source from file
-        final StreamSource inputSource = new StreamSource(Files.newBufferedReader(input, StandardCharsets.UTF_8));
+        final StreamSource inputSource = new StreamSource(reader);
         inputSource.setSystemId(input.toUri().toString());
         inputSource.setPublicId(input.getFileName().toString());
 
         // normalisation transformation
-        final StringWriter writer = new StringWriter();
-        transformer.transform(inputSource, new StreamResult(writer));
-
-        // create a new input source
-        final InputSource normalised = new InputSource(new StringReader(writer.toString()));
-        normalised.setSystemId(input.toUri().toString());
-        normalised.setPublicId("normalised-" + input.getFileName().toString());
+        final Document normalised = comparator.newDocument();
+        normalised.setDocumentURI(input.toUri().toString());
+        transformer.transform(inputSource, new DOMResult(normalised));
         return normalised;
     }
 
-    private TransformerFactory getTransformerFactory() throws TransformerFactoryConfigurationError {
-        final TransformerFactory factory = TransformerFactory.newInstance();
-        if (factory instanceof TransformerFactoryImpl) {
-            configureSaxonTransfomerFactory((TransformerFactoryImpl) factory);
+    private Document readCached(HashCode key, Path input) {
+        try (InputStream stream = cache.open(key)) {
+            if (stream == null) {
+                return null;
+            }
+            final InputSource inputSource = new InputSource(stream);
+            inputSource.setSystemId(input.toUri().toString());
+            final Document document = comparator.parse(inputSource);
+            logger.trace("Normalised document for {} retrieved from cache", input);
+            return document;
+        } catch (IOException | SAXException ex) {
+            logger.warn("Ignoring unreadable cache entry {} for {}: {}", key, input, ex.getMessage());
+            return null;
         }
-        return factory;
     }
 
-    private void configureSaxonTransfomerFactory(final TransformerFactoryImpl saxonFactory) throws IllegalArgumentException {
-        // log saxon warnings and errors to our local logger
-        saxonFactory.setErrorListener(new ErrorListener() {
-
-            @Override
-            public void warning(TransformerException exception) throws TransformerException {
-                logger.warn("Saxon warning: " + exception.getMessageAndLocation());
-            }
-
-            @Override
-            public void error(TransformerException exception) throws TransformerException {
-                logger.error("Saxon error: " + exception.getMessageAndLocation());
-            }
-
-            @Override
-            public void fatalError(TransformerException exception) throws TransformerException {
-                logger.error("Saxon FATAL: " + exception.getMessageAndLocation());
-            }
-        });
+    /**
+     * @return start time to pass to {@link #recordTiming(nl.mpi.imdidiff.metrics.Phase, long)
+     * }
+     */
+    protected long startTiming() {
+        return metrics == null ? 0 : System.nanoTime();
+    }
 
-        // make all saxon internal log message to to error listener
-        saxonFactory.getConfiguration().setMessageEmitterClass(SAXON_MESSAGE_EMITTER_CLASSNAME);
+    /**
+     * Records the time elapsed since the start time as a phase, if metrics
+     * are being recorded
+     *
+     * @param phase phase to record
+     * @param start start time obtained from {@link #startTiming() }
+     */
+    protected void recordTiming(Phase phase, long start) {
+        if (metrics != null) {
+            metrics.record(phase, System.nanoTime() - start);
+        }
     }
 
-    private boolean shouldSkip(Path source, Difference diff) {
+    private boolean shouldSkip(IgnoreRules.FileRules fileRules, Difference diff) {
+        final String code = "ID" + diff.getId();
         final String controlPath = diff.getControlNodeDetail().getXpathLocation();
         final String testPath = diff.getTestNodeDetail().getXpathLocation();
-        return shouldSkip(source, diff.getId(), controlPath) || shouldSkip(source, diff.getId(), testPath);
-
-    }
-
-    private boolean shouldSkip(Path source, int code, String nodePath) {
-        final Path sourceAbsolutePath = source.toAbsolutePath();
-
-        return ImdiDiffRunner.matchesIgnorePath(ignorepaths, source, nodePath, "ID" + code);
+        return fileRules.matches(controlPath, code) || fileRules.matches(testPath, code);
     }
 }
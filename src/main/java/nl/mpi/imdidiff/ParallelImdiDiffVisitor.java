@@ -0,0 +1,143 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.base.Supplier;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Variant of the {@link ImdiDiffVisitor} that compares pairs of files on a pool
+ * of worker threads. Every worker gets its own {@link ImdiDiffer} instance.
+ * Results are reported on the walking thread in the order in which the pairs
+ * were encountered, so the output (and the counters) are identical to those of
+ * a sequential run.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+class ParallelImdiDiffVisitor extends ImdiDiffVisitor {
+
+    private final static Logger logger = LoggerFactory.getLogger(ParallelImdiDiffVisitor.class);
+
+    /**
+     * Number of pending comparisons per worker thread before the walker stops
+     * to wait for the oldest result
+     */
+    private static final int PENDING_PER_THREAD = 4;
+
+    private final int threads;
+    private final int maxPending;
+    private final ThreadLocal<ImdiDiffer> differs;
+    private final Deque<Future<ComparisonResult>> pending = new ArrayDeque<>();
+    private ExecutorService executor;
+
+    /**
+     *
+     * @param source source directory; assumed to be an existing directory on
+     * the filesystem
+     * @param target target directory; assumed to be an existing directory on
+     * the filesystem that reflects the structure of dir1
+     * @param differSupplier supplier of initialised IMDI comparators, called
+     * once for each worker thread
+     * @param ignoreRules rules for files and directories to skip
+     * @param threads number of worker threads
+     */
+    public ParallelImdiDiffVisitor(Path source, Path target, final Supplier<ImdiDiffer> differSupplier, IgnoreRules ignoreRules, int threads) {
+        super(source, target, null, ignoreRules);
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive");
+        }
+        this.threads = threads;
+        this.maxPending = threads * PENDING_PER_THREAD;
+        this.differs = new ThreadLocal<ImdiDiffer>() {
+
+            @Override
+            protected ImdiDiffer initialValue() {
+                return differSupplier.get();
+            }
+
+        };
+    }
+
+    @Override
+    DiffTotals walk() throws IOException {
+        logger.info("Comparing on {} worker threads", threads);
+        executor = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+        try {
+            return super.walk();
+        } finally {
+            executor.shutdownNow();
+            pending.clear();
+        }
+    }
+
+    @Override
+    protected void submit(final Path source, final Path target, final Path relativePath, final boolean targetListed) throws IOException {
+        scheduleReadAhead(source, target, relativePath);
+        pending.add(executor.submit(new Callable<ComparisonResult>() {
+
+            @Override
+            public ComparisonResult call() throws Exception {
+                return compare(differs.get(), source, target, relativePath, targetListed);
+            }
+        }));
+
+        // keep the number of outstanding comparisons (and their results) bounded
+        while (pending.size() > maxPending) {
+            reportNext();
+        }
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        while (!pending.isEmpty()) {
+            reportNext();
+        }
+    }
+
+    /**
+     * Waits for the oldest pending comparison and reports its result
+     *
+     * @throws IOException if the comparison failed to read either file
+     */
+    private void reportNext() throws IOException {
+        final Future<ComparisonResult> next = pending.remove();
+        try {
+            report(next.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for comparison result");
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "differ-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
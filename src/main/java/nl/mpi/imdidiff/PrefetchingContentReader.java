@@ -0,0 +1,280 @@
+package nl.mpi.imdidiff;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content reader that reads files ahead on a small pool of I/O threads, so
+ * that reading the files of upcoming pairs overlaps with the comparison of
+ * earlier pairs. The walk {@link #schedule(java.nio.file.Path) schedules} the
+ * files of each pair before handing the pair over for comparison and
+ * {@link #release(java.nio.file.Path) releases} them once the comparison is
+ * done. Small files are read onto the heap, large files get mapped into
+ * memory and loaded.
+ *
+ * <p>
+ * The content held for files that have been scheduled but not released is
+ * bounded by a memory budget; loads wait until earlier files have been
+ * released (a single file that exceeds the budget gets loaded once nothing
+ * else is held). A file that is needed before its load has started is read
+ * directly instead, so a comparison never waits for the budget. Instances
+ * are thread safe.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class PrefetchingContentReader extends ContentReader implements Closeable {
+
+    private final static Logger logger = LoggerFactory.getLogger(PrefetchingContentReader.class);
+
+    /**
+     * Size from which files get mapped rather than read onto the heap
+     */
+    public static final long MAP_THRESHOLD = 4 << 20;
+
+    private enum State {
+
+        QUEUED, LOADING, LOADED, DONE
+    }
+
+    private final long budget;
+    private final ExecutorService executor;
+    /**
+     * Loads of the scheduled files that have not been released; guarded by
+     * this
+     */
+    private final Map<Path, Load> loads = new HashMap<>();
+    /**
+     * Size of the content held or being loaded; guarded by this
+     */
+    private long reserved = 0;
+    private boolean closed = false;
+    private final AtomicLong prefetchedReads = new AtomicLong();
+    private final AtomicLong directReads = new AtomicLong();
+
+    /**
+     *
+     * @param threads number of I/O threads
+     * @param budget maximum number of bytes to hold for files that have been
+     * scheduled but not released
+     */
+    public PrefetchingContentReader(int threads, long budget) {
+        this.budget = budget;
+        this.executor = Executors.newFixedThreadPool(threads, new ReaderThreadFactory());
+    }
+
+    /**
+     * Starts reading a file ahead, unless it has already been scheduled
+     *
+     * @param file file that is going to be read
+     */
+    public void schedule(Path file) {
+        final Load load;
+        synchronized (this) {
+            if (closed || loads.containsKey(file)) {
+                return;
+            }
+            load = new Load(file);
+            loads.put(file, load);
+        }
+        executor.execute(load);
+    }
+
+    /**
+     * Releases the content of a file that has been scheduled, cancelling its
+     * load if it has not started yet
+     *
+     * @param file file that is not going to be read (again)
+     */
+    public synchronized void release(Path file) {
+        final Load load = loads.remove(file);
+        if (load != null) {
+            load.release();
+            notifyAll();
+        }
+    }
+
+    @Override
+    public ByteBuffer read(Path file) throws IOException {
+        final Load load;
+        synchronized (this) {
+            load = loads.get(file);
+        }
+        if (load != null) {
+            final ByteBuffer content = load.claim();
+            if (content != null) {
+                prefetchedReads.incrementAndGet();
+                return content;
+            }
+        }
+        directReads.incrementAndGet();
+        return readFile(file, Files.size(file), false);
+    }
+
+    private static ByteBuffer readFile(Path file, long size, boolean load) throws IOException {
+        if (size < MAP_THRESHOLD) {
+            return ByteBuffer.wrap(Files.readAllBytes(file));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (load) {
+                content.load();
+            }
+            return content;
+        }
+    }
+
+    /**
+     * Stops reading ahead and drops all content held
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (Load load : loads.values()) {
+                load.release();
+            }
+            loads.clear();
+            notifyAll();
+        }
+        executor.shutdownNow();
+        logger.info("Read ahead: {} of {} file reads served from memory", prefetchedReads.get(), prefetchedReads.get() + directReads.get());
+    }
+
+    /**
+     * Loading of a single file; all state is guarded by the enclosing content
+     * reader
+     */
+    private class Load implements Runnable {
+
+        private final Path file;
+        private State state = State.QUEUED;
+        private long size;
+        private ByteBuffer content;
+
+        public Load(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            final long fileSize;
+            try {
+                fileSize = Files.size(file);
+            } catch (IOException ex) {
+                // e.g. a missing target; reading directly will report it if needed
+                giveUp();
+                return;
+            }
+
+            synchronized (PrefetchingContentReader.this) {
+                try {
+                    while (state == State.QUEUED && reserved > 0 && reserved + fileSize > budget) {
+                        PrefetchingContentReader.this.wait();
+                    }
+                } catch (InterruptedException ex) {
+                    state = State.DONE;
+                    return;
+                }
+                if (state != State.QUEUED) {
+                    // claimed or released in the meantime
+                    return;
+                }
+                size = fileSize;
+                reserved += size;
+                state = State.LOADING;
+            }
+
+            ByteBuffer loaded = null;
+            try {
+                loaded = readFile(file, fileSize, true);
+            } catch (IOException ex) {
+                logger.debug("Could not read {} ahead: {}", file, ex.getMessage());
+            }
+
+            synchronized (PrefetchingContentReader.this) {
+                if (state == State.LOADING && loaded != null) {
+                    content = loaded;
+                    state = State.LOADED;
+                } else {
+                    // released while loading, or failed
+                    reserved -= size;
+                    state = State.DONE;
+                }
+                PrefetchingContentReader.this.notifyAll();
+            }
+        }
+
+        private void giveUp() {
+            synchronized (PrefetchingContentReader.this) {
+                state = State.DONE;
+                PrefetchingContentReader.this.notifyAll();
+            }
+        }
+
+        /**
+         *
+         * @return content of the file, or null if it has not been (and is
+         * not going to be) loaded ahead
+         * @throws InterruptedIOException if interrupted while waiting for the
+         * load to complete
+         */
+        public ByteBuffer claim() throws InterruptedIOException {
+            synchronized (PrefetchingContentReader.this) {
+                if (state == State.QUEUED) {
+                    // do not wait for budget, read directly
+                    state = State.DONE;
+                    return null;
+                }
+                try {
+                    while (state == State.LOADING) {
+                        PrefetchingContentReader.this.wait();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for " + file);
+                }
+                return state == State.LOADED ? content.duplicate() : null;
+            }
+        }
+
+        /**
+         * Drops the content; called with the lock held
+         */
+        public void release() {
+            if (state == State.LOADED) {
+                reserved -= size;
+                content = null;
+            }
+            // a load in progress frees its reservation on completion
+            state = State.DONE;
+        }
+    }
+
+    private static class ReaderThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "reader-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
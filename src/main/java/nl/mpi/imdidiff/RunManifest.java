@@ -0,0 +1,353 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Record of the outcome of a run: one entry per compared pair with the size,
+ * modification time and content hash of both files and the number of
+ * differences found. A manifest of a previous (possibly interrupted) run makes
+ * it possible to only compare the pairs of which either side has changed.
+ *
+ * <p>
+ * Manifests are tab separated text files; lines starting with '#' carry
+ * metadata: the format version, a fingerprint of the configuration of the run
+ * (pairs only carry over between runs with the same configuration) and a
+ * marker that is written once the run has completed.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class RunManifest {
+
+    private final static Logger logger = LoggerFactory.getLogger(RunManifest.class);
+
+    /**
+     * Result value for pairs that could not be compared
+     */
+    public static final int RESULT_FAILED = -1;
+    /**
+     * Result value for source files without a matching target file
+     */
+    public static final int RESULT_MISSING_TARGET = -2;
+    /**
+     * Result value for pairs of which the comparison stopped at the limit to
+     * the number of differences, so that the actual number is not known
+     */
+    public static final int RESULT_LIMITED = -3;
+
+    private static final String HEADER = "# imdidiff-manifest 1";
+    private static final String FINGERPRINT_PREFIX = "# fingerprint ";
+    private static final String COMPLETE_MARKER = "# complete";
+    private static final String SEPARATOR = "\t";
+
+    private final String fingerprint;
+    private final boolean complete;
+    private final Map<String, Entry> entries;
+
+    private RunManifest(String fingerprint, boolean complete, Map<String, Entry> entries) {
+        this.fingerprint = fingerprint;
+        this.complete = complete;
+        this.entries = entries;
+    }
+
+    /**
+     *
+     * @param file manifest file to read
+     * @return manifest with all entries in the file
+     * @throws IOException if the file cannot be read or is not a manifest
+     */
+    public static RunManifest read(Path file) throws IOException {
+        String fingerprint = null;
+        boolean complete = false;
+        final Map<String, Entry> entries = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Not a manifest file: " + file);
+            }
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith(FINGERPRINT_PREFIX)) {
+                    fingerprint = line.substring(FINGERPRINT_PREFIX.length());
+                } else if (line.equals(COMPLETE_MARKER)) {
+                    complete = true;
+                } else if (!line.startsWith("#")) {
+                    final Entry entry = Entry.fromLine(line);
+                    if (entry == null) {
+                        // most likely the last line of an interrupted run
+                        logger.warn("Ignoring incomplete manifest line: {}", line);
+                    } else {
+                        entries.put(entry.path, entry);
+                    }
+                }
+            }
+        }
+        return new RunManifest(fingerprint, complete, entries);
+    }
+
+    /**
+     *
+     * @param relativePath path relative to the source and target directory
+     * @return manifest key for the path (independent of the file system's
+     * separator)
+     */
+    public static String toKey(Path relativePath) {
+        return relativePath.toString().replace(relativePath.getFileSystem().getSeparator(), "/");
+    }
+
+    /**
+     *
+     * @param key manifest key, see {@link #toKey(java.nio.file.Path) }
+     * @return entry for the path, null if not in the manifest
+     */
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return whether the run that wrote this manifest has completed
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Size, modification time and content hash of a file
+     */
+    public static class FileState {
+
+        private final long size;
+        private final long modified;
+        private final String hash;
+
+        public FileState(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+
+        /**
+         * Gets the state of a file, only hashing its content if the file
+         * appears to have changed since a previously recorded state
+         *
+         * @param file file to get state of
+         * @param previous previously recorded state, can be null
+         * @return current state of the file
+         * @throws IOException if the file cannot be read
+         */
+        public static FileState of(Path file, FileState previous) throws IOException {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            final long size = attributes.size();
+            final long modified = attributes.lastModifiedTime().toMillis();
+            if (previous != null && previous.size == size && previous.modified == modified) {
+                return previous;
+            } else {
+                return new FileState(size, modified, hash(file));
+            }
+        }
+
+        /**
+         * @return SHA-1 of the content of a file on any file system (e.g. in
+         * a zip archive)
+         */
+        private static String hash(Path file) throws IOException {
+            try (HashingInputStream input = new HashingInputStream(Hashing.sha1(), Files.newInputStream(file))) {
+                ByteStreams.copy(input, ByteStreams.nullOutputStream());
+                return input.hash().toString();
+            }
+        }
+
+        public boolean hasSameContent(FileState other) {
+            return other != null && size == other.size && hash.equals(other.hash);
+        }
+    }
+
+    /**
+     * State of a pair of files and the outcome of their comparison
+     */
+    public static class Entry {
+
+        private final String path;
+        private final FileState source;
+        private final FileState target;
+        private final int result;
+
+        /**
+         *
+         * @param path key of the pair, see {@link RunManifest#toKey(java.nio.file.Path)
+         * }
+         * @param source state of the source file
+         * @param target state of the target file, null if there is no target
+         * file
+         * @param result number of differences, or {@link #RESULT_FAILED},
+         * {@link #RESULT_MISSING_TARGET} or {@link #RESULT_LIMITED}
+         */
+        public Entry(String path, FileState source, FileState target, int result) {
+            this.path = path;
+            this.source = source;
+            this.target = target;
+            this.result = result;
+        }
+
+        public FileState getSource() {
+            return source;
+        }
+
+        public FileState getTarget() {
+            return target;
+        }
+
+        public int getResult() {
+            return result;
+        }
+
+        private String toLine() {
+            final FileState targetState = target == null ? new FileState(0, 0, "-") : target;
+            return new StringBuilder()
+                    .append(source.size).append(SEPARATOR)
+                    .append(source.modified).append(SEPARATOR)
+                    .append(source.hash).append(SEPARATOR)
+                    .append(targetState.size).append(SEPARATOR)
+                    .append(targetState.modified).append(SEPARATOR)
+                    .append(targetState.hash).append(SEPARATOR)
+                    .append(result).append(SEPARATOR)
+                    // path goes last so that it may contain anything but a line break
+                    .append(path)
+                    .toString();
+        }
+
+        private static Entry fromLine(String line) {
+            final String[] tokens = line.split(SEPARATOR, 8);
+            if (tokens.length != 8) {
+                return null;
+            }
+            try {
+                final FileState source = new FileState(Long.parseLong(tokens[0]), Long.parseLong(tokens[1]), tokens[2]);
+                final FileState target = "-".equals(tokens[5]) ? null : new FileState(Long.parseLong(tokens[3]), Long.parseLong(tokens[4]), tokens[5]);
+                return new Entry(tokens[7], source, target, Integer.parseInt(tokens[6]));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Writes a manifest incrementally, so that an interrupted run leaves a
+     * usable manifest behind. The entries go to a temporary file next to the
+     * manifest, which replaces the manifest once the writer is closed; until
+     * then a manifest of the same name (e.g. the one the run resumes from)
+     * stays in place.
+     */
+    public static class Writer implements Closeable {
+
+        /**
+         * Number of entries after which the output gets flushed
+         */
+        private static final int FLUSH_INTERVAL = 100;
+        private static final String TEMPORARY_SUFFIX = ".tmp";
+
+        private final Path file;
+        private final Path temporaryFile;
+        private final BufferedWriter writer;
+        private final RunManifest previous;
+        private final Set<String> written = new HashSet<>();
+        private boolean complete = false;
+        private int unflushed = 0;
+
+        /**
+         *
+         * @param file file to write to, will be replaced when the writer gets
+         * closed
+         * @param fingerprint fingerprint of the configuration of the run
+         * @param previous manifest the run resumes from, can be null; entries
+         * of pairs that have not been written by the time an incomplete run
+         * gets closed are carried over from this manifest
+         * @throws IOException if the file cannot be written
+         */
+        public Writer(Path file, String fingerprint, RunManifest previous) throws IOException {
+            this.file = file;
+            this.temporaryFile = file.resolveSibling(file.getFileName() + TEMPORARY_SUFFIX);
+            this.previous = previous;
+            writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8);
+            writeLine(HEADER);
+            writeLine(FINGERPRINT_PREFIX + fingerprint);
+            writer.flush();
+        }
+
+        public void write(Entry entry) throws IOException {
+            writeLine(entry.toLine());
+            if (previous != null) {
+                written.add(entry.path);
+            }
+            if (++unflushed >= FLUSH_INTERVAL) {
+                writer.flush();
+                unflushed = 0;
+            }
+        }
+
+        /**
+         * Marks the manifest as complete; call once all pairs have been
+         * written
+         *
+         * @throws IOException if writing fails
+         */
+        public void markComplete() throws IOException {
+            writeLine(COMPLETE_MARKER);
+            complete = true;
+        }
+
+        private void writeLine(String line) throws IOException {
+            writer.write(line);
+            writer.newLine();
+        }
+
+        /**
+         * Closes the temporary file and moves it in place of the manifest
+         *
+         * @throws IOException if writing or moving fails
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!complete && previous != null) {
+                    // the pairs that have not been reached yet keep their previous outcome
+                    for (Entry entry : previous.entries.values()) {
+                        if (!written.contains(entry.path)) {
+                            writeLine(entry.toLine());
+                        }
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+            try {
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
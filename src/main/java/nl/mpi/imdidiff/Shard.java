@@ -0,0 +1,103 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One of a number of disjoint subsets of the files in a hierarchy. Files are
+ * assigned to a shard by a hash of their relative path (in the form of a
+ * manifest key, see {@link RunManifest#toKey(java.nio.file.Path) }), so that
+ * every run with the same number of shards makes the same assignment,
+ * regardless of the machine, the file system or the other files in the
+ * hierarchy. Instances are immutable.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public final class Shard {
+
+    /**
+     * Hash function for the keys; fixed, so that shards are stable across
+     * versions
+     */
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+    private final int index;
+    private final int count;
+
+    /**
+     *
+     * @param index number of this shard, from 1 to count
+     * @param count total number of shards
+     */
+    public Shard(int index, int count) {
+        if (count < 1 || index < 1 || index > count) {
+            throw new IllegalArgumentException(String.format("Invalid shard %d/%d", index, count));
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     *
+     * @param value shard in the form <code>i/n</code>, e.g. <code>2/8</code>
+     * @return shard described by the value
+     * @throws IllegalArgumentException if the value does not describe a shard
+     */
+    public static Shard parse(String value) {
+        final int separator = value.indexOf('/');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Shard must be given as i/n, got '" + value + "'");
+        }
+        try {
+            return new Shard(Integer.parseInt(value.substring(0, separator)), Integer.parseInt(value.substring(separator + 1)));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Shard must be given as i/n, got '" + value + "'");
+        }
+    }
+
+    /**
+     *
+     * @param key relative path of a file as a manifest key
+     * @return whether the file belongs to this shard
+     */
+    public boolean contains(String key) {
+        if (count == 1) {
+            return true;
+        }
+        return Hashing.consistentHash(HASH_FUNCTION.hashString(key, StandardCharsets.UTF_8), count) == index - 1;
+    }
+
+    /**
+     * @return number of this shard, from 1 to {@link #getCount() }
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return total number of shards
+     */
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Shard)) {
+            return false;
+        }
+        final Shard other = (Shard) obj;
+        return index == other.index && count == other.count;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * index + count;
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
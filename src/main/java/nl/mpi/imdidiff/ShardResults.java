@@ -0,0 +1,375 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.base.Splitter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Complete outcome of a run over (a shard of) a pair of hierarchies: every
+ * difference found, every file without counterpart and every failure, together
+ * with the counters of the summary. The results of the runs over all shards of
+ * a pair of hierarchies can be merged into the report of a single run (see
+ * {@link ImdiDiffMerger}).
+ *
+ * <p>
+ * Results files are tab separated text files with one entry per line, of
+ * which the first field is the type and the second the relative path of the
+ * pair (as a manifest key). Compared pairs are followed by a line per
+ * difference. Lines starting with '#' carry metadata: the format version, the
+ * shard, a fingerprint of the configuration of the run, the limit to the
+ * number of differences per pair (if any) and, once the run has
+ * completed, the counters of the summary and a completion marker. Tabs, line
+ * breaks and backslashes in values are escaped as in the protocol of the
+ * {@link ImdiDiffServer}.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class ShardResults {
+
+    private static final String HEADER = "# imdidiff-results 1";
+    private static final String SHARD_PREFIX = "# shard ";
+    private static final String FINGERPRINT_PREFIX = "# fingerprint ";
+    private static final String DIFFERENCE_LIMIT_PREFIX = "# difference-limit ";
+    private static final String INDEXED_MARKER = "# indexed-walk";
+    private static final String CARRIED_PREFIX = "# carried ";
+    private static final String FAST_PATH_PREFIX = "# fast-path ";
+    private static final String COMPLETE_MARKER = "# complete";
+    private static final String DIFFERENCE = "D";
+    private static final char SEPARATOR = '\t';
+    private static final Splitter FIELD_SPLITTER = Splitter.on(SEPARATOR);
+
+    /**
+     * Type of an entry
+     */
+    public enum Type {
+
+        /**
+         * Pair that was compared; values are the differences found
+         */
+        COMPARED("C"),
+        /**
+         * Pair of which the number of differences was carried over from a
+         * previous run; no values
+         */
+        CARRIED("P"),
+        /**
+         * Source file without counterpart; values are the source file and the
+         * expected target file
+         */
+        MISSING_TARGET("M"),
+        /**
+         * Pair that could not be compared; values are the logged message and
+         * a description of the error
+         */
+        FAILED("F"),
+        /**
+         * Target file without counterpart (only found in an indexed walk);
+         * the value is the target file
+         */
+        MISSING_SOURCE("O");
+
+        private final String code;
+
+        private Type(String code) {
+            this.code = code;
+        }
+
+        private static Type forCode(String code) {
+            for (Type type : values()) {
+                if (type.code.equals(code)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Shard shard;
+    private final String fingerprint;
+    private final int differenceLimit;
+    private final boolean indexedWalk;
+    private final int carriedCount;
+    private final long[] fastPathCounts;
+    private final boolean complete;
+    private final List<Entry> entries;
+
+    private ShardResults(Shard shard, String fingerprint, int differenceLimit, boolean indexedWalk, int carriedCount, long[] fastPathCounts, boolean complete, List<Entry> entries) {
+        this.shard = shard;
+        this.fingerprint = fingerprint;
+        this.differenceLimit = differenceLimit;
+        this.indexedWalk = indexedWalk;
+        this.carriedCount = carriedCount;
+        this.fastPathCounts = fastPathCounts;
+        this.complete = complete;
+        this.entries = entries;
+    }
+
+    /**
+     *
+     * @param file results file to read
+     * @return results in the file, with entries in the order in which they
+     * were written
+     * @throws IOException if the file cannot be read or is not a results file
+     */
+    public static ShardResults read(Path file) throws IOException {
+        Shard shard = new Shard(1, 1);
+        String fingerprint = null;
+        int differenceLimit = 0;
+        boolean indexedWalk = false;
+        int carriedCount = -1;
+        long[] fastPathCounts = null;
+        boolean complete = false;
+        final List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Not a results file: " + file);
+            }
+            Entry compared = null;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                try {
+                    if (line.startsWith(SHARD_PREFIX)) {
+                        shard = Shard.parse(line.substring(SHARD_PREFIX.length()));
+                    } else if (line.startsWith(FINGERPRINT_PREFIX)) {
+                        fingerprint = line.substring(FINGERPRINT_PREFIX.length());
+                    } else if (line.startsWith(DIFFERENCE_LIMIT_PREFIX)) {
+                        differenceLimit = Integer.parseInt(line.substring(DIFFERENCE_LIMIT_PREFIX.length()));
+                    } else if (line.equals(INDEXED_MARKER)) {
+                        indexedWalk = true;
+                    } else if (line.startsWith(CARRIED_PREFIX)) {
+                        carriedCount = Integer.parseInt(line.substring(CARRIED_PREFIX.length()));
+                    } else if (line.startsWith(FAST_PATH_PREFIX)) {
+                        final String[] counts = line.substring(FAST_PATH_PREFIX.length()).split(" ");
+                        fastPathCounts = new long[]{Long.parseLong(counts[0]), Long.parseLong(counts[1]), Long.parseLong(counts[2])};
+                    } else if (line.equals(COMPLETE_MARKER)) {
+                        complete = true;
+                    } else if (!line.startsWith("#")) {
+                        final List<String> fields = new ArrayList<>();
+                        for (String field : FIELD_SPLITTER.split(line)) {
+                            fields.add(ImdiDiffServer.unescape(field));
+                        }
+                        if (DIFFERENCE.equals(fields.get(0)) && compared != null) {
+                            compared.values.add(fields.get(1));
+                        } else {
+                            final Type type = Type.forCode(fields.get(0));
+                            if (type == null || fields.size() < 2) {
+                                throw new IOException("Invalid line in results file " + file + ": " + line);
+                            }
+                            final Entry entry;
+                            if (type == Type.COMPARED || type == Type.CARRIED) {
+                                entry = new Entry(type, fields.get(1), Integer.parseInt(fields.get(2)), new ArrayList<String>());
+                            } else {
+                                entry = new Entry(type, fields.get(1), 0, new ArrayList<>(fields.subList(2, fields.size())));
+                            }
+                            compared = type == Type.COMPARED ? entry : null;
+                            entries.add(entry);
+                        }
+                    }
+                } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+                    throw new IOException("Invalid line in results file " + file + ": " + line, ex);
+                }
+            }
+        }
+        return new ShardResults(shard, fingerprint, differenceLimit, indexedWalk, carriedCount, fastPathCounts, complete, entries);
+    }
+
+    /**
+     * @return shard the results are for (1/1 for an unsharded run)
+     */
+    public Shard getShard() {
+        return shard;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return limit to the number of differences per pair that the run was
+     * configured with, 0 if there was no limit; pairs with this many
+     * differences may have more
+     */
+    public int getDifferenceLimit() {
+        return differenceLimit;
+    }
+
+    /**
+     * @return whether the run listed both hierarchies, so that the files that
+     * only exist in the target hierarchy are included
+     */
+    public boolean isIndexedWalk() {
+        return indexedWalk;
+    }
+
+    /**
+     * @return number of pairs of which the result was carried over from a
+     * previous run, or -1 if the run did not use a previous manifest
+     */
+    public int getCarriedCount() {
+        return carriedCount;
+    }
+
+    /**
+     * @return numbers of identical, equal after normalisation and fully
+     * compared pairs as counted by the fast path, or null if the run did not
+     * use the fast path
+     */
+    public long[] getFastPathCounts() {
+        return fastPathCounts == null ? null : fastPathCounts.clone();
+    }
+
+    /**
+     * @return whether the run that wrote the results has completed
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Outcome for a single file or pair of files
+     */
+    public static class Entry {
+
+        private final Type type;
+        private final String key;
+        private final int count;
+        private final List<String> values;
+
+        private Entry(Type type, String key, int count, List<String> values) {
+            this.type = type;
+            this.key = key;
+            this.count = count;
+            this.values = values;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return relative path of the file(s) as a manifest key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return number of differences of a compared or carried over pair
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return values that depend on the type, see {@link Type}
+         */
+        public List<String> getValues() {
+            return Collections.unmodifiableList(values);
+        }
+    }
+
+    /**
+     * Writes results incrementally, in the order in which they are reported
+     */
+    public static class Writer implements Closeable {
+
+        private final BufferedWriter writer;
+
+        /**
+         *
+         * @param file file to write to, will be replaced
+         * @param shard shard the run is over
+         * @param fingerprint fingerprint of the configuration of the run
+         * @param differenceLimit limit to the number of differences per pair,
+         * 0 for no limit
+         * @throws IOException if the file cannot be written
+         */
+        public Writer(Path file, Shard shard, String fingerprint, int differenceLimit) throws IOException {
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            writeLine(HEADER);
+            writeLine(SHARD_PREFIX + shard);
+            writeLine(FINGERPRINT_PREFIX + fingerprint);
+            if (differenceLimit > 0) {
+                writeLine(DIFFERENCE_LIMIT_PREFIX + differenceLimit);
+            }
+        }
+
+        public void compared(String key, List<ImdiDifference> differences) throws IOException {
+            writeFields(Type.COMPARED.code, key, Integer.toString(differences.size()));
+            for (ImdiDifference difference : differences) {
+                writeFields(DIFFERENCE, difference.toString());
+            }
+        }
+
+        public void carried(String key, int count) throws IOException {
+            writeFields(Type.CARRIED.code, key, Integer.toString(count));
+        }
+
+        public void targetMissing(String key, Path source, Path target) throws IOException {
+            writeFields(Type.MISSING_TARGET.code, key, source.toString(), target.toString());
+        }
+
+        public void failed(String key, String message, Exception error) throws IOException {
+            writeFields(Type.FAILED.code, key, message, error.toString());
+        }
+
+        public void sourceMissing(String key, Path target) throws IOException {
+            writeFields(Type.MISSING_SOURCE.code, key, target.toString());
+        }
+
+        /**
+         * Writes the counters of the summary and marks the results as
+         * complete; call once all results have been written
+         *
+         * @param indexedWalk whether files missing in the source hierarchy
+         * have been written
+         * @param carriedCount number of results carried over from a previous
+         * run, or -1 if no previous manifest was used
+         * @param fastPathStatistics statistics of the fast path, can be null
+         * @throws IOException if writing fails
+         */
+        public void markComplete(boolean indexedWalk, int carriedCount, FastPathStatistics fastPathStatistics) throws IOException {
+            if (indexedWalk) {
+                writeLine(INDEXED_MARKER);
+            }
+            if (carriedCount >= 0) {
+                writeLine(CARRIED_PREFIX + carriedCount);
+            }
+            if (fastPathStatistics != null) {
+                writeLine(FAST_PATH_PREFIX + fastPathStatistics.getRawHits() + " " + fastPathStatistics.getNormalisedHits() + " " + fastPathStatistics.getMisses());
+            }
+            writeLine(COMPLETE_MARKER);
+        }
+
+        private void writeFields(String... fields) throws IOException {
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) {
+                    writer.write(SEPARATOR);
+                }
+                writer.write(ImdiDiffServer.escape(fields[i]));
+            }
+            writer.newLine();
+        }
+
+        private void writeLine(String line) throws IOException {
+            writer.write(line);
+            writer.newLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+}
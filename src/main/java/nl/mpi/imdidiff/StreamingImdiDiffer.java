@@ -0,0 +1,733 @@
+package nl.mpi.imdidiff;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import nl.mpi.imdidiff.CanonicalXmlReader.Attribute;
+import nl.mpi.imdidiff.CanonicalXmlReader.XmlNode;
+import org.custommonkey.xmlunit.Difference;
+import org.custommonkey.xmlunit.DifferenceConstants;
+import org.custommonkey.xmlunit.XMLConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Differ that compares IMDI documents as they are, like
+ * {@link XMLUnitImdiDiffer}, but reads both documents as streams instead of
+ * building a DOM for either of them. It finds the same differences as
+ * XMLUnit's {@link org.custommonkey.xmlunit.DifferenceEngine} with an
+ * {@link ImdiElementQualifier} and the options set by
+ * {@link XMLUnitComparator} (see {@link CanonicalXmlReader}) and judges them
+ * with the same {@link ImdiSimilarityRules}.
+ *
+ * <p>
+ * As long as the children of two elements pair up in document order (as they
+ * do in long lists of corpus links, actors or resources) both documents are
+ * read in lockstep, holding no more than the path to the current nodes and a
+ * small signature of each sibling compared so far. Elements of which the
+ * matching key depends on their content (descriptions, resources) are read
+ * into memory one at a time. Once two sibling lists diverge, the remaining
+ * siblings on both sides are read into memory and matched by name and key.
+ * Where XMLUnit would compare a node to a sibling that has already
+ * been passed, that sibling is read again from the file. Document type
+ * declarations are not compared.</p>
+ *
+ * Instances are not thread safe; use one instance per thread.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class StreamingImdiDiffer implements ImdiDiffer {
+
+    private final static Logger logger = LoggerFactory.getLogger(StreamingImdiDiffer.class);
+
+    /**
+     * Thrown to stop a comparison once the difference limit has been reached
+     */
+    private static final LimitReachedException LIMIT_REACHED = new LimitReachedException();
+
+    private final IgnoreRules ignoreRules;
+    private XMLInputFactory inputFactory;
+    private ContentReader contentReader = ContentReader.FILE_SYSTEM;
+    private ImdiSimilarityRules similarityRules = ImdiSimilarityRules.getDefault();
+    private int differenceLimit = 0;
+
+    public StreamingImdiDiffer() {
+        this(IgnoreRules.empty());
+    }
+
+    /**
+     *
+     * @param ignoreRules rules for differences to ignore
+     */
+    public StreamingImdiDiffer(IgnoreRules ignoreRules) {
+        this.ignoreRules = ignoreRules;
+    }
+
+    /**
+     *
+     * @param contentReader reader to read the files to compare through
+     * (default {@link ContentReader#FILE_SYSTEM})
+     */
+    public void setContentReader(ContentReader contentReader) {
+        this.contentReader = contentReader;
+    }
+
+    /**
+     *
+     * @param similarityRules rules for differences that are acceptable
+     * similarities (default {@link ImdiSimilarityRules#getDefault() })
+     */
+    public void setSimilarityRules(ImdiSimilarityRules similarityRules) {
+        this.similarityRules = similarityRules;
+    }
+
+    /**
+     *
+     * @param differenceLimit number of relevant differences after which to
+     * stop comparing a pair (default 0, no limit)
+     */
+    public void setDifferenceLimit(int differenceLimit) {
+        this.differenceLimit = differenceLimit;
+    }
+
+    @Override
+    public void initialise() {
+        inputFactory = XMLInputFactory.newFactory();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        // CDATA sections are compared as text, as in the DOM differs
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    @Override
+    public List<ImdiDifference> compare(Path source, Path target) throws IOException, SAXException {
+        try (CanonicalXmlReader control = new CanonicalXmlReader(inputFactory, contentReader.openReader(source));
+                CanonicalXmlReader test = new CanonicalXmlReader(inputFactory, contentReader.openReader(target))) {
+            return new Comparison(source, target).compare(control, test);
+        } catch (XMLStreamException ex) {
+            throw new SAXException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * State of the comparison of a single pair of documents
+     */
+    private class Comparison {
+
+        private final Path source;
+        private final Path target;
+        private final IgnoreRules.FileRules fileRules;
+        private final List<ImdiDifference> differences = new ArrayList<>();
+        /**
+         * Current node at each level of the control document, to construct
+         * XPath locations; null for a level without a current node
+         */
+        private final List<XmlNode> controlLocation = new ArrayList<>();
+        /**
+         * Current node at each level of the test document
+         */
+        private final List<XmlNode> testLocation = new ArrayList<>();
+
+        public Comparison(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+            this.fileRules = ignoreRules.forFile(source);
+        }
+
+        public List<ImdiDifference> compare(CanonicalXmlReader control, CanonicalXmlReader test) throws IOException, XMLStreamException {
+            final XmlNode controlRoot = control.readRoot();
+            final XmlNode testRoot = test.readRoot();
+            controlRoot.xpathIndex = testRoot.xpathIndex = 1;
+            controlLocation.add(null);
+            testLocation.add(null);
+            try {
+                compareNode(
+                        controlRoot, new StreamChildren(control, source, controlRoot.nodeName, new int[0]),
+                        testRoot, new StreamChildren(test, target, testRoot.nodeName, new int[0]));
+            } catch (LimitReachedException ex) {
+                logger.trace("Difference limit reached for {}", source);
+            }
+            return differences;
+        }
+
+        private void compareNode(XmlNode control, Children controlChildren, XmlNode test, Children testChildren) throws IOException, XMLStreamException {
+            visited(controlLocation, control);
+            visited(testLocation, test);
+            compare(DifferenceConstants.NODE_TYPE, control.type, test.type, control, test);
+            compare(DifferenceConstants.NAMESPACE_URI, control.namespaceUri, test.namespaceUri, control, test);
+            if (control.type == test.type) {
+                switch (control.type) {
+                    case Node.ELEMENT_NODE:
+                        compareElement(control, test);
+                        break;
+                    case Node.TEXT_NODE:
+                        compare(DifferenceConstants.TEXT_VALUE, control.value, test.value, control, test);
+                        break;
+                    case Node.PROCESSING_INSTRUCTION_NODE:
+                        compare(DifferenceConstants.PROCESSING_INSTRUCTION_TARGET, control.nodeName, test.nodeName, control, test);
+                        compare(DifferenceConstants.PROCESSING_INSTRUCTION_DATA, control.value, test.value, control, test);
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            final XmlNode firstControlChild = controlChildren.next();
+            final XmlNode firstTestChild = testChildren.next();
+            compare(DifferenceConstants.HAS_CHILD_NODES, firstControlChild != null, firstTestChild != null, control, test);
+
+            // the numbers of children are only known once they have all been compared
+            final int lengthPosition = differences.size();
+            controlLocation.add(null);
+            testLocation.add(null);
+            final int[] lengths = compareChildren(firstControlChild, controlChildren, firstTestChild, testChildren);
+            controlLocation.remove(controlLocation.size() - 1);
+            testLocation.remove(testLocation.size() - 1);
+            if (lengths[0] != lengths[1]) {
+                add(lengthPosition, DifferenceConstants.CHILD_NODELIST_LENGTH,
+                        side(xpath(controlLocation), lengths[0], control),
+                        side(xpath(testLocation), lengths[1], test));
+            }
+        }
+
+        /**
+         * @return numbers of control and test children
+         */
+        private int[] compareChildren(XmlNode firstControlChild, Children controlChildren, XmlNode firstTestChild, Children testChildren) throws IOException, XMLStreamException {
+            if (firstControlChild == null) {
+                int count = 0;
+                for (XmlNode child = firstTestChild; child != null; child = testChildren.next()) {
+                    missingTestNode(child);
+                    count++;
+                }
+                return new int[]{0, count};
+            } else if (firstTestChild == null) {
+                int count = 0;
+                for (XmlNode child = firstControlChild; child != null; child = controlChildren.next()) {
+                    missingControlNode(child);
+                    count++;
+                }
+                return new int[]{count, 0};
+            }
+
+            // children that pair up in order are compared while streaming...
+            final List<XmlNode> passedTestChildren = new ArrayList<>();
+            XmlNode control = firstControlChild;
+            XmlNode test = firstTestChild;
+            while (control != null && test != null) {
+                readKey(control, controlChildren);
+                readKey(test, testChildren);
+                if (!qualifies(control, test)) {
+                    break;
+                }
+                compareNode(control, controlChildren.childrenOf(control), test, testChildren.childrenOf(test));
+                passedTestChildren.add(test.toSignature());
+                control = controlChildren.next();
+                test = testChildren.next();
+            }
+            final int passed = passedTestChildren.size();
+            if (control == null && test == null) {
+                return new int[]{passed, passed};
+            }
+
+            // ...the remaining ones need to be matched
+            final List<XmlNode> remainingControlChildren = readRemaining(control, controlChildren);
+            final List<XmlNode> remainingTestChildren = readRemaining(test, testChildren);
+            compareRemaining(passedTestChildren, remainingControlChildren, remainingTestChildren, testChildren);
+            return new int[]{passed + remainingControlChildren.size(), passed + remainingTestChildren.size()};
+        }
+
+        private List<XmlNode> readRemaining(XmlNode first, Children children) throws XMLStreamException {
+            final List<XmlNode> remaining = new ArrayList<>();
+            for (XmlNode child = first; child != null; child = children.next()) {
+                children.load(child);
+                child.matchKey = ImdiElementQualifier.getKey(child);
+                remaining.add(child);
+            }
+            return remaining;
+        }
+
+        /**
+         * Sets the matching key of a child, reading its content into memory
+         * if the key depends on it
+         */
+        private void readKey(XmlNode child, Children children) throws XMLStreamException {
+            if (ImdiElementQualifier.isKeyedByContent(child)) {
+                children.load(child);
+            }
+            child.matchKey = ImdiElementQualifier.getKey(child);
+        }
+
+        /**
+         * Matches and compares the children that remain after the passed
+         * ones, like
+         * {@link org.custommonkey.xmlunit.DifferenceEngine#compareNodeList(java.util.List, java.util.List, int, org.custommonkey.xmlunit.DifferenceListener, org.custommonkey.xmlunit.ElementQualifier)}
+         * (which also allows a node to be matched to an already matched node
+         * if there is no alternative)
+         */
+        private void compareRemaining(List<XmlNode> passedTestChildren, List<XmlNode> controlChildren, List<XmlNode> testChildren, Children testSource) throws IOException, XMLStreamException {
+            final int passed = passedTestChildren.size();
+            final int lastTestNode = passed + testChildren.size() - 1;
+            final boolean[] matched = new boolean[lastTestNode + 1];
+            Arrays.fill(matched, 0, passed, true);
+
+            // first find the matching nodes, by group of siblings that qualify for comparison with each other...
+            final List<String> testGroups = new ArrayList<>(lastTestNode + 1);
+            for (XmlNode test : passedTestChildren) {
+                testGroups.add(ImdiElementQualifier.getMatchGroup(test));
+            }
+            for (XmlNode test : testChildren) {
+                testGroups.add(ImdiElementQualifier.getMatchGroup(test));
+            }
+            final List<String> controlGroups = new ArrayList<>(controlChildren.size());
+            for (XmlNode control : controlChildren) {
+                controlGroups.add(ImdiElementQualifier.getMatchGroup(control));
+            }
+            final int[] matches = ImdiElementQualifier.match(controlGroups, passed, testGroups, matched, true);
+            final List<Integer> unmatched = new ArrayList<>();
+            for (int j = passed; j <= lastTestNode; j++) {
+                if (!matched[j]) {
+                    unmatched.add(j);
+                }
+            }
+
+            // ...then compare, pairing unmatched control nodes with the first unmatched test nodes
+            int nextUnmatched = 0;
+            for (int k = 0; k < controlChildren.size(); k++) {
+                final XmlNode control = controlChildren.get(k);
+                int j = matches[k];
+                if (j < 0 && nextUnmatched < unmatched.size()) {
+                    j = unmatched.get(nextUnmatched++);
+                }
+                if (j < 0) {
+                    missingControlNode(control);
+                } else {
+                    final XmlNode test;
+                    if (j < passed) {
+                        test = testSource.reload(j);
+                    } else {
+                        test = testChildren.get(j - passed);
+                    }
+                    compareNode(control, new MemoryChildren(control.children), test, new MemoryChildren(test.children));
+                }
+            }
+            for (int u = nextUnmatched; u < unmatched.size(); u++) {
+                missingTestNode(testChildren.get(unmatched.get(u) - passed));
+            }
+        }
+
+        private void compareElement(XmlNode control, XmlNode test) {
+            compare(DifferenceConstants.ELEMENT_TAG_NAME, getUnNamespacedName(control), getUnNamespacedName(test), control, test);
+            compare(DifferenceConstants.ELEMENT_NUM_ATTRIBUTES, countAttributes(control), countAttributes(test), control, test);
+            if (control.attributes.isEmpty() && test.attributes.isEmpty()) {
+                return;
+            }
+
+            final boolean[] matched = new boolean[test.attributes.size()];
+            for (Attribute attribute : control.attributes) {
+                final int index = findAttribute(test, attribute);
+                if (index >= 0) {
+                    matched[index] = true;
+                }
+                if (isSchemaLocation(attribute)) {
+                    // differences in schema location are recoverable
+                } else if (index >= 0) {
+                    final Attribute other = test.attributes.get(index);
+                    final boolean typeNames = attribute.typeName != null && other.typeName != null;
+                    final String value = typeNames ? attribute.typeName : attribute.value;
+                    final String otherValue = typeNames ? other.typeName : other.value;
+                    if (unequal(value, otherValue)) {
+                        add(differences.size(), DifferenceConstants.ATTR_VALUE,
+                                side(xpath(controlLocation) + "/@" + attribute.localName, value, control, attribute),
+                                side(xpath(testLocation) + "/@" + other.localName, otherValue, test, other));
+                    }
+                } else {
+                    add(differences.size(), DifferenceConstants.ATTR_NAME_NOT_FOUND,
+                            side(xpath(controlLocation) + "/@" + attribute.localName, getQName(attribute), control),
+                            side(xpath(testLocation), null, test));
+                }
+            }
+            for (int i = 0; i < matched.length; i++) {
+                final Attribute attribute = test.attributes.get(i);
+                if (!matched[i] && !isSchemaLocation(attribute)) {
+                    add(differences.size(), DifferenceConstants.ATTR_NAME_NOT_FOUND,
+                            side(xpath(controlLocation), null, control),
+                            side(xpath(testLocation) + "/@" + attribute.localName, getQName(attribute), test));
+                }
+            }
+        }
+
+        private void missingControlNode(XmlNode control) {
+            visited(controlLocation, control);
+            add(differences.size(), DifferenceConstants.CHILD_NODE_NOT_FOUND,
+                    side(xpath(controlLocation), getQName(control), control),
+                    side(null, null, null));
+        }
+
+        private void missingTestNode(XmlNode test) {
+            visited(testLocation, test);
+            add(differences.size(), DifferenceConstants.CHILD_NODE_NOT_FOUND,
+                    side(null, null, null),
+                    side(xpath(testLocation), getQName(test), test));
+        }
+
+        /**
+         * Records a difference between two nodes if the values are unequal.
+         * Only used for the kinds of difference that are not recoverable;
+         * others would not be reported anyway.
+         */
+        private void compare(Difference kind, Object expected, Object actual, XmlNode control, XmlNode test) {
+            if (unequal(expected, actual)) {
+                add(differences.size(), kind,
+                        side(xpath(controlLocation), expected, control),
+                        side(xpath(testLocation), actual, test));
+            }
+        }
+
+        private void add(int position, Difference kind, ImdiDifference.Side control, ImdiDifference.Side test) {
+            final ImdiDifference difference = new ImdiDifference(source, kind.getId(), kind.getDescription(), control, test);
+            if (similarityRules.isSimilar(difference)) {
+                return;
+            }
+            if (fileRules.matches(difference)) {
+                logger.debug("Skipping path {}/{} in {}", difference.getControlPath(), difference.getTestPath(), source);
+            } else {
+                differences.add(position, difference);
+                if (differenceLimit > 0 && differences.size() >= differenceLimit) {
+                    throw LIMIT_REACHED;
+                }
+            }
+        }
+    }
+
+    private static class LimitReachedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public LimitReachedException() {
+            // no stack trace needed for flow control
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Source of the children of a node, in document order
+     */
+    private static interface Children {
+
+        /**
+         * @return the next child, null if there are no more; the content of
+         * the previous child is skipped if it has not been read
+         */
+        XmlNode next() throws XMLStreamException;
+
+        /**
+         * @param child the child last returned by {@link #next() }
+         * @return the children of the child
+         */
+        Children childrenOf(XmlNode child);
+
+        /**
+         * Reads the content of a child into memory, see
+         * {@link XmlNode#children}
+         *
+         * @param child the child last returned by {@link #next() }
+         */
+        void load(XmlNode child) throws XMLStreamException;
+
+        /**
+         * @param position position of a child that has already been passed
+         * @return the child with its content in memory
+         */
+        XmlNode reload(int position) throws IOException, XMLStreamException;
+    }
+
+    /**
+     * Children that are read from a stream
+     */
+    private class StreamChildren implements Children {
+
+        private final CanonicalXmlReader reader;
+        private final Path file;
+        private final String parentName;
+        /**
+         * Positions of the ancestors (below the document element) of these
+         * children
+         */
+        private final int[] path;
+        private final Map<String, int[]> occurrences = new HashMap<>();
+        private int position = -1;
+        private boolean done = false;
+        /**
+         * Whether the content of the last child still needs to be read or
+         * skipped
+         */
+        private boolean open = false;
+        private StreamChildren openChildren;
+
+        public StreamChildren(CanonicalXmlReader reader, Path file, String parentName, int[] path) {
+            this.reader = reader;
+            this.file = file;
+            this.parentName = parentName;
+            this.path = path;
+        }
+
+        @Override
+        public XmlNode next() throws XMLStreamException {
+            if (done) {
+                return null;
+            }
+            if (open) {
+                if (openChildren == null) {
+                    reader.skipElement();
+                } else {
+                    while (openChildren.next() != null) {
+                        // skip remaining content
+                    }
+                }
+                open = false;
+                openChildren = null;
+            }
+
+            final XmlNode child = reader.nextChild(parentName);
+            if (child == null) {
+                done = true;
+            } else {
+                position++;
+                child.xpathIndex = countOccurrence(child.getXpathName());
+                open = child.type == Node.ELEMENT_NODE;
+            }
+            return child;
+        }
+
+        private int countOccurrence(String xpathName) {
+            final int[] count = occurrences.get(xpathName);
+            if (count == null) {
+                occurrences.put(xpathName, new int[]{1});
+                return 1;
+            } else {
+                return ++count[0];
+            }
+        }
+
+        @Override
+        public Children childrenOf(XmlNode child) {
+            if (child.children != null) {
+                // already read
+                return new MemoryChildren(child.children);
+            } else if (!open) {
+                return new MemoryChildren(null);
+            }
+            final int[] childPath = Arrays.copyOf(path, path.length + 1);
+            childPath[path.length] = position;
+            openChildren = new StreamChildren(reader, file, child.nodeName, childPath);
+            return openChildren;
+        }
+
+        @Override
+        public void load(XmlNode child) throws XMLStreamException {
+            if (child.children != null) {
+                return;
+            }
+            final List<XmlNode> children = new ArrayList<>();
+            final Children source = childrenOf(child);
+            for (XmlNode grandChild = source.next(); grandChild != null; grandChild = source.next()) {
+                source.load(grandChild);
+                children.add(grandChild);
+            }
+            child.children = children;
+        }
+
+        @Override
+        public XmlNode reload(int childPosition) throws IOException, XMLStreamException {
+            logger.trace("Reading node {} at {} of {} again", childPosition, path, file);
+            try (CanonicalXmlReader fileReader = new CanonicalXmlReader(inputFactory, contentReader.openReader(file))) {
+                final XmlNode root = fileReader.readRoot();
+                StreamChildren children = new StreamChildren(fileReader, file, root.nodeName, new int[0]);
+                for (int ancestorPosition : path) {
+                    children = (StreamChildren) children.childrenOf(children.moveTo(ancestorPosition));
+                }
+                final XmlNode child = children.moveTo(childPosition);
+                children.load(child);
+                return child;
+            }
+        }
+
+        private XmlNode moveTo(int childPosition) throws XMLStreamException {
+            XmlNode child = null;
+            while (position < childPosition) {
+                child = next();
+                if (child == null) {
+                    throw new XMLStreamException("Content of " + file + " changed during comparison");
+                }
+            }
+            return child;
+        }
+    }
+
+    /**
+     * Children that have been read into memory
+     */
+    private static class MemoryChildren implements Children {
+
+        private final List<XmlNode> children;
+        private int position = 0;
+
+        /**
+         *
+         * @param children children, null for none
+         */
+        public MemoryChildren(List<XmlNode> children) {
+            this.children = children;
+        }
+
+        @Override
+        public XmlNode next() {
+            if (children == null || position >= children.size()) {
+                return null;
+            }
+            return children.get(position++);
+        }
+
+        @Override
+        public Children childrenOf(XmlNode child) {
+            return new MemoryChildren(child.children);
+        }
+
+        @Override
+        public void load(XmlNode child) {
+            // already in memory
+        }
+
+        @Override
+        public XmlNode reload(int childPosition) {
+            return children.get(childPosition);
+        }
+    }
+
+    private static void visited(List<XmlNode> location, XmlNode node) {
+        location.set(location.size() - 1, node);
+    }
+
+    /**
+     * @return XPath location in the format of
+     * {@link org.custommonkey.xmlunit.XpathNodeTracker}
+     */
+    private static String xpath(List<XmlNode> location) {
+        final StringBuilder builder = new StringBuilder();
+        for (XmlNode node : location) {
+            if (node != null) {
+                builder.append('/').append(node.getXpathName()).append('[').append(node.xpathIndex).append(']');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Same criteria as the first pass of XMLUnit's node list comparison with
+     * an {@link ImdiElementQualifier}; the matching keys need to have been
+     * set
+     */
+    private static boolean qualifies(XmlNode control, XmlNode test) {
+        if (control.type != test.type) {
+            return false;
+        } else if (control.type == Node.ELEMENT_NODE) {
+            return (control.namespaceUri == null ? test.namespaceUri == null : control.namespaceUri.equals(test.namespaceUri))
+                    && control.localName.equals(test.localName)
+                    && (control.matchKey == null ? test.matchKey == null : control.matchKey.equals(test.matchKey));
+        } else {
+            return true;
+        }
+    }
+
+    private static int findAttribute(XmlNode element, Attribute attribute) {
+        for (int i = 0; i < element.attributes.size(); i++) {
+            final Attribute candidate = element.attributes.get(i);
+            if (attribute.namespaceUri == null
+                    ? candidate.qName.equals(attribute.qName)
+                    : attribute.namespaceUri.equals(candidate.namespaceUri) && attribute.localName.equals(candidate.localName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isSchemaLocation(Attribute attribute) {
+        return attribute.isSchemaInstance(XMLConstants.W3C_XML_SCHEMA_INSTANCE_SCHEMA_LOCATION_ATTR)
+                || attribute.isSchemaInstance(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NO_NAMESPACE_SCHEMA_LOCATION_ATTR);
+    }
+
+    private static int countAttributes(XmlNode element) {
+        int count = 0;
+        for (Attribute attribute : element.attributes) {
+            if (!isSchemaLocation(attribute)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String getUnNamespacedName(XmlNode element) {
+        return element.namespaceUri == null ? element.nodeName : element.localName;
+    }
+
+    private static String getQName(XmlNode node) {
+        return node.namespaceUri == null ? node.nodeName : "{" + node.namespaceUri + "}" + node.localName;
+    }
+
+    private static String getQName(Attribute attribute) {
+        return attribute.namespaceUri == null ? attribute.qName : "{" + attribute.namespaceUri + "}" + attribute.localName;
+    }
+
+    private static ImdiDifference.Side side(String xpath, Object value, XmlNode node) {
+        final String valueString = String.valueOf(value);
+        if (node == null) {
+            return new ImdiDifference.Side(xpath, valueString, ImdiDifference.Side.NO_NODE, null, null, null);
+        } else {
+            return new ImdiDifference.Side(xpath, valueString, node.type, node.nodeName, node.value, node.parentName);
+        }
+    }
+
+    private static ImdiDifference.Side side(String xpath, Object value, XmlNode owner, Attribute attribute) {
+        return new ImdiDifference.Side(xpath, String.valueOf(value), Node.ATTRIBUTE_NODE, attribute.qName, attribute.value, owner.nodeName);
+    }
+
+    /**
+     * Same as XMLUnit's comparison of values with whitespace normalisation
+     * enabled
+     */
+    private static boolean unequal(Object expected, Object actual) {
+        if (expected == null) {
+            return actual != null;
+        } else if (expected instanceof String && actual instanceof String) {
+            return !normalizeWhitespace(((String) expected).trim()).equals(normalizeWhitespace(((String) actual).trim()));
+        } else {
+            return !expected.equals(actual);
+        }
+    }
+
+    private static String normalizeWhitespace(String value) {
+        final StringBuilder builder = new StringBuilder(value.length());
+        boolean lastCharWasWhitespace = false;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (!lastCharWasWhitespace) {
+                    builder.append(' ');
+                    lastCharWasWhitespace = true;
+                }
+            } else {
+                builder.append(c);
+                lastCharWasWhitespace = false;
+            }
+        }
+        return builder.toString();
+    }
+}
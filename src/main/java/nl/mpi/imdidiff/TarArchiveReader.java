@@ -0,0 +1,241 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the regular files in a tar archive (ustar, GNU or pax format,
+ * optionally gzip compressed) as a single sequential stream. The content of an
+ * entry can be read after moving to the entry; content that is not read gets
+ * skipped when moving to the next entry.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+final class TarArchiveReader implements Closeable {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte TYPE_REGULAR = '0';
+    private static final byte TYPE_REGULAR_OLD = 0;
+    private static final byte TYPE_CONTIGUOUS = '7';
+    private static final byte TYPE_GNU_LONG_NAME = 'L';
+    private static final byte TYPE_PAX_HEADER = 'x';
+    private static final String PAX_PATH = "path";
+
+    private final Path file;
+    private final InputStream input;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    /**
+     * Number of bytes of the current entry (including padding) that have not
+     * been read
+     */
+    private long remaining = 0;
+    private long size = 0;
+    private boolean contentRead = true;
+
+    /**
+     *
+     * @param file tar archive, gets decompressed if it starts with the gzip
+     * signature
+     * @throws IOException if the archive cannot be opened
+     */
+    public TarArchiveReader(Path file) throws IOException {
+        this.file = file;
+        final InputStream stream = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE);
+        try {
+            stream.mark(2);
+            final boolean gzip = stream.read() == (GZIPInputStream.GZIP_MAGIC & 0xff) && stream.read() == (GZIPInputStream.GZIP_MAGIC >> 8);
+            stream.reset();
+            this.input = gzip ? new BufferedInputStream(new GZIPInputStream(stream, BUFFER_SIZE), BUFFER_SIZE) : stream;
+        } catch (IOException ex) {
+            stream.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Moves to the next regular file
+     *
+     * @return name of the entry (relative, with '/' as separator), or null if
+     * the archive has no further entries
+     * @throws IOException if the archive cannot be read
+     */
+    public String next() throws IOException {
+        String longName = null;
+        while (true) {
+            skip(remaining);
+            if (!readBlock(header) || isZero(header)) {
+                // end of archive
+                remaining = 0;
+                return null;
+            }
+            size = getSize();
+            remaining = (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            contentRead = false;
+
+            final byte type = header[156];
+            if (type == TYPE_GNU_LONG_NAME) {
+                longName = getString(readContent(), 0, (int) size);
+            } else if (type == TYPE_PAX_HEADER) {
+                final String paxPath = getPaxPath(readContent());
+                if (paxPath != null) {
+                    longName = paxPath;
+                }
+            } else if (type == TYPE_REGULAR || type == TYPE_REGULAR_OLD || type == TYPE_CONTIGUOUS) {
+                return normaliseName(longName == null ? getName() : longName);
+            } else {
+                // directory, link, global pax header etc.
+                longName = null;
+            }
+        }
+    }
+
+    /**
+     * @return size of the content of the current entry
+     */
+    public long getSize() {
+        if ((header[124] & 0x80) != 0) {
+            // GNU base-256 encoding of large sizes
+            long value = header[124] & 0x7f;
+            for (int i = 125; i < 136; i++) {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        for (int i = 124; i < 136; i++) {
+            final byte b = header[i];
+            if (b >= '0' && b <= '7') {
+                value = (value << 3) + (b - '0');
+            } else if (b != ' ' || value > 0) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Reads the content of the current entry; can be called once per entry
+     *
+     * @return the content
+     * @throws IOException if the archive cannot be read or the entry is too
+     * large to hold in memory
+     */
+    public byte[] readContent() throws IOException {
+        if (contentRead) {
+            throw new IllegalStateException("Content of entry has already been read");
+        }
+        if (size > Integer.MAX_VALUE - BLOCK_SIZE) {
+            throw new IOException(String.format("Entry of %d bytes in %s too large to read", size, file));
+        }
+        final byte[] content = new byte[(int) size];
+        try {
+            ByteStreams.readFully(input, content);
+        } catch (EOFException ex) {
+            throw new IOException("Unexpected end of tar archive " + file, ex);
+        }
+        remaining -= size;
+        contentRead = true;
+        return content;
+    }
+
+    private String getName() {
+        final String name = getString(header, 0, 100);
+        if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r') {
+            final String prefix = getString(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                return prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @return name without leading "./" or "/"
+     */
+    private static String normaliseName(String name) {
+        String normalised = name;
+        while (normalised.startsWith("./") || normalised.startsWith("/")) {
+            normalised = normalised.substring(normalised.indexOf('/') + 1);
+        }
+        return normalised;
+    }
+
+    /**
+     * @return value of the path record of a pax extended header, null if there
+     * is none
+     */
+    private static String getPaxPath(byte[] records) {
+        int position = 0;
+        while (position < records.length) {
+            // each record: "<length> <key>=<value>\n", length includes the record itself
+            int space = position;
+            while (space < records.length && records[space] != ' ') {
+                space++;
+            }
+            final int length;
+            try {
+                length = Integer.parseInt(new String(records, position, space - position, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            if (length <= 0 || position + length > records.length) {
+                return null;
+            }
+            final String record = new String(records, space + 1, position + length - space - 2, StandardCharsets.UTF_8);
+            if (record.startsWith(PAX_PATH + "=")) {
+                return record.substring(PAX_PATH.length() + 1);
+            }
+            position += length;
+        }
+        return null;
+    }
+
+    private static String getString(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+        final int read = ByteStreams.read(input, block, 0, BLOCK_SIZE);
+        if (read == 0) {
+            return false;
+        } else if (read < BLOCK_SIZE) {
+            throw new IOException("Unexpected end of tar archive " + file);
+        }
+        return true;
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skip(long count) throws IOException {
+        try {
+            ByteStreams.skipFully(input, count);
+        } catch (EOFException ex) {
+            throw new IOException("Unexpected end of tar archive " + file, ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -0,0 +1,433 @@
+package nl.mpi.imdidiff;
+
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.custommonkey.xmlunit.ComparisonController;
+import org.custommonkey.xmlunit.Difference;
+import org.custommonkey.xmlunit.DifferenceEngine;
+import org.custommonkey.xmlunit.DifferenceListener;
+import org.custommonkey.xmlunit.ElementQualifier;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.custommonkey.xmlunit.XpathNodeTracker;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * XMLUnit comparison state that is confined to a single differ instance (and
+ * therefore to a single thread).
+ *
+ * <p>
+ * XMLUnit's own entry points ({@link XMLUnit#compareXML}, {@link org.custommonkey.xmlunit.Diff})
+ * parse with a shared static DocumentBuilderFactory and prepare documents with
+ * XSLT transformations obtained from a shared static TransformerFactory. This
+ * class instead parses with its own DocumentBuilder, strips ignorable
+ * whitespace and comments in plain DOM code and drives a private
+ * {@link DifferenceEngine}, collecting differences the same way a
+ * {@link org.custommonkey.xmlunit.DetailedDiff} would. The global XMLUnit
+ * options are only set once and read afterwards.</p>
+ *
+ * <p>
+ * Sibling elements are matched by name and IMDI identity key (see
+ * {@link ImdiElementQualifier}) rather than by position alone, so that
+ * reordered lists of descriptions, keys, corpus links and resources are
+ * compared element by element. Siblings are matched by group rather than by
+ * trying each pair as XMLUnit does, which makes a difference for elements
+ * with many children (e.g. corpus nodes with thousands of links).</p>
+ *
+ * <p>
+ * Unless disabled, the comparison only descends into subtrees that differ:
+ * the hashes of all element subtrees of both documents are computed in
+ * advance (see {@link DocumentHasher#hashSubtrees(org.w3c.dom.Node) }) and
+ * a pair of elements that the engine would compare is skipped if their hashes
+ * are equal. Skipped pairs would not have yielded any differences other than
+ * recoverable ones, so the result is the same as that of a full comparison,
+ * but the cost of the comparison depends on the size of the changes rather
+ * than on the size of the documents.</p>
+ *
+ * <p>
+ * A comparison can be limited to a number of differences, in which case the
+ * engine stops as soon as that many relevant differences have been found
+ * (see {@link #compare(org.w3c.dom.Document, org.w3c.dom.Document, nl.mpi.imdidiff.IgnoreRules.FileRules, int)
+ * }).</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+class XMLUnitComparator {
+
+    private static boolean xmlUnitConfigured = false;
+
+    private final DocumentBuilder documentBuilder;
+    private final DifferenceListener differenceListener;
+    private final ImdiElementQualifier elementQualifier = new ImdiElementQualifier();
+    private final DocumentHasher hasher = new DocumentHasher();
+    private boolean subtreeHashing = true;
+
+    /**
+     *
+     * @param differenceListener listener that gets to judge each difference
+     * found, can be null to accept all differences
+     */
+    public XMLUnitComparator(DifferenceListener differenceListener) {
+        configureXMLUnit();
+        this.differenceListener = differenceListener;
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            // CDATA sections would not survive XMLUnit's document preparation either
+            factory.setCoalescing(true);
+            this.documentBuilder = factory.newDocumentBuilder();
+        } catch (ParserConfigurationException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Sets the global XMLUnit options that apply to all IMDI comparisons. Only
+     * has an effect the first time it gets called.
+     */
+    public static synchronized void configureXMLUnit() {
+        if (!xmlUnitConfigured) {
+            XMLUnit.setIgnoreAttributeOrder(true);
+            XMLUnit.setIgnoreComments(true);
+            XMLUnit.setIgnoreWhitespace(true);
+            XMLUnit.setNormalizeWhitespace(true);
+            xmlUnitConfigured = true;
+        }
+    }
+
+    /**
+     *
+     * @param subtreeHashing whether to skip the comparison of equal subtrees
+     * (default true)
+     */
+    public void setSubtreeHashing(boolean subtreeHashing) {
+        this.subtreeHashing = subtreeHashing;
+    }
+
+    public Document parse(InputSource input) throws IOException, SAXException {
+        return documentBuilder.parse(input);
+    }
+
+    /**
+     * @return a new empty document, e.g. to serve as the target of a
+     * transformation
+     */
+    public Document newDocument() {
+        return documentBuilder.newDocument();
+    }
+
+    /**
+     * Compares two documents. Both documents get modified (ignorable
+     * whitespace and comments are removed)!
+     *
+     * @param control control document
+     * @param test test document
+     * @return all differences found that are not recoverable, i.e. the ones
+     * that make the documents dissimilar
+     */
+    public List<Difference> compare(Document control, Document test) {
+        return compare(control, test, null, 0);
+    }
+
+    /**
+     * Compares two documents, stopping once a number of differences has been
+     * found. Both documents get modified (ignorable whitespace and comments
+     * are removed)!
+     *
+     * @param control control document
+     * @param test test document
+     * @param fileRules rules for differences that do not count towards the
+     * limit, can be null. These are not left out of the result.
+     * @param limit number of differences not matched by the rules after
+     * which to stop comparing; 0 for no limit
+     * @return differences found that are not recoverable, up to the point
+     * where the limit was reached
+     */
+    public List<Difference> compare(Document control, Document test, IgnoreRules.FileRules fileRules, int limit) {
+        prepare(control);
+        prepare(test);
+
+        final CollectingListener collector = new CollectingListener(fileRules, limit);
+        final DifferenceEngine engine;
+        if (subtreeHashing) {
+            final Map<Node, HashCode> subtreeHashes = hasher.hashSubtrees(control);
+            subtreeHashes.putAll(hasher.hashSubtrees(test));
+            engine = new SubtreeSkippingEngine(collector, subtreeHashes);
+        } else {
+            engine = new GroupMatchingEngine(collector);
+        }
+        try {
+            engine.compare(control, test, collector, elementQualifier);
+        } finally {
+            elementQualifier.reset();
+        }
+        return collector.differences;
+    }
+
+    /**
+     * Applies the manipulations that XMLUnit's Diff would apply given the
+     * configured options
+     *
+     * @param document document to modify
+     */
+    private void prepare(Document document) {
+        stripIgnorableNodes(document);
+        document.normalize();
+    }
+
+    private static void stripIgnorableNodes(Node node) {
+        final NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            final Node child = children.item(i);
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    stripIgnorableNodes(child);
+                    break;
+                case Node.TEXT_NODE:
+                    if (isWhitespace(child.getNodeValue())) {
+                        node.removeChild(child);
+                        i--;
+                    }
+                    break;
+                case Node.COMMENT_NODE:
+                    node.removeChild(child);
+                    i--;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static boolean isWhitespace(String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                switch (value.charAt(i)) {
+                    case ' ':
+                    case '\t':
+                    case '\n':
+                    case '\r':
+                        break;
+                    default:
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Difference engine that matches siblings by group (see
+     * {@link ImdiElementQualifier#match(java.util.List, int, java.util.List, boolean[], boolean) }),
+     * with the same outcome as the pairwise search of
+     * {@link DifferenceEngine#compareNodeList(java.util.List, java.util.List, int, org.custommonkey.xmlunit.DifferenceListener, org.custommonkey.xmlunit.ElementQualifier) }
+     * but in time proportional to the number of siblings. The XPath trackers
+     * of the engine are private, so they are accessed by reflection; if that
+     * is not possible, XMLUnit's own implementation is used.
+     */
+    private static class GroupMatchingEngine extends DifferenceEngine {
+
+        private static final Field CONTROL_TRACKER = getTrackerField("controlTracker");
+        private static final Field TEST_TRACKER = getTrackerField("testTracker");
+
+        public GroupMatchingEngine(ComparisonController controller) {
+            super(controller);
+        }
+
+        private static Field getTrackerField(String name) {
+            try {
+                final Field field = DifferenceEngine.class.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException | SecurityException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        protected void compareNodeList(List controlChildren, List testChildren, int numNodes, DifferenceListener listener, ElementQualifier elementQualifier) throws DifferenceFoundException {
+            final XpathNodeTracker controlTracker = getTracker(CONTROL_TRACKER);
+            final XpathNodeTracker testTracker = getTracker(TEST_TRACKER);
+            if (controlTracker == null || testTracker == null || !(elementQualifier instanceof ImdiElementQualifier)) {
+                super.compareNodeList(controlChildren, testChildren, numNodes, listener, elementQualifier);
+                return;
+            }
+            final ImdiElementQualifier qualifier = (ImdiElementQualifier) elementQualifier;
+            testTracker.preloadChildList(testChildren);
+
+            // first find the matching nodes...
+            final List<String> controlGroups = new ArrayList<>(numNodes);
+            for (int i = 0; i < numNodes; i++) {
+                controlGroups.add(qualifier.getMatchGroup((Node) controlChildren.get(i)));
+            }
+            final List<String> testGroups = new ArrayList<>(testChildren.size());
+            for (Object test : testChildren) {
+                testGroups.add(qualifier.getMatchGroup((Node) test));
+            }
+            final boolean compareUnmatched = XMLUnit.getCompareUnmatched();
+            final boolean[] matched = new boolean[testChildren.size()];
+            final int[] matches = ImdiElementQualifier.match(controlGroups, 0, testGroups, matched, compareUnmatched);
+            final List<Integer> unmatched = new ArrayList<>();
+            for (int j = 0; j < matched.length; j++) {
+                if (!matched[j]) {
+                    unmatched.add(j);
+                }
+            }
+
+            // ...then compare, pairing unmatched control nodes with the first unmatched test nodes
+            int nextUnmatched = 0;
+            for (int i = 0; i < numNodes; i++) {
+                final Node control = (Node) controlChildren.get(i);
+                int j = matches[i];
+                if (j < 0 && compareUnmatched && nextUnmatched < unmatched.size()) {
+                    j = unmatched.get(nextUnmatched++);
+                }
+                if (j < 0) {
+                    controlTracker.visited(control);
+                    compare(getQName(control), null, control, null, listener, CHILD_NODE_NOT_FOUND, controlTracker, null);
+                } else {
+                    final Node test = (Node) testChildren.get(j);
+                    compareNode(control, test, listener, elementQualifier);
+                    compare(Integer.valueOf(i), Integer.valueOf(j), control, test, listener, CHILD_NODELIST_SEQUENCE);
+                }
+            }
+            for (int u = nextUnmatched; u < unmatched.size(); u++) {
+                final Node test = (Node) testChildren.get(unmatched.get(u));
+                testTracker.visited(test);
+                compare(null, getQName(test), null, test, listener, CHILD_NODE_NOT_FOUND, null, testTracker);
+            }
+        }
+
+        private XpathNodeTracker getTracker(Field field) {
+            if (field == null) {
+                return null;
+            }
+            try {
+                return (XpathNodeTracker) field.get(this);
+            } catch (IllegalAccessException ex) {
+                return null;
+            }
+        }
+
+        /**
+         * @return name of a missing node as reported by XMLUnit
+         */
+        private static String getQName(Node node) {
+            final String namespaceUri = node.getNamespaceURI();
+            if (namespaceUri != null && !namespaceUri.isEmpty()) {
+                return "{" + namespaceUri + "}" + node.getLocalName();
+            }
+            return node.getNodeName();
+        }
+    }
+
+    /**
+     * Difference engine that does not descend into pairs of equal subtrees
+     */
+    private static class SubtreeSkippingEngine extends GroupMatchingEngine {
+
+        /**
+         * Hashes of the element subtrees of both documents
+         */
+        private final Map<Node, HashCode> subtreeHashes;
+
+        public SubtreeSkippingEngine(ComparisonController controller, Map<Node, HashCode> subtreeHashes) {
+            super(controller);
+            this.subtreeHashes = subtreeHashes;
+        }
+
+        @Override
+        protected void compareNode(Node control, Node test, DifferenceListener listener, ElementQualifier elementQualifier) throws DifferenceFoundException {
+            final HashCode controlHash = subtreeHashes.get(control);
+            if (controlHash != null && controlHash.equals(subtreeHashes.get(test))) {
+                // the nodes still need to be visited to keep the XPath locations of their siblings right
+                compareNodeBasics(control, test, listener);
+            } else {
+                super.compareNode(control, test, listener, elementQualifier);
+            }
+        }
+    }
+
+    /**
+     * Listener and controller that mimic
+     * {@link org.custommonkey.xmlunit.DetailedDiff}: keeps all differences
+     * that are neither identical nor similar, and only halts if there is a
+     * limit to the number of differences
+     */
+    private class CollectingListener implements DifferenceListener, ComparisonController {
+
+        private final List<Difference> differences = new ArrayList<>();
+        private final IgnoreRules.FileRules fileRules;
+        private final int limit;
+        private int counted = 0;
+
+        public CollectingListener(IgnoreRules.FileRules fileRules, int limit) {
+            this.fileRules = fileRules;
+            this.limit = limit;
+        }
+
+        @Override
+        public int differenceFound(Difference difference) {
+            final int returnValue;
+            if (differenceListener == null) {
+                returnValue = RETURN_ACCEPT_DIFFERENCE;
+            } else {
+                returnValue = differenceListener.differenceFound(difference);
+            }
+
+            switch (returnValue) {
+                case RETURN_ACCEPT_DIFFERENCE:
+                    if (!difference.isRecoverable()) {
+                        add(difference);
+                    }
+                    break;
+                case RETURN_UPGRADE_DIFFERENCE_NODES_DIFFERENT:
+                    add(difference);
+                    break;
+                default:
+                    // identical or similar
+                    break;
+            }
+            return returnValue;
+        }
+
+        private void add(Difference difference) {
+            differences.add(difference);
+            if (limit > 0 && !isIgnored(difference)) {
+                counted++;
+            }
+        }
+
+        private boolean isIgnored(Difference difference) {
+            if (fileRules == null) {
+                return false;
+            }
+            final String code = "ID" + difference.getId();
+            return fileRules.matches(difference.getControlNodeDetail().getXpathLocation(), code)
+                    || fileRules.matches(difference.getTestNodeDetail().getXpathLocation(), code);
+        }
+
+        @Override
+        public void skippedComparison(Node control, Node test) {
+            if (differenceListener != null) {
+                differenceListener.skippedComparison(control, test);
+            }
+        }
+
+        @Override
+        public boolean haltComparison(Difference afterDifference) {
+            return limit > 0 && counted >= limit;
+        }
+    }
+}
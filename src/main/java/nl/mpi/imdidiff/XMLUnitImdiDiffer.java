@@ -1,192 +1,126 @@
 package nl.mpi.imdidiff;
 
-import com.google.common.base.Converter;
-import com.google.common.base.Predicate;
-import com.google.common.base.Strings;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
-import java.util.regex.Pattern;
-import org.custommonkey.xmlunit.DetailedDiff;
-import org.custommonkey.xmlunit.Diff;
 import org.custommonkey.xmlunit.Difference;
-import org.custommonkey.xmlunit.DifferenceConstants;
 import org.custommonkey.xmlunit.DifferenceListener;
-import org.custommonkey.xmlunit.XMLUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
 import org.w3c.dom.Node;
-import org.w3c.dom.Text;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
+ * Differ that compares IMDI documents as they are, treating known conversion
+ * artefacts as similarities. Instances are not thread safe; use one instance
+ * per thread.
  *
  * @author Twan Goosen <twan.goosen@mpi.nl>
  */
 public class XMLUnitImdiDiffer implements ImdiDiffer {
 
-    public final static Set<Pattern> PATHS_TO_IGNORE = ImmutableSet.of(
-            Pattern.compile(".*/@Type"),
-            Pattern.compile(".*/@Link"),
-            Pattern.compile("/METATRANSCRIPT\\[1\\]/@Originator"),
-            Pattern.compile("/METATRANSCRIPT\\[1\\]/@Version")
-    );
-
-    public final static Set<Integer> DIFFERENCES_TO_IGNORE = ImmutableSet.of(
-            DifferenceConstants.ELEMENT_NUM_ATTRIBUTES_ID,
-            DifferenceConstants.CHILD_NODELIST_LENGTH_ID,
-            DifferenceConstants.HAS_CHILD_NODES_ID,
-            DifferenceConstants.ATTR_NAME_NOT_FOUND_ID
-    );
-
     private final static Logger logger = LoggerFactory.getLogger(XMLUnitImdiDiffer.class);
     private final DifferenceListener diffListener;
+    private final IgnoreRules ignoreRules;
+    private XMLUnitComparator comparator;
+    private boolean subtreeHashing = true;
+    private ContentReader contentReader = ContentReader.FILE_SYSTEM;
+    private ImdiSimilarityRules similarityRules = ImdiSimilarityRules.getDefault();
+    private int differenceLimit = 0;
 
     public XMLUnitImdiDiffer() {
+        this(IgnoreRules.empty());
+    }
+
+    /**
+     *
+     * @param ignoreRules rules for differences to ignore
+     */
+    public XMLUnitImdiDiffer(IgnoreRules ignoreRules) {
         this.diffListener = new ImdiDifferenceListener();
+        this.ignoreRules = ignoreRules;
     }
 
-    @Override
-    public void initialise() {
-        XMLUnit.setIgnoreAttributeOrder(true);
-        XMLUnit.setIgnoreComments(true);
-        XMLUnit.setIgnoreWhitespace(true);
-        XMLUnit.setNormalizeWhitespace(true);
+    /**
+     *
+     * @param subtreeHashing whether to skip the comparison of equal subtrees
+     * (default true); takes effect on initialisation
+     * @see XMLUnitComparator#setSubtreeHashing(boolean)
+     */
+    public void setSubtreeHashing(boolean subtreeHashing) {
+        this.subtreeHashing = subtreeHashing;
     }
 
-    @Override
-    public Collection<String> compare(Path source, Path target) throws IOException, SAXException {
-        final InputSource sourceStream = new InputSource(Files.newBufferedReader(source, StandardCharsets.UTF_8));
-        final InputSource targetStream = new InputSource(Files.newBufferedReader(target, StandardCharsets.UTF_8));
+    /**
+     *
+     * @param contentReader reader to read the files to compare through
+     * (default {@link ContentReader#FILE_SYSTEM})
+     */
+    public void setContentReader(ContentReader contentReader) {
+        this.contentReader = contentReader;
+    }
 
-        final Diff diff = XMLUnit.compareXML(sourceStream, targetStream);
-        final DetailedDiff detailedDiff = new DetailedDiff(diff);
-        detailedDiff.overrideDifferenceListener(diffListener);
+    /**
+     *
+     * @param similarityRules rules for differences that are acceptable
+     * similarities (default {@link ImdiSimilarityRules#getDefault() })
+     */
+    public void setSimilarityRules(ImdiSimilarityRules similarityRules) {
+        this.similarityRules = similarityRules;
+    }
 
-        final List<Difference> differences = detailedDiff.getAllDifferences();
+    /**
+     *
+     * @param differenceLimit number of relevant differences after which to
+     * stop comparing a pair (default 0, no limit)
+     */
+    public void setDifferenceLimit(int differenceLimit) {
+        this.differenceLimit = differenceLimit;
+    }
 
-        // filter out acceptable similarities
-        final Collection<Difference> unsimilar = Collections2.filter(differences, new Predicate<Difference>() {
+    @Override
+    public void initialise() {
+        comparator = new XMLUnitComparator(diffListener);
+        comparator.setSubtreeHashing(subtreeHashing);
+    }
 
-            @Override
-            public boolean apply(Difference input) {
-                return !input.isRecoverable();
-            }
-        });
+    @Override
+    public List<ImdiDifference> compare(Path source, Path target) throws IOException, SAXException {
+        final InputSource sourceStream = new InputSource(contentReader.openReader(source));
+        final InputSource targetStream = new InputSource(contentReader.openReader(target));
 
-        // apply toString to all differences
-        return Collections2.transform(unsimilar, new Converter<Difference, String>() {
+        final Document sourceDocument = comparator.parse(sourceStream);
+        final Document targetDocument = comparator.parse(targetStream);
 
-            @Override
-            protected String doForward(Difference a) {
-                return a.toString();
-            }
+        final IgnoreRules.FileRules fileRules = ignoreRules.forFile(source);
 
-            @Override
-            protected Difference doBackward(String b) {
-                throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        // acceptable similarities are left out by the comparator
+        final List<Difference> unsimilar = comparator.compare(sourceDocument, targetDocument, fileRules, differenceLimit);
+
+        final List<ImdiDifference> differences = new ArrayList<>(unsimilar.size());
+        for (Difference difference : unsimilar) {
+            final ImdiDifference imdiDifference = ImdiDifference.of(source, difference);
+            if (fileRules.matches(imdiDifference)) {
+                logger.debug("Skipping path {}/{} in {}", imdiDifference.getControlPath(), imdiDifference.getTestPath(), source);
+            } else {
+                differences.add(imdiDifference);
             }
-        });
+        }
+        return differences;
     }
 
-    private static class ImdiDifferenceListener implements DifferenceListener {
+    private class ImdiDifferenceListener implements DifferenceListener {
 
         @Override
         public int differenceFound(Difference difference) {
-            final String controlLocation = difference.getControlNodeDetail().getXpathLocation();
-            final String testLocation = difference.getTestNodeDetail().getXpathLocation();
-            if (controlLocation != null && !controlLocation.equals(testLocation)) {
-                // paths must be the same
+            if (similarityRules.isSimilar(ImdiDifference.of(null, difference))) {
                 return RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR;
-            } else if (DIFFERENCES_TO_IGNORE.contains(difference.getId())) {
-                // must not be an ignored difference
-                return RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR;
-            }
-            if (matchesIgnoredPathPatterns(controlLocation) || matchesIgnoredPathPatterns(testLocation)) {
-                // must not be an ignored path
-                return RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR;
-            } else {
-                final Node controlNode = difference.getControlNodeDetail().getNode();
-                final Node testNode = difference.getTestNodeDetail().getNode();
-                if (archiveHandlePostfixAdded(controlLocation, controlNode, testNode)) {
-                    // format identifier added to handle is ok
-                    return RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR;
-                }
-                if (resourceLinkContentSimilar(controlNode, testNode)) {
-                    // ignore changed path (mainly relative to absolute)
-                    return RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR;
-                }
-                if (skippedEmptyValue(controlNode, testNode)) {
-                    // ignore skipped empty values
-                    return RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR;
-                }
-                if (languageCodeUpgrade(controlNode, testNode)) {
-                    // ignore language code change 639-2 -> 639-3
-                    return RETURN_IGNORE_DIFFERENCE_NODES_SIMILAR;
-                }
-            }
-            return DifferenceListener.RETURN_ACCEPT_DIFFERENCE;
-
-        }
-
-        private boolean matchesIgnoredPathPatterns(final String xpathLocation) {
-            if (xpathLocation == null) {
-                return false;
             } else {
-                // does any of the skipped path patterns match the provided path?
-                return Iterables.any(PATHS_TO_IGNORE, new Predicate<Pattern>() {
-
-                    @Override
-                    public boolean apply(Pattern input) {
-                        return input.matcher(xpathLocation).matches();
-                    }
-
-                });
-            }
-        }
-
-        private boolean skippedEmptyValue(Node controlNode, Node testNode) {
-            return controlNode != null
-                    && Strings.isNullOrEmpty(controlNode.getNodeValue())
-                    && testNode == null;
-        }
-
-        private boolean languageCodeUpgrade(Node controlNode, Node testNode) {
-            return controlNode instanceof Attr && testNode instanceof Attr
-                    && controlNode.getLocalName().equals("LanguageId")
-                    && controlNode.getNodeValue().startsWith("ISO639-2")
-                    && testNode.getNodeValue().startsWith("ISO639-3")
-                    // language code must be the same
-                    && controlNode.getNodeValue().replace("ISO639-2", "").equals(testNode.getNodeValue().replace("ISO639-3", ""));
-        }
-
-        private boolean archiveHandlePostfixAdded(String controlLocation, Node controlNode, Node testNode) {
-            return "/METATRANSCRIPT[1]/@ArchiveHandle".equals(controlLocation)
-                    && (controlNode.getNodeValue() + "@format=imdi").equals(testNode.getNodeValue());
-        }
-
-        private boolean resourceLinkContentSimilar(Node controlNode, Node testNode) {
-            if (controlNode instanceof Text
-                    && "ResourceLink".equals(controlNode.getParentNode().getNodeName())
-                    && "ResourceLink".equals(testNode.getParentNode().getNodeName())) {
-                final String controlNodeValue = controlNode.getNodeValue();
-                final String testNodeValue = testNode.getNodeValue();
-
-                // strip everything up to last slash
-                return controlNodeValue.replaceAll(".*/", "").equals(testNodeValue.replaceAll(".*/", ""));
+                return DifferenceListener.RETURN_ACCEPT_DIFFERENCE;
             }
-
-            return false;
-
         }
 
         @Override
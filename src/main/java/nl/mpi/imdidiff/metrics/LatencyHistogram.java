@@ -0,0 +1,109 @@
+package nl.mpi.imdidiff.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations with exponential buckets, from one
+ * microsecond to about 18 minutes (upper bounds double from bucket to bucket).
+ * Safe to update from any number of threads.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets with an upper bound; durations beyond the last bound
+     * are only counted in the total
+     */
+    public static final int BUCKETS = 31;
+    private static final long MICROSECOND = 1000L;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     *
+     * @param nanos duration to record, in nanoseconds
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(getBucket(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        for (long current = max.get(); nanos > current; current = max.get()) {
+            if (max.compareAndSet(current, nanos)) {
+                break;
+            }
+        }
+    }
+
+    private static int getBucket(long nanos) {
+        final long micros = (nanos + MICROSECOND - 1) / MICROSECOND;
+        if (micros <= 1) {
+            return 0;
+        }
+        // index of the smallest power of two that is not less than micros
+        final int bucket = 64 - Long.numberOfLeadingZeros(micros - 1);
+        return Math.min(bucket, BUCKETS);
+    }
+
+    /**
+     *
+     * @param bucket bucket index, less than {@link #BUCKETS}
+     * @return upper bound of the bucket in nanoseconds
+     */
+    public static long getUpperBound(int bucket) {
+        return MICROSECOND << bucket;
+    }
+
+    /**
+     *
+     * @param bucket bucket index; {@link #BUCKETS} for the overflow bucket
+     * @return number of durations recorded in the bucket
+     */
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return sum of all durations in nanoseconds
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @return longest duration in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     *
+     * @param quantile quantile between 0 and 1
+     * @return estimate of the quantile (upper bound of the bucket it falls
+     * in) in nanoseconds
+     */
+    public long getQuantile(double quantile) {
+        final long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(getUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+}
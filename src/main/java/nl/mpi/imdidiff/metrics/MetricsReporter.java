@@ -0,0 +1,271 @@
+package nl.mpi.imdidiff.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes {@link RunMetrics} to a directory, as JSON
+ * ({@value #JSON_FILE}) and in the Prometheus text format
+ * ({@value #PROMETHEUS_FILE}, e.g. for the node exporter's textfile
+ * collector). Files get replaced periodically while the run is in progress and
+ * once more when the reporter is closed.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class MetricsReporter implements Closeable {
+
+    private final static Logger logger = LoggerFactory.getLogger(MetricsReporter.class);
+
+    public static final String JSON_FILE = "metrics.json";
+    public static final String PROMETHEUS_FILE = "metrics.prom";
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final RunMetrics metrics;
+    private final Path directory;
+    private final long intervalSeconds;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     *
+     * @param metrics metrics to report
+     * @param directory directory to write to, will be created if it does not
+     * exist
+     * @param intervalSeconds interval between writes during the run
+     */
+    public MetricsReporter(RunMetrics metrics, Path directory, long intervalSeconds) {
+        this.metrics = metrics;
+        this.directory = directory;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    /**
+     * Starts writing periodically
+     *
+     * @throws IOException if the directory cannot be created
+     */
+    public void start() throws IOException {
+        Files.createDirectories(directory);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    write();
+                } catch (IOException ex) {
+                    logger.warn("Could not write metrics to {}", directory, ex);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops writing periodically and writes the final metrics
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        write();
+        logger.info("Metrics written to {}", directory);
+    }
+
+    /**
+     * Takes a snapshot and writes all metrics
+     *
+     * @throws IOException if writing fails
+     */
+    public synchronized void write() throws IOException {
+        metrics.takeSnapshot();
+        writeAtomically(directory.resolve(JSON_FILE), toJson());
+        writeAtomically(directory.resolve(PROMETHEUS_FILE), toPrometheus());
+    }
+
+    private void writeAtomically(Path file, String content) throws IOException {
+        final Path tempFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write(content);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    String toJson() {
+        final List<RunMetrics.Snapshot> snapshots = metrics.getSnapshots();
+        final RunMetrics.Snapshot last = snapshots.get(snapshots.size() - 1);
+        final StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"start\": ").append(quote(formatTime(metrics.getStartTime()))).append(",\n")
+                .append("  \"elapsedSeconds\": ").append(format(last.getElapsedMillis() / 1000.0)).append(",\n")
+                .append("  \"pairs\": ").append(last.getPairs()).append(",\n")
+                .append("  \"differences\": ").append(metrics.getDifferences()).append(",\n")
+                .append("  \"pairsPerSecond\": ").append(format(rate(last.getPairs(), last.getElapsedMillis()))).append(",\n")
+                .append("  \"phases\": {\n");
+        for (Phase phase : Phase.values()) {
+            json.append("    ").append(quote(phase.getLabel())).append(": ");
+            appendHistogram(json, metrics.getPhase(phase));
+            json.append(",\n");
+        }
+        json.append("    \"pair\": ");
+        appendHistogram(json, metrics.getPairs());
+        json.append("\n  },\n");
+
+        json.append("  \"slowest\": [");
+        boolean first = true;
+        for (RunMetrics.SlowPair pair : metrics.getSlowest()) {
+            json.append(first ? "\n" : ",\n");
+            first = false;
+            json.append("    {\"path\": ").append(quote(pair.getPath()))
+                    .append(", \"millis\": ").append(format(pair.getNanos() / NANOS_PER_MILLI))
+                    .append(", \"phases\": {");
+            for (Phase phase : Phase.values()) {
+                json.append(phase.ordinal() == 0 ? "" : ", ")
+                        .append(quote(phase.getLabel())).append(": ").append(format(pair.getNanos(phase) / NANOS_PER_MILLI));
+            }
+            json.append("}}");
+        }
+        json.append("\n  ],\n");
+
+        json.append("  \"snapshots\": [");
+        RunMetrics.Snapshot previous = null;
+        for (RunMetrics.Snapshot snapshot : snapshots) {
+            json.append(previous == null ? "\n" : ",\n");
+            // throughput since the previous snapshot
+            final long pairs = previous == null ? snapshot.getPairs() : snapshot.getPairs() - previous.getPairs();
+            final long millis = previous == null ? snapshot.getElapsedMillis() : snapshot.getElapsedMillis() - previous.getElapsedMillis();
+            json.append("    {\"elapsedSeconds\": ").append(format(snapshot.getElapsedMillis() / 1000.0))
+                    .append(", \"pairs\": ").append(snapshot.getPairs())
+                    .append(", \"pairsPerSecond\": ").append(format(rate(pairs, millis)))
+                    .append(", \"heapUsed\": ").append(snapshot.getHeapUsed())
+                    .append(", \"heapCommitted\": ").append(snapshot.getHeapCommitted())
+                    .append(", \"heapMax\": ").append(snapshot.getHeapMax())
+                    .append(", \"gcCount\": ").append(snapshot.getGcCount())
+                    .append(", \"gcMillis\": ").append(snapshot.getGcMillis())
+                    .append("}");
+            previous = snapshot;
+        }
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+
+    private static void appendHistogram(StringBuilder json, LatencyHistogram histogram) {
+        final long count = histogram.getCount();
+        json.append("{\"count\": ").append(count)
+                .append(", \"sumSeconds\": ").append(format(histogram.getSum() / NANOS_PER_SECOND))
+                .append(", \"meanMillis\": ").append(format(count == 0 ? 0 : histogram.getSum() / NANOS_PER_MILLI / count))
+                .append(", \"p50Millis\": ").append(format(histogram.getQuantile(0.5) / NANOS_PER_MILLI))
+                .append(", \"p90Millis\": ").append(format(histogram.getQuantile(0.9) / NANOS_PER_MILLI))
+                .append(", \"p99Millis\": ").append(format(histogram.getQuantile(0.99) / NANOS_PER_MILLI))
+                .append(", \"maxMillis\": ").append(format(histogram.getMax() / NANOS_PER_MILLI))
+                .append(", \"buckets\": [");
+        for (int i = 0; i <= LatencyHistogram.BUCKETS; i++) {
+            json.append(i == 0 ? "" : ", ")
+                    .append("{\"le\": ").append(i < LatencyHistogram.BUCKETS ? format(LatencyHistogram.getUpperBound(i) / NANOS_PER_SECOND) : "null")
+                    .append(", \"count\": ").append(histogram.getCount(i)).append("}");
+        }
+        json.append("]}");
+    }
+
+    String toPrometheus() {
+        final List<RunMetrics.Snapshot> snapshots = metrics.getSnapshots();
+        final RunMetrics.Snapshot last = snapshots.get(snapshots.size() - 1);
+        final StringBuilder text = new StringBuilder();
+
+        text.append("# HELP imdidiff_phase_duration_seconds Duration of the phases of the comparison of a pair\n")
+                .append("# TYPE imdidiff_phase_duration_seconds histogram\n");
+        for (Phase phase : Phase.values()) {
+            appendHistogram(text, "imdidiff_phase_duration_seconds", "phase=\"" + phase.getLabel() + "\",", metrics.getPhase(phase));
+        }
+        text.append("# HELP imdidiff_pair_duration_seconds Duration of the comparison of a pair\n")
+                .append("# TYPE imdidiff_pair_duration_seconds histogram\n");
+        appendHistogram(text, "imdidiff_pair_duration_seconds", "", metrics.getPairs());
+
+        appendSample(text, "imdidiff_pairs_total", "counter", "Number of pairs compared", Long.toString(last.getPairs()));
+        appendSample(text, "imdidiff_differences_total", "counter", "Number of differences found", Long.toString(metrics.getDifferences()));
+        appendSample(text, "imdidiff_elapsed_seconds", "gauge", "Time since the start of the run", format(last.getElapsedMillis() / 1000.0));
+        appendSample(text, "imdidiff_heap_used_bytes", "gauge", "Heap memory in use", Long.toString(last.getHeapUsed()));
+        appendSample(text, "imdidiff_heap_committed_bytes", "gauge", "Heap memory committed", Long.toString(last.getHeapCommitted()));
+        appendSample(text, "imdidiff_heap_max_bytes", "gauge", "Maximum heap memory", Long.toString(last.getHeapMax()));
+        appendSample(text, "imdidiff_gc_collections_total", "counter", "Number of garbage collections", Long.toString(last.getGcCount()));
+        appendSample(text, "imdidiff_gc_seconds_total", "counter", "Time spent on garbage collection", format(last.getGcMillis() / 1000.0));
+        return text.toString();
+    }
+
+    private static void appendHistogram(StringBuilder text, String name, String labels, LatencyHistogram histogram) {
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            cumulative += histogram.getCount(i);
+            text.append(name).append("_bucket{").append(labels).append("le=\"")
+                    .append(format(LatencyHistogram.getUpperBound(i) / NANOS_PER_SECOND)).append("\"} ").append(cumulative).append('\n');
+        }
+        final String plainLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        text.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(histogram.getCount()).append('\n')
+                .append(name).append("_sum").append(plainLabels).append(' ').append(format(histogram.getSum() / NANOS_PER_SECOND)).append('\n')
+                .append(name).append("_count").append(plainLabels).append(' ').append(histogram.getCount()).append('\n');
+    }
+
+    private static void appendSample(StringBuilder text, String name, String type, String help, String value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n')
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static double rate(long count, long millis) {
+        return millis <= 0 ? 0 : count * 1000.0 / millis;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    private static String formatTime(long millis) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    private static String quote(String value) {
+        final StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
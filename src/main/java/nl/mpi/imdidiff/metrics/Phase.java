@@ -0,0 +1,46 @@
+package nl.mpi.imdidiff.metrics;
+
+/**
+ * Phases of the comparison of a pair of files that get timed separately
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public enum Phase {
+
+    /**
+     * Reading a file from disk
+     */
+    READ,
+    /**
+     * Conversion of the target document to IMDI before normalisation (when
+     * comparing to a CMDI hierarchy)
+     */
+    CONVERT,
+    /**
+     * Normalisation of the source document (or retrieval from the cache)
+     */
+    NORMALISE_SOURCE,
+    /**
+     * Normalisation of the target document (or retrieval from the cache)
+     */
+    NORMALISE_TARGET,
+    /**
+     * Checks of the fast path (raw content and normalised hash comparison)
+     */
+    FAST_PATH,
+    /**
+     * Comparison of the documents by XMLUnit
+     */
+    DIFF,
+    /**
+     * Filtering of differences by the ignore rules
+     */
+    FILTER;
+
+    /**
+     * @return name of the phase as used in reports
+     */
+    public String getLabel() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,270 @@
+package nl.mpi.imdidiff.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing of a run, shared by all threads: a latency histogram per
+ * {@link Phase} and for entire pairs, the slowest pairs and periodic snapshots
+ * of throughput and memory. Phases are recorded by the differs on the thread
+ * that compares the pair, between {@link #beginPair() } and
+ * {@link #endPair(java.lang.String, long) }.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class RunMetrics {
+
+    public static final int DEFAULT_SLOWEST_COUNT = 20;
+
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final Map<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+    private final LatencyHistogram pairs = new LatencyHistogram();
+    private final AtomicLong differences = new AtomicLong();
+
+    private final int slowestCount;
+    private final PriorityQueue<SlowPair> slowest = new PriorityQueue<>();
+    /**
+     * Duration of the fastest pair in the slowest list once it is full, to
+     * skip locking for all faster pairs
+     */
+    private volatile long slowestThreshold = 0;
+
+    private final List<Snapshot> snapshots = new ArrayList<>();
+
+    private final ThreadLocal<long[]> currentPair = new ThreadLocal<long[]>() {
+
+        @Override
+        protected long[] initialValue() {
+            return new long[Phase.values().length];
+        }
+    };
+
+    public RunMetrics() {
+        this(DEFAULT_SLOWEST_COUNT);
+    }
+
+    /**
+     *
+     * @param slowestCount number of slowest pairs to keep
+     */
+    public RunMetrics(int slowestCount) {
+        this.slowestCount = slowestCount;
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Marks the start of the comparison of a pair on the current thread
+     */
+    public void beginPair() {
+        final long[] times = currentPair.get();
+        for (int i = 0; i < times.length; i++) {
+            times[i] = 0;
+        }
+    }
+
+    /**
+     * Records the duration of a phase for the pair that is being compared on
+     * the current thread
+     *
+     * @param phase phase
+     * @param nanos duration in nanoseconds
+     */
+    public void record(Phase phase, long nanos) {
+        phases.get(phase).record(nanos);
+        currentPair.get()[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * Marks the end of the comparison of a pair on the current thread
+     *
+     * @param path (relative) path of the pair
+     * @param nanos total duration of the comparison in nanoseconds
+     */
+    public void endPair(String path, long nanos) {
+        pairs.record(nanos);
+        if (nanos > slowestThreshold) {
+            final SlowPair pair = new SlowPair(path, nanos, currentPair.get().clone());
+            synchronized (slowest) {
+                slowest.add(pair);
+                if (slowest.size() > slowestCount) {
+                    slowest.remove();
+                    slowestThreshold = slowest.peek().nanos;
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @param count number of differences found in a pair
+     */
+    public void addDifferences(int count) {
+        differences.addAndGet(count);
+    }
+
+    /**
+     * Records the current throughput and memory usage
+     *
+     * @return the new snapshot
+     */
+    public Snapshot takeSnapshot() {
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, collector.getCollectionCount());
+            gcTime += Math.max(0, collector.getCollectionTime());
+        }
+        final Snapshot snapshot = new Snapshot(getElapsedMillis(), pairs.getCount(), heap.getUsed(), heap.getCommitted(), heap.getMax(), gcCount, gcTime);
+        synchronized (snapshots) {
+            snapshots.add(snapshot);
+        }
+        return snapshot;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+
+    public LatencyHistogram getPhase(Phase phase) {
+        return phases.get(phase);
+    }
+
+    /**
+     * @return histogram of the total durations of all pairs
+     */
+    public LatencyHistogram getPairs() {
+        return pairs;
+    }
+
+    public long getDifferences() {
+        return differences.get();
+    }
+
+    /**
+     * @return slowest pairs, slowest first
+     */
+    public List<SlowPair> getSlowest() {
+        final List<SlowPair> list;
+        synchronized (slowest) {
+            list = new ArrayList<>(slowest);
+        }
+        Collections.sort(list, Collections.reverseOrder());
+        return list;
+    }
+
+    public List<Snapshot> getSnapshots() {
+        synchronized (snapshots) {
+            return new ArrayList<>(snapshots);
+        }
+    }
+
+    /**
+     * Duration of a single pair with the breakdown per phase
+     */
+    public static class SlowPair implements Comparable<SlowPair> {
+
+        private final String path;
+        private final long nanos;
+        private final long[] phaseNanos;
+
+        private SlowPair(String path, long nanos, long[] phaseNanos) {
+            this.path = path;
+            this.nanos = nanos;
+            this.phaseNanos = phaseNanos;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getNanos(Phase phase) {
+            return phaseNanos[phase.ordinal()];
+        }
+
+        @Override
+        public int compareTo(SlowPair o) {
+            return Long.compare(nanos, o.nanos);
+        }
+    }
+
+    /**
+     * Progress and memory usage at a point in time
+     */
+    public static class Snapshot {
+
+        private final long elapsedMillis;
+        private final long pairs;
+        private final long heapUsed;
+        private final long heapCommitted;
+        private final long heapMax;
+        private final long gcCount;
+        private final long gcMillis;
+
+        private Snapshot(long elapsedMillis, long pairs, long heapUsed, long heapCommitted, long heapMax, long gcCount, long gcMillis) {
+            this.elapsedMillis = elapsedMillis;
+            this.pairs = pairs;
+            this.heapUsed = heapUsed;
+            this.heapCommitted = heapCommitted;
+            this.heapMax = heapMax;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * @return number of pairs compared so far
+         */
+        public long getPairs() {
+            return pairs;
+        }
+
+        public long getHeapUsed() {
+            return heapUsed;
+        }
+
+        public long getHeapCommitted() {
+            return heapCommitted;
+        }
+
+        public long getHeapMax() {
+            return heapMax;
+        }
+
+        /**
+         * @return number of garbage collections since the start of the JVM
+         */
+        public long getGcCount() {
+            return gcCount;
+        }
+
+        /**
+         * @return time spent on garbage collection since the start of the JVM
+         */
+        public long getGcMillis() {
+            return gcMillis;
+        }
+    }
+}
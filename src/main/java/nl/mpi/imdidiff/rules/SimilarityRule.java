@@ -0,0 +1,22 @@
+package nl.mpi.imdidiff.rules;
+
+import nl.mpi.imdidiff.ImdiDifference;
+
+/**
+ * Rule that identifies a kind of difference between an original IMDI document
+ * and its converted counterpart as a known conversion artefact. Rules are
+ * evaluated for every difference found, so implementations should not allocate
+ * in {@link #isSimilar(nl.mpi.imdidiff.ImdiDifference) }. Instances must be
+ * immutable, as they are shared between threads.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public interface SimilarityRule {
+
+    /**
+     *
+     * @param difference difference to judge
+     * @return whether the difference is an acceptable similarity
+     */
+    boolean isSimilar(ImdiDifference difference);
+}
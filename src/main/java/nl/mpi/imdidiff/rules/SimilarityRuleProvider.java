@@ -0,0 +1,33 @@
+package nl.mpi.imdidiff.rules;
+
+import java.util.Set;
+
+/**
+ * Service that creates similarity rules of one or more types from the lines of
+ * a rules file (see {@link nl.mpi.imdidiff.ImdiSimilarityRules}). Providers are
+ * found through {@link java.util.ServiceLoader}, so rule types can be added by
+ * putting a jar with a provider (registered in
+ * <code>META-INF/services/nl.mpi.imdidiff.rules.SimilarityRuleProvider</code>)
+ * on the class path.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public interface SimilarityRuleProvider {
+
+    /**
+     * @return names of the rule types this provider creates rules for
+     */
+    Set<String> getTypes();
+
+    /**
+     *
+     * @param type one of the types of this provider
+     * @param nodeName local name of the node the rule applies to (attribute,
+     * element or parent of a text node), null if the rule applies to any node
+     * @param argument remainder of the line of the rule, null if there is none
+     * @return new rule
+     * @throws IllegalArgumentException if the node name or argument is not
+     * valid for the type
+     */
+    SimilarityRule create(String type, String nodeName, String argument);
+}
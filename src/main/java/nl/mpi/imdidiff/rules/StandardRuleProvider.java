@@ -0,0 +1,310 @@
+package nl.mpi.imdidiff.rules;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import nl.mpi.imdidiff.ImdiDifference;
+import org.w3c.dom.Node;
+
+/**
+ * Provider of the rule types that describe the known artefacts of the IMDI to
+ * CMDI to IMDI conversion:
+ * <dl>
+ * <dt><code>location-mismatch</code></dt>
+ * <dd>the control and test node are at different locations</dd>
+ * <dt><code>always</code></dt>
+ * <dd>any difference (to ignore differences by ID or node name)</dd>
+ * <dt><code>path</code> <i>xpath</i></dt>
+ * <dd>the control or test node is at the given location</dd>
+ * <dt><code>path-suffix</code> <i>suffix</i></dt>
+ * <dd>the location of the control or test node ends with the given suffix
+ * (e.g. <code>/@Type</code>)</dd>
+ * <dt><code>path-pattern</code> <i>regex</i></dt>
+ * <dd>the location of the control or test node matches the given regular
+ * expression; allocates a matcher per evaluation, so prefer the types above
+ * where they suffice</dd>
+ * <dt><code>value-postfix</code> <i>xpath</i> <i>postfix</i></dt>
+ * <dd>the control node is at the given location and the test value is the
+ * control value with the postfix appended</dd>
+ * <dt><code>same-file-name</code></dt>
+ * <dd>text of elements with the name of the rule that differs only up to the
+ * last slash (i.e. a changed path to the same file); requires a node
+ * name</dd>
+ * <dt><code>empty-value-dropped</code></dt>
+ * <dd>the control node has an empty value and has no counterpart</dd>
+ * <dt><code>code-prefix-change</code> <i>old</i> <i>new</i></dt>
+ * <dd>attribute values that are the same after removing the old prefix from
+ * the control value and the new prefix from the test value (e.g. language
+ * codes from <code>ISO639-2</code> to <code>ISO639-3</code>)</dd>
+ * </dl>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class StandardRuleProvider implements SimilarityRuleProvider {
+
+    public static final String LOCATION_MISMATCH = "location-mismatch";
+    public static final String ALWAYS = "always";
+    public static final String PATH = "path";
+    public static final String PATH_SUFFIX = "path-suffix";
+    public static final String PATH_PATTERN = "path-pattern";
+    public static final String VALUE_POSTFIX = "value-postfix";
+    public static final String SAME_FILE_NAME = "same-file-name";
+    public static final String EMPTY_VALUE_DROPPED = "empty-value-dropped";
+    public static final String CODE_PREFIX_CHANGE = "code-prefix-change";
+
+    private static final Set<String> TYPES = ImmutableSet.of(
+            LOCATION_MISMATCH, ALWAYS, PATH, PATH_SUFFIX, PATH_PATTERN,
+            VALUE_POSTFIX, SAME_FILE_NAME, EMPTY_VALUE_DROPPED, CODE_PREFIX_CHANGE);
+
+    private static final Splitter ARGUMENT_SPLITTER = Splitter.on(CharMatcher.WHITESPACE).omitEmptyStrings();
+
+    @Override
+    public Set<String> getTypes() {
+        return TYPES;
+    }
+
+    @Override
+    public SimilarityRule create(String type, String nodeName, String argument) {
+        switch (type) {
+            case LOCATION_MISMATCH:
+                getArguments(type, argument, 0);
+                return new LocationMismatchRule();
+            case ALWAYS:
+                getArguments(type, argument, 0);
+                return new AlwaysRule();
+            case PATH:
+                return new PathRule(getArguments(type, argument, 1).get(0), false);
+            case PATH_SUFFIX:
+                return new PathRule(getArguments(type, argument, 1).get(0), true);
+            case PATH_PATTERN:
+                try {
+                    return new PathPatternRule(Pattern.compile(getArguments(type, argument, 1).get(0)));
+                } catch (PatternSyntaxException ex) {
+                    throw new IllegalArgumentException("Invalid pattern for rule type " + type + ": " + ex.getMessage(), ex);
+                }
+            case VALUE_POSTFIX:
+                final List<String> postfixArguments = getArguments(type, argument, 2);
+                return new ValuePostfixRule(postfixArguments.get(0), postfixArguments.get(1));
+            case SAME_FILE_NAME:
+                getArguments(type, argument, 0);
+                if (nodeName == null) {
+                    throw new IllegalArgumentException("Rule type " + type + " requires a node name");
+                }
+                return new SameFileNameRule(nodeName);
+            case EMPTY_VALUE_DROPPED:
+                getArguments(type, argument, 0);
+                return new EmptyValueDroppedRule();
+            case CODE_PREFIX_CHANGE:
+                final List<String> prefixArguments = getArguments(type, argument, 2);
+                return new CodePrefixChangeRule(nodeName, prefixArguments.get(0), prefixArguments.get(1));
+            default:
+                throw new IllegalArgumentException("Unknown rule type " + type);
+        }
+    }
+
+    private static List<String> getArguments(String type, String argument, int count) {
+        final List<String> arguments = ARGUMENT_SPLITTER.splitToList(Strings.nullToEmpty(argument));
+        if (arguments.size() != count) {
+            throw new IllegalArgumentException(String.format("Rule type %s takes %d argument(s), got '%s'", type, count, Strings.nullToEmpty(argument)));
+        }
+        return arguments;
+    }
+
+    private static boolean hasNode(ImdiDifference.Side side) {
+        return side != null && side.getNodeType() != ImdiDifference.Side.NO_NODE;
+    }
+
+    private static boolean isNode(ImdiDifference.Side side, short nodeType) {
+        return side != null && side.getNodeType() == nodeType;
+    }
+
+    /**
+     * @return whether the local name (the part after the prefix) of a
+     * qualified name equals the given name, without creating a substring
+     */
+    private static boolean hasLocalName(String qualifiedName, String localName) {
+        final int start = qualifiedName.indexOf(':') + 1;
+        return qualifiedName.length() - start == localName.length() && qualifiedName.startsWith(localName, start);
+    }
+
+    private static class LocationMismatchRule implements SimilarityRule {
+
+        @Override
+        public boolean isSimilar(ImdiDifference difference) {
+            final String controlPath = difference.getControlPath();
+            return controlPath != null && !controlPath.equals(difference.getTestPath());
+        }
+    }
+
+    private static class AlwaysRule implements SimilarityRule {
+
+        @Override
+        public boolean isSimilar(ImdiDifference difference) {
+            return true;
+        }
+    }
+
+    private static class PathRule implements SimilarityRule {
+
+        private final String path;
+        private final boolean suffix;
+
+        public PathRule(String path, boolean suffix) {
+            this.path = path;
+            this.suffix = suffix;
+        }
+
+        @Override
+        public boolean isSimilar(ImdiDifference difference) {
+            return matches(difference.getControlPath()) || matches(difference.getTestPath());
+        }
+
+        private boolean matches(String xpath) {
+            return xpath != null && (suffix ? xpath.endsWith(path) : xpath.equals(path));
+        }
+    }
+
+    private static class PathPatternRule implements SimilarityRule {
+
+        private final Pattern pattern;
+
+        public PathPatternRule(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        public boolean isSimilar(ImdiDifference difference) {
+            return matches(difference.getControlPath()) || matches(difference.getTestPath());
+        }
+
+        private boolean matches(String xpath) {
+            return xpath != null && pattern.matcher(xpath).matches();
+        }
+    }
+
+    private static class ValuePostfixRule implements SimilarityRule {
+
+        private final String path;
+        private final String postfix;
+
+        public ValuePostfixRule(String path, String postfix) {
+            this.path = path;
+            this.postfix = postfix;
+        }
+
+        @Override
+        public boolean isSimilar(ImdiDifference difference) {
+            if (!path.equals(difference.getControlPath()) || difference.getTest() == null) {
+                return false;
+            }
+            final String controlValue = difference.getControl().getNodeValue();
+            final String testValue = difference.getTest().getNodeValue();
+            // test value equals control value + postfix
+            return controlValue != null && testValue != null
+                    && testValue.length() == controlValue.length() + postfix.length()
+                    && testValue.startsWith(controlValue)
+                    && testValue.endsWith(postfix);
+        }
+    }
+
+    private static class SameFileNameRule implements SimilarityRule {
+
+        /**
+         * Matches everything up to the last slash on a line
+         */
+        private static final Pattern DIRECTORY_PATTERN = Pattern.compile(".*/");
+        private static final CharMatcher LINE_TERMINATORS = CharMatcher.anyOf("\n\r\u0085\u2028\u2029");
+
+        private final String containerName;
+
+        public SameFileNameRule(String containerName) {
+            this.containerName = containerName;
+        }
+
+        @Override
+        public boolean isSimilar(ImdiDifference difference) {
+            final ImdiDifference.Side control = difference.getControl();
+            final ImdiDifference.Side test = difference.getTest();
+            if (isNode(control, Node.TEXT_NODE) && hasNode(test)
+                    && containerName.equals(control.getContainerName())
+                    && containerName.equals(test.getContainerName())) {
+                final String controlValue = control.getNodeValue();
+                final String testValue = test.getNodeValue();
+                return controlValue != null && testValue != null && isSameFileName(controlValue, testValue);
+            }
+            return false;
+        }
+
+        private static boolean isSameFileName(String value1, String value2) {
+            if (LINE_TERMINATORS.matchesAnyOf(value1) || LINE_TERMINATORS.matchesAnyOf(value2)) {
+                // rare; strip up to the last slash of every line
+                return DIRECTORY_PATTERN.matcher(value1).replaceAll("").equals(DIRECTORY_PATTERN.matcher(value2).replaceAll(""));
+            }
+            // compare everything after the last slash
+            final int start1 = value1.lastIndexOf('/') + 1;
+            final int start2 = value2.lastIndexOf('/') + 1;
+            final int length = value1.length() - start1;
+            return length == value2.length() - start2 && value1.regionMatches(start1, value2, start2, length);
+        }
+    }
+
+    private static class EmptyValueDroppedRule implements SimilarityRule {
+
+        @Override
+        public boolean isSimilar(ImdiDifference difference) {
+            final ImdiDifference.Side control = difference.getControl();
+            return hasNode(control)
+                    && Strings.isNullOrEmpty(control.getNodeValue())
+                    && !hasNode(difference.getTest());
+        }
+    }
+
+    private static class CodePrefixChangeRule implements SimilarityRule {
+
+        private final String nodeName;
+        private final String oldPrefix;
+        private final String newPrefix;
+
+        /**
+         *
+         * @param nodeName local name of the attribute, null for any
+         * attribute
+         * @param oldPrefix prefix of the control value
+         * @param newPrefix prefix of the test value
+         */
+        public CodePrefixChangeRule(String nodeName, String oldPrefix, String newPrefix) {
+            this.nodeName = nodeName;
+            this.oldPrefix = oldPrefix;
+            this.newPrefix = newPrefix;
+        }
+
+        @Override
+        public boolean isSimilar(ImdiDifference difference) {
+            final ImdiDifference.Side control = difference.getControl();
+            final ImdiDifference.Side test = difference.getTest();
+            if (!isNode(control, Node.ATTRIBUTE_NODE) || !isNode(test, Node.ATTRIBUTE_NODE)
+                    || (nodeName != null && !hasLocalName(control.getNodeName(), nodeName))) {
+                return false;
+            }
+            final String controlValue = control.getNodeValue();
+            final String testValue = test.getNodeValue();
+            if (controlValue == null || testValue == null
+                    || !controlValue.startsWith(oldPrefix) || !testValue.startsWith(newPrefix)) {
+                return false;
+            }
+            if (controlValue.indexOf(oldPrefix, oldPrefix.length()) >= 0 || testValue.indexOf(newPrefix, newPrefix.length()) >= 0) {
+                // rare; remove all occurrences of the prefixes
+                return controlValue.replace(oldPrefix, "").equals(testValue.replace(newPrefix, ""));
+            }
+            // code must be the same
+            final int length = controlValue.length() - oldPrefix.length();
+            return length == testValue.length() - newPrefix.length()
+                    && controlValue.regionMatches(oldPrefix.length(), testValue, newPrefix.length(), length);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package nl.mpi.imdidiff.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream over the remaining content of a byte buffer, which can be a
+ * heap buffer or a mapped file. Reading advances the position of the buffer.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    /**
+     *
+     * @param buffer buffer to read from, from its current position; should
+     * not be read by others while the stream is in use
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        } else if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        final int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long count) {
+        final int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,206 @@
+package nl.mpi.imdidiff.util;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.TransformerFactoryImpl;
+import net.sf.saxon.om.DocumentInfo;
+import net.sf.saxon.trans.XPathException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * URI resolver for documents loaded through <code>document()</code> from
+ * stylesheets, such as the language code lookup tables used by
+ * normaliseImdi.xsl. Documents are looked up locally by the last segment of
+ * their URI, in order:
+ * <ol>
+ * <li>in the lookup directory, if one is configured</li>
+ * <li>as a resource in the {@value #LOOKUP_RESOURCE_PATH} package on the
+ * classpath</li>
+ * <li>at the original URI; if a lookup directory is configured, a copy is
+ * stored there so that next runs do not need network access</li>
+ * </ol>
+ * Each document is parsed only once, into a tree that all transformations
+ * (on all threads) share.
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public class LookupDocumentResolver implements URIResolver {
+
+    private final static Logger logger = LoggerFactory.getLogger(LookupDocumentResolver.class);
+
+    /**
+     * Name of the system property that can be used to set the lookup
+     * directory of the {@link #getDefault() default resolver}
+     */
+    public static final String LOOKUP_DIRECTORY_PROPERTY = "imdidiff.lookup.dir";
+    public static final String LOOKUP_RESOURCE_PATH = "/lookup/";
+
+    private static LookupDocumentResolver defaultResolver;
+
+    private final Configuration configuration;
+    private final Path lookupDirectory;
+    private final ConcurrentMap<String, DocumentInfo> documents = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param lookupDirectory local directory to look for documents (and to
+     * store copies of remote documents); can be null
+     */
+    public LookupDocumentResolver(Path lookupDirectory) {
+        this.configuration = ((TransformerFactoryImpl) StylesheetRegistry.getTransformerFactory()).getConfiguration();
+        this.lookupDirectory = lookupDirectory;
+    }
+
+    /**
+     * @return shared resolver that uses the directory set in the
+     * {@value #LOOKUP_DIRECTORY_PROPERTY} system property (if any)
+     */
+    public static synchronized LookupDocumentResolver getDefault() {
+        if (defaultResolver == null) {
+            final String directory = System.getProperty(LOOKUP_DIRECTORY_PROPERTY);
+            defaultResolver = new LookupDocumentResolver(directory == null ? null : Paths.get(directory));
+        }
+        return defaultResolver;
+    }
+
+    @Override
+    public Source resolve(String href, String base) throws TransformerException {
+        final String uri = resolveUri(href, base);
+        final DocumentInfo cached = documents.get(uri);
+        if (cached != null) {
+            return cached;
+        }
+
+        // concurrent first requests may both load the document, only one will be kept
+        final DocumentInfo loaded = load(uri);
+        final DocumentInfo existing = documents.putIfAbsent(uri, loaded);
+        return existing == null ? loaded : existing;
+    }
+
+    /**
+     * Hashes the content that documents would be loaded from, so that results
+     * derived from them (such as cached normalised documents) can be keyed by
+     * it. Documents that are not available locally are represented by their
+     * name only.
+     *
+     * @param names names of the documents (last segments of their URIs)
+     * @return hash of the content of the documents
+     * @throws IOException if a local document cannot be read
+     */
+    public HashCode hashDocuments(List<String> names) throws IOException {
+        final Hasher hasher = Hashing.sha1().newHasher();
+        for (String name : names) {
+            hasher.putString(name, StandardCharsets.UTF_8);
+            final Path localFile = getLocalFile(name);
+            final URL resource = getClass().getResource(LOOKUP_RESOURCE_PATH + name);
+            if (localFile != null) {
+                hasher.putBytes(Files.readAllBytes(localFile));
+            } else if (resource != null) {
+                hasher.putBytes(Resources.toByteArray(resource));
+            }
+        }
+        return hasher.hash();
+    }
+
+    /**
+     * @return readable copy of the document in the lookup directory, or null
+     */
+    private Path getLocalFile(String name) {
+        if (lookupDirectory != null) {
+            final Path localFile = lookupDirectory.resolve(name);
+            if (Files.isReadable(localFile)) {
+                return localFile;
+            }
+        }
+        return null;
+    }
+
+    private DocumentInfo load(String uri) throws TransformerException {
+        final String name = getDocumentName(uri);
+
+        final Path localFile = getLocalFile(name);
+        if (localFile != null) {
+            logger.debug("Loading {} from lookup directory: {}", uri, localFile);
+            return build(new StreamSource(localFile.toFile()), uri);
+        }
+
+        final URL resource = getClass().getResource(LOOKUP_RESOURCE_PATH + name);
+        if (resource != null) {
+            logger.debug("Loading {} from classpath: {}", uri, resource);
+            return build(new StreamSource(resource.toExternalForm()), uri);
+        }
+
+        logger.warn("No local copy of {}, retrieving it from its original location", uri);
+        if (lookupDirectory != null) {
+            final Path storedFile = storeLocalCopy(uri, name);
+            return build(new StreamSource(storedFile.toFile()), uri);
+        } else {
+            return build(new StreamSource(uri), uri);
+        }
+    }
+
+    private DocumentInfo build(StreamSource source, String uri) throws XPathException {
+        final DocumentInfo document = configuration.buildDocument(source);
+        // keep original identity so that document() calls for the same URI get the same node
+        document.setSystemId(uri);
+        return document;
+    }
+
+    private Path storeLocalCopy(String uri, String name) throws TransformerException {
+        final Path localFile = lookupDirectory.resolve(name);
+        try {
+            Files.createDirectories(lookupDirectory);
+            final Path tempFile = Files.createTempFile(lookupDirectory, name, ".tmp");
+            try (InputStream stream = new URL(uri).openStream()) {
+                Files.copy(stream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(tempFile, localFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Stored copy of {} in lookup directory: {}", uri, localFile);
+            return localFile;
+        } catch (IOException ex) {
+            throw new TransformerException("Could not retrieve " + uri + " into " + localFile, ex);
+        }
+    }
+
+    private static String resolveUri(String href, String base) throws TransformerException {
+        try {
+            if (base == null || base.isEmpty()) {
+                return new URI(href).toString();
+            } else {
+                return new URI(base).resolve(href).toString();
+            }
+        } catch (URISyntaxException ex) {
+            throw new TransformerException("Invalid document URI: " + href, ex);
+        }
+    }
+
+    private static String getDocumentName(String uri) {
+        final String path = URI.create(uri).getPath();
+        if (path == null) {
+            return uri;
+        } else {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+    }
+}
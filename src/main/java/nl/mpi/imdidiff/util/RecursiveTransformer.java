@@ -1,6 +1,11 @@
 package nl.mpi.imdidiff.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
@@ -8,19 +13,43 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Transforms all files in a directory hierarchy with a single stylesheet,
+ * writing the results to a parallel hierarchy.
+ *
+ * <p>
+ * The stylesheet gets compiled once; files can be transformed on a pool of
+ * worker threads that each have their own {@link Transformer} (see
+ * {@link #setThreads(int) }). Target directories are created for batches of
+ * files before these get transformed. A file that fails to transform does not
+ * stop the run; failures are collected and reported at the end (see
+ * {@link #getFailures() }). Existing target files are never overwritten.</p>
  *
  * @author Twan Goosen <twan.goosen@mpi.nl>
  */
@@ -28,11 +57,24 @@ public class RecursiveTransformer {
 
     private final static Logger logger = LoggerFactory.getLogger(RecursiveTransformer.class);
 
+    /**
+     * Number of files of which the target directories get created at once
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Number of pending transformations per worker thread before the walker
+     * stops to wait for the oldest one
+     */
+    private static final int PENDING_PER_THREAD = 4;
+
     private final Path stylesheet;
     private final Path inputPath;
     private final Path outputPath;
     private final String inputExtension;
     private final String outputExtension;
+    private int threads = 1;
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
 
     public RecursiveTransformer(Path stylesheet, Path inputPath, Path outputPath, String inputExtension, String outputExtension) throws IOException {
         this.stylesheet = stylesheet;
@@ -42,6 +84,36 @@ public class RecursiveTransformer {
         this.outputExtension = outputExtension;
     }
 
+    /**
+     *
+     * @param threads number of threads to transform on (default 1, which
+     * transforms on the walking thread)
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return files that could not be transformed in the last run, in no
+     * particular order
+     */
+    public List<Failure> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+
+    /**
+     * Transforms all files in the input hierarchy
+     *
+     * @throws IOException if the input hierarchy cannot be walked, an output
+     * directory cannot be created or a target file already exists
+     * @throws TransformerConfigurationException if the stylesheet cannot be
+     * compiled
+     */
     public void transform() throws IOException, TransformerConfigurationException {
         // Check paths
         if (Files.exists(outputPath)) {
@@ -54,18 +126,43 @@ public class RecursiveTransformer {
             Files.createDirectories(outputPath);
         }
 
-        // Walk the file tree with our custom visitor
-        Files.walkFileTree(inputPath, new TransformingVisitor());
+        failures.clear();
+        final Templates templates = StylesheetRegistry.getTemplates(stylesheet);
+        final long start = System.nanoTime();
+        final TransformingVisitor visitor = new TransformingVisitor(templates);
+        final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads, new WorkerThreadFactory()) : null;
+        try {
+            visitor.executor = executor;
+            // Walk the file tree with our custom visitor
+            Files.walkFileTree(inputPath, visitor);
+            visitor.finish();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final int failed = failures.size();
+        for (Failure failure : getFailures()) {
+            logger.error("Failed to transform {}: {}", failure.getFile(), failure.getMessage());
+        }
+        logger.info(String.format("Transformed %d files (%d failed) in %.1f s, %.1f files/s on %d thread(s)",
+                visitor.fileCount, failed, seconds, visitor.fileCount / Math.max(seconds, 1e-3), threads));
     }
 
     private class TransformingVisitor extends SimpleFileVisitor<Path> {
 
-        private final Transformer transformer;
+        private final Templates templates;
+        private final ThreadLocal<Transformer> transformers = new ThreadLocal<>();
+        private final Set<Path> createdDirectories = new HashSet<>();
+        private final List<Path> batch = new ArrayList<>(BATCH_SIZE);
+        private final Deque<Future<?>> pending = new ArrayDeque<>();
+        private ExecutorService executor;
+        private int fileCount;
 
-        public TransformingVisitor() throws TransformerConfigurationException {
-            final TransformerFactory tff = TransformerFactory.newInstance();
-            Source stylesheetSource = new StreamSource(stylesheet.toFile());
-            transformer = tff.newTransformer(stylesheetSource);
+        public TransformingVisitor(Templates templates) {
+            this.templates = templates;
         }
 
         @Override
@@ -76,21 +173,127 @@ public class RecursiveTransformer {
 
         @Override
         public FileVisitResult visitFile(Path inFile, BasicFileAttributes attrs) throws IOException {
-            final Path targetPath = getTargetPath(inFile);
-            if (Files.exists(targetPath)) {
-                logger.error("FATAL: Target file already exists: " + targetPath.toString());
-                throw new FileAlreadyExistsException(targetPath.toString());
+            batch.add(inFile);
+            if (batch.size() >= BATCH_SIZE) {
+                submitBatch();
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        /**
+         * Submits the remaining files and waits for all transformations to
+         * complete
+         *
+         * @throws IOException if a target directory cannot be created or a
+         * target file already exists
+         */
+        public void finish() throws IOException {
+            submitBatch();
+            while (!pending.isEmpty()) {
+                waitForNext();
+            }
+        }
+
+        private void submitBatch() throws IOException {
+            // create all directories the batch needs before transforming any of it
+            final List<Path> targets = new ArrayList<>(batch.size());
+            for (Path inFile : batch) {
+                final Path targetPath = getTargetPath(inFile);
+                final Path targetDirectory = targetPath.getParent();
+                if (targetDirectory != null && createdDirectories.add(targetDirectory)) {
+                    Files.createDirectories(targetDirectory);
+                }
+                targets.add(targetPath);
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                submit(batch.get(i), targets.get(i));
             }
+            batch.clear();
+        }
+
+        private void submit(final Path inFile, final Path targetPath) throws IOException {
+            fileCount++;
+            if (executor == null) {
+                transformFile(inFile, targetPath);
+            } else {
+                pending.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws IOException {
+                        transformFile(inFile, targetPath);
+                        return null;
+                    }
+                }));
+
+                // keep the number of outstanding transformations bounded
+                while (pending.size() > threads * PENDING_PER_THREAD) {
+                    waitForNext();
+                }
+            }
+        }
 
-            final Source source = new StreamSource(inFile.toFile());
-            final Result result = new StreamResult(targetPath.toFile());
+        private void waitForNext() throws IOException {
+            final Future<?> next = pending.remove();
             try {
-                transformer.transform(source, result);
+                next.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for transformation");
+            } catch (ExecutionException ex) {
+                final Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+
+        /**
+         * Transforms a single file; can be called from any thread
+         *
+         * @throws FileAlreadyExistsException if the target file exists
+         * @throws IOException if the target file cannot be written
+         */
+        private void transformFile(Path inFile, Path targetPath) throws IOException {
+            final OutputStream output;
+            try {
+                // fails if the file exists, without checking separately
+                output = Files.newOutputStream(targetPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException ex) {
+                logger.error("FATAL: Target file already exists: " + targetPath.toString());
+                throw ex;
+            }
+
+            try (InputStream input = new BufferedInputStream(Files.newInputStream(inFile));
+                    OutputStream bufferedOutput = new BufferedOutputStream(output)) {
+                getTransformer().transform(
+                        new StreamSource(input, inFile.toUri().toString()),
+                        new StreamResult(bufferedOutput));
             } catch (TransformerException ex) {
-                logger.error("ERROR: Exception while transforming " + inFile.toString() + ":\n");
-                ex.printStackTrace(System.err);
+                logger.debug("Exception while transforming {}", inFile, ex);
+                failures.add(new Failure(inFile, ex.getMessageAndLocation()));
+            } catch (IOException ex) {
+                failures.add(new Failure(inFile, ex.toString()));
             }
-            return FileVisitResult.CONTINUE;
+        }
+
+        private Transformer getTransformer() throws IOException {
+            Transformer transformer = transformers.get();
+            if (transformer == null) {
+                try {
+                    transformer = templates.newTransformer();
+                } catch (TransformerConfigurationException ex) {
+                    throw new IOException("Could not create transformer", ex);
+                }
+                transformers.set(transformer);
+            }
+            return transformer;
         }
 
         private Path getTargetPath(Path inFile) {
@@ -108,20 +311,65 @@ public class RecursiveTransformer {
         }
     }
 
+    /**
+     * File that could not be transformed
+     */
+    public static class Failure {
+
+        private final Path file;
+        private final String message;
+
+        public Failure(Path file, String message) {
+            this.file = file;
+            this.message = message;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "transformer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     public static void main(String[] args) throws IOException, TransformerConfigurationException {
-        if (args.length != 5) {
-            System.err.println("Usage: java " + RecursiveTransformer.class.getName() + "stylesheet input-dir output-dir input-extension output-extension");
+        final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        int threads = 1;
+        if (arguments.size() == 7 && "--threads".equals(arguments.get(0))) {
+            arguments.remove(0);
+            try {
+                threads = Integer.parseInt(arguments.remove(0));
+            } catch (NumberFormatException ex) {
+                threads = 0;
+            }
+        }
+        if (arguments.size() != 5 || threads < 1) {
+            System.err.println("Usage: java " + RecursiveTransformer.class.getName() + " [--threads N] stylesheet input-dir output-dir input-extension output-extension");
             System.exit(1);
         }
 
         final FileSystem fs = FileSystems.getDefault();
         final RecursiveTransformer recursiveTransformer
                 = new RecursiveTransformer(
-                        fs.getPath(args[0]),
-                        fs.getPath(args[1]),
-                        fs.getPath(args[2]),
-                        args[3],
-                        args[4]);
+                        fs.getPath(arguments.get(0)),
+                        fs.getPath(arguments.get(1)),
+                        fs.getPath(arguments.get(2)),
+                        arguments.get(3),
+                        arguments.get(4));
+        recursiveTransformer.setThreads(threads);
 
         recursiveTransformer.transform();
     }
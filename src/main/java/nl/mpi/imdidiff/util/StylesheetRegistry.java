@@ -0,0 +1,160 @@
+package nl.mpi.imdidiff.util;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.TransformerFactoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide registry of compiled stylesheets. Every stylesheet gets
+ * compiled only once into {@link Templates}, which are thread safe and can
+ * hand out cheap {@link Transformer} instances (one per thread, since these
+ * are not thread safe).
+ *
+ * <p>
+ * Stylesheets are identified by their URL; for files on the filesystem the
+ * last modification time is part of the identity so that an edited stylesheet
+ * gets compiled again.</p>
+ *
+ * @author Twan Goosen <twan.goosen@mpi.nl>
+ */
+public final class StylesheetRegistry {
+
+    private final static Logger logger = LoggerFactory.getLogger(StylesheetRegistry.class);
+    private final static String SAXON_MESSAGE_EMITTER_CLASSNAME = "net.sf.saxon.serialize.MessageWarner";
+
+    private final static TransformerFactory transformerFactory = createTransformerFactory();
+
+    private final static LoadingCache<String, Templates> templatesCache
+            = CacheBuilder.newBuilder().build(new CacheLoader<String, Templates>() {
+
+                @Override
+                public Templates load(String systemId) throws Exception {
+                    return compile(systemId);
+                }
+            });
+
+    private StylesheetRegistry() {
+    }
+
+    /**
+     * @return the (configured) factory used to compile all stylesheets in
+     * the registry; not thread safe, synchronise on it when using it directly
+     */
+    public static TransformerFactory getTransformerFactory() {
+        return transformerFactory;
+    }
+
+    /**
+     *
+     * @param context class to resolve the resource against
+     * @param resource name of a stylesheet resource on the classpath
+     * @return compiled stylesheet
+     * @throws TransformerConfigurationException if the resource does not exist
+     * or cannot be compiled
+     */
+    public static Templates getTemplates(Class<?> context, String resource) throws TransformerConfigurationException {
+        final URL url = context.getResource(resource);
+        if (url == null) {
+            throw new TransformerConfigurationException("Stylesheet resource not found: " + resource);
+        }
+        return getTemplates(url.toExternalForm());
+    }
+
+    /**
+     *
+     * @param stylesheet path of a stylesheet file
+     * @return compiled stylesheet
+     * @throws TransformerConfigurationException if the file cannot be read or
+     * compiled
+     */
+    public static Templates getTemplates(Path stylesheet) throws TransformerConfigurationException {
+        final Path absolutePath = stylesheet.toAbsolutePath().normalize();
+        try {
+            final long lastModified = Files.getLastModifiedTime(absolutePath).toMillis();
+            // invalidate any older version of the same file
+            for (String key : templatesCache.asMap().keySet()) {
+                if (key.startsWith(absolutePath.toUri().toString() + "#") && !key.endsWith("#" + lastModified)) {
+                    templatesCache.invalidate(key);
+                }
+            }
+            return getTemplates(absolutePath.toUri().toString() + "#" + lastModified);
+        } catch (IOException ex) {
+            throw new TransformerConfigurationException("Cannot read stylesheet " + stylesheet, ex);
+        }
+    }
+
+    private static Templates getTemplates(String key) throws TransformerConfigurationException {
+        try {
+            return templatesCache.get(key);
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            if (ex.getCause() instanceof TransformerConfigurationException) {
+                throw (TransformerConfigurationException) ex.getCause();
+            } else {
+                throw new TransformerConfigurationException("Failed to compile stylesheet " + key, ex.getCause());
+            }
+        }
+    }
+
+    private static Templates compile(String key) throws IOException, TransformerConfigurationException {
+        // strip version information from key
+        final int versionIndex = key.lastIndexOf('#');
+        final String systemId = versionIndex > 0 ? key.substring(0, versionIndex) : key;
+
+        logger.debug("Compiling stylesheet {}", systemId);
+        try (InputStream stream = new URL(systemId).openStream()) {
+            final StreamSource source = new StreamSource(stream, systemId);
+            synchronized (transformerFactory) {
+                return transformerFactory.newTemplates(source);
+            }
+        }
+    }
+
+    private static TransformerFactory createTransformerFactory() {
+        final TransformerFactory factory = TransformerFactory.newInstance();
+        if (factory instanceof TransformerFactoryImpl) {
+            configureSaxonTransfomerFactory((TransformerFactoryImpl) factory);
+        }
+        return factory;
+    }
+
+    private static void configureSaxonTransfomerFactory(final TransformerFactoryImpl saxonFactory) throws IllegalArgumentException {
+        // log saxon warnings and errors to our local logger
+        saxonFactory.setErrorListener(new ErrorListener() {
+
+            @Override
+            public void warning(TransformerException exception) throws TransformerException {
+                logger.warn("Saxon warning: " + exception.getMessageAndLocation());
+            }
+
+            @Override
+            public void error(TransformerException exception) throws TransformerException {
+                logger.error("Saxon error: " + exception.getMessageAndLocation());
+            }
+
+            @Override
+            public void fatalError(TransformerException exception) throws TransformerException {
+                logger.error("Saxon FATAL: " + exception.getMessageAndLocation());
+            }
+        });
+
+        // make all saxon internal log message to to error listener
+        saxonFactory.getConfiguration().setMessageEmitterClass(SAXON_MESSAGE_EMITTER_CLASSNAME);
+    }
+}
@@ -38,12 +38,8 @@
              </xsl:if>
             </xsl:variable>
             
-            <!-- Sort the combined descriptions -->
-            <xsl:for-each select="$descriptions/Description">
-                <!-- Sort descriptions by value -->
-                <xsl:sort select="concat(normalize-space(replace(replace(.,'/$',''),'.*/','')),normalize-space(@ArchiveHandle),text())" />
-                <xsl:copy-of select="." />
-            </xsl:for-each>
+            <!-- Copy the combined descriptions (order does not matter, the differ matches them by content) -->
+            <xsl:copy-of select="$descriptions/Description" />
             
             <xsl:if test="name() = 'Corpus'">
                 <xsl:for-each-group select="CorpusLink" group-by="concat(@ArchiveHandle,@Name,text())">
@@ -51,10 +47,7 @@
                 </xsl:for-each-group>
             </xsl:if>
             
-            <xsl:apply-templates select="node()[name()='Key']">
-                <!-- Sort descriptions by value -->
-                <xsl:sort select="concat(@Name, text())" />
-            </xsl:apply-templates>
+            <xsl:apply-templates select="node()[name()='Key']" />
             <xsl:apply-templates select="node()[not(name()='Description' or name()='Key' or name()='CorpusLink')]" />
         </xsl:copy>
     </xsl:template>
@@ -263,15 +256,6 @@
         <!-- notice that we are ignoring attributes here, only looking at content! -->
     </xsl:template>
     
-    <xsl:template match="Resources">
-        <!-- sort resource elements -->
-        <xsl:copy>
-            <xsl:apply-templates>
-                <xsl:sort select="concat(name(),ResourceLink/@ArchiveHandle,ResourceLink/text())"></xsl:sort>
-            </xsl:apply-templates>
-        </xsl:copy>
-    </xsl:template>
-    
     <!-- ResourceId and ResourceRef -->
     
     <xsl:template match="MediaFile|WrittenResource" mode="make-resource-id">